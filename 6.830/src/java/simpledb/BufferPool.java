@@ -1,13 +1,23 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from disk.
@@ -17,6 +27,33 @@ import java.util.concurrent.atomic.AtomicInteger;
  * The BufferPool is also responsible for locking; when a transaction fetches a
  * page, BufferPool checks that the transaction has the appropriate locks to
  * read/write the page.
+ * <p>
+ * Which page is evicted when the pool is full is decided by a
+ * {@link ReplacementPolicy}; unless another policy is given to the
+ * constructor, the scan-resistant {@link TwoQueueReplacementPolicy} is used.
+ * <p>
+ * The page table is a concurrent map, so hits take no BufferPool lock at all.
+ * Loading, discarding and evicting a page synchronize only on one of
+ * {@link #NUM_FRAME_LOCKS} frame locks, chosen by the page id, and frames that
+ * are being read in or written out are pinned so that eviction skips them.
+ * Locks are always taken in the order frame lock, page latch (the page's
+ * monitor), LogFile monitor, never the other way round. Flushing a page pins
+ * it under its frame lock, releases that, and logs, forces and writes the
+ * page holding only its latch; LogFile discards pages only after leaving its
+ * monitor.
+ * <p>
+ * For recovery, the BufferPool keeps a dirty page table: the recLSN of every
+ * dirty page, the end of the log when the page became dirty, so that no
+ * logged change the page on disk may be missing is older than it.
+ * Checkpoints copy this table instead of flushing pages; an optional
+ * background writer trickles the oldest dirty pages out between them.
+ * <p>
+ * When prefetching is enabled, sequential scans ask the pool to prefetch the
+ * pages ahead of them, which a small pool of I/O threads reads in without
+ * taking page locks. Each page being prefetched holds a token that is
+ * revoked if the page leaves the pool or is discarded while it is read, since
+ * the page may have been written and evicted (or restored by a rollback) in
+ * the meantime; a prefetched image is only admitted if its token survived.
  * 
  * @Threadsafe, all fields are final
  */
@@ -31,25 +68,287 @@ public class BufferPool {
    */
   public static final int DEFAULT_PAGES = 50;
 
+  /** Number of lock stripes guarding page loads, flushes and evictions. */
+  private static final int NUM_FRAME_LOCKS = 64;
+
+  /** Give up on eviction after this many victims turn out to be busy. */
+  private static final int MAX_EVICTION_ATTEMPTS = 16;
+
+  /** Threads reading prefetched pages. */
+  private static final int PREFETCH_THREADS = 2;
+
   private final int maxPages;
   private final AtomicInteger currentPages;
 
-  private final Map<PageId, Page> pageIdToPages;
-  private final Map<TransactionId, Set<PageId>> transactionsToDirtiedFlushedPages;
+  private final ConcurrentMap<PageId, Page> pageIdToPages;
+  private final ConcurrentMap<PageId, AtomicInteger> pinCounts;
+  private final Object[] frameLocks;
+  private final ConcurrentMap<TransactionId, Set<PageId>> transactionsToDirtiedFlushedPages;
+  private final ConcurrentMap<PageId, Long> dirtyPageTable; // page id -> recLSN
 
   private final LockManager lockManager;
+  private final ReplacementPolicy replacementPolicy;
+
+  private final AtomicLong hitCount;
+  private final AtomicLong missCount;
+
+  // a token for each page being prefetched, removed if the page leaves the
+  // pool or is discarded under its frame lock; see prefetchPages
+  private final ConcurrentMap<PageId, Object> prefetchTokens;
+  private final ThreadPoolExecutor prefetcher;
+  private volatile boolean prefetching = false;
+
+  private final Object backgroundWriterLock = new Object();
+  private BackgroundWriter backgroundWriter = null; // protected by backgroundWriterLock
 
   /**
-   * Creates a BufferPool that caches up to numPages pages.
+   * Creates a BufferPool that caches up to numPages pages, using the default
+   * (2Q) replacement policy.
    * 
    * @param numPages maximum number of pages in this buffer pool.
    */
   public BufferPool(int numPages) {
+    this(numPages, TwoQueueReplacementPolicy.create(numPages));
+  }
+
+  /**
+   * Creates a BufferPool that caches up to numPages pages and uses the given
+   * policy to choose pages to evict.
+   * 
+   * @param numPages maximum number of pages in this buffer pool.
+   * @param replacementPolicy the policy deciding which page to evict
+   */
+  public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
     this.maxPages = numPages;
-    this.pageIdToPages = new HashMap<PageId, Page>();
-    this.transactionsToDirtiedFlushedPages = new HashMap<TransactionId, Set<PageId>>();
+    this.pageIdToPages = new ConcurrentHashMap<PageId, Page>();
+    this.pinCounts = new ConcurrentHashMap<PageId, AtomicInteger>();
+    this.prefetchTokens = new ConcurrentHashMap<PageId, Object>();
+    this.frameLocks = new Object[NUM_FRAME_LOCKS];
+    for (int i = 0; i < NUM_FRAME_LOCKS; i++) {
+      frameLocks[i] = new Object();
+    }
+    this.transactionsToDirtiedFlushedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    this.dirtyPageTable = new ConcurrentHashMap<PageId, Long>();
     this.lockManager = LockManager.create();
+    this.replacementPolicy = replacementPolicy;
+    this.hitCount = new AtomicLong(0);
+    this.missCount = new AtomicLong(0);
     currentPages = new AtomicInteger(0);
+    this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 1,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "BufferPool prefetcher");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    prefetcher.allowCoreThreadTimeOut(true);
+  }
+
+  /** Enables or disables prefetching (off by default); see prefetchPages. */
+  public void setPrefetching(boolean prefetching) {
+    this.prefetching = prefetching;
+  }
+
+  public boolean isPrefetching() {
+    return prefetching;
+  }
+
+  /** @return whether the page is in the pool */
+  public boolean isCached(PageId pid) {
+    return pageIdToPages.containsKey(pid);
+  }
+
+  /** @return the maximum number of pages in the pool */
+  public int getNumPages() {
+    return maxPages;
+  }
+
+  /**
+   * Reads the pages of a table into the pool in the background, unless
+   * prefetching is disabled. No locks are taken; a transaction reading a
+   * prefetched page still locks it through getPage, and finds it cached.
+   * Pages that are cached already or that lie past the end of the table are
+   * skipped, and prefetching stops quietly if the pool has no frame to spare.
+   * 
+   * @param pids pages of a single table
+   */
+  public void prefetchPages(final List<PageId> pids) {
+    if (!prefetching || pids.isEmpty()) {
+      return;
+    }
+    prefetcher.execute(new Runnable() {
+      @Override
+      public void run() {
+        loadPages(pids);
+      }
+    });
+  }
+
+  private void loadPages(List<PageId> pids) {
+    Map<PageId, Object> tokens = new HashMap<PageId, Object>();
+    List<PageId> missing = new ArrayList<PageId>();
+    try {
+      for (PageId pid : pids) {
+        Object token = new Object();
+        // skip pages that are cached or that another prefetch is reading
+        if (!pageIdToPages.containsKey(pid) && prefetchTokens.putIfAbsent(pid, token) == null) {
+          tokens.put(pid, token);
+          missing.add(pid);
+        }
+      }
+      if (missing.isEmpty()) {
+        return;
+      }
+      List<Page> pages;
+      try {
+        DbFile file = Database.getCatalog().getDatabaseFile(missing.get(0).getTableId());
+        if (file instanceof HeapFile) {
+          pages = ((HeapFile) file).readPages(missing);
+        } else {
+          pages = new ArrayList<Page>();
+          for (PageId pid : missing) {
+            pages.add(file.readPage(pid));
+          }
+        }
+      } catch (RuntimeException e) {
+        // such as a page past the end of the table
+        return;
+      }
+      for (Page page : pages) {
+        PageId pid = page.getId();
+        try {
+          reserveFrame();
+        } catch (DbException e) {
+          return;
+        }
+        synchronized (frameLock(pid)) {
+          // a page that left the pool during the read may have been written
+          // since, so the image read may be stale
+          if (prefetchTokens.get(pid) != tokens.get(pid) || pageIdToPages.containsKey(pid)) {
+            currentPages.decrementAndGet();
+            continue;
+          }
+          pageIdToPages.put(pid, page);
+          replacementPolicy.pageAdmitted(pid);
+        }
+      }
+    } finally {
+      for (Map.Entry<PageId, Object> token : tokens.entrySet()) {
+        prefetchTokens.remove(token.getKey(), token.getValue());
+      }
+    }
+  }
+
+  /**
+   * Sets how long a transaction may wait for a page lock before it is aborted.
+   * 
+   * @param lockTimeoutMillis the timeout in milliseconds, or
+   *          LockManager.NO_TIMEOUT to wait until granted or deadlocked
+   */
+  public void setLockTimeout(long lockTimeoutMillis) {
+    lockManager.setLockTimeout(lockTimeoutMillis);
+  }
+
+  /**
+   * Sets how lock conflicts that could deadlock are resolved.
+   */
+  public void setDeadlockPolicy(LockManager.DeadlockPolicy deadlockPolicy) {
+    lockManager.setDeadlockPolicy(deadlockPolicy);
+  }
+
+  /**
+   * Sets which transaction on a waits-for cycle is aborted when deadlocks are
+   * detected.
+   */
+  public void setVictimPolicy(LockManager.VictimPolicy victimPolicy) {
+    lockManager.setVictimPolicy(victimPolicy);
+  }
+
+  /**
+   * Starts a background writer that, every intervalMillis, writes out up to
+   * pagesPerRound dirty pages, those with the oldest recLSN first. This keeps
+   * the log that recovery must redo short without checkpoints flushing
+   * anything. Pages of uncommitted transactions may be written (they are
+   * logged first, and undone from the log if their transaction aborts).
+   * Replaces a background writer that is already running.
+   */
+  public void startBackgroundWriter(long intervalMillis, int pagesPerRound) {
+    synchronized (backgroundWriterLock) {
+      stopBackgroundWriter();
+      backgroundWriter = new BackgroundWriter(intervalMillis, pagesPerRound);
+      backgroundWriter.start();
+    }
+  }
+
+  /** Stops the background writer, if one is running, and waits for it. */
+  public void stopBackgroundWriter() {
+    synchronized (backgroundWriterLock) {
+      if (backgroundWriter == null) {
+        return;
+      }
+      backgroundWriter.interrupt();
+      boolean interrupted = false;
+      while (true) {
+        try {
+          backgroundWriter.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      backgroundWriter = null;
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private class BackgroundWriter extends Thread {
+    private final long intervalMillis;
+    private final int pagesPerRound;
+
+    BackgroundWriter(long intervalMillis, int pagesPerRound) {
+      super("BufferPool background writer");
+      setDaemon(true);
+      this.intervalMillis = intervalMillis;
+      this.pagesPerRound = pagesPerRound;
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        try {
+          Thread.sleep(intervalMillis);
+          for (PageId pageId : oldestDirtyPages(pagesPerRound)) {
+            flushPage(pageId);
+          }
+        } catch (InterruptedException e) {
+          return;
+        } catch (IOException e) {
+          // the pages stay dirty and are written at commit
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /** @return up to n dirty pages, oldest recLSN first */
+  private List<PageId> oldestDirtyPages(int n) {
+    List<Map.Entry<PageId, Long>> dirtyPages = new ArrayList<Map.Entry<PageId, Long>>(
+        dirtyPageTable.entrySet());
+    Collections.sort(dirtyPages, new Comparator<Map.Entry<PageId, Long>>() {
+      @Override
+      public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+        return a.getValue().compareTo(b.getValue());
+      }
+    });
+    List<PageId> oldest = new ArrayList<PageId>();
+    for (int i = 0; i < dirtyPages.size() && i < n; i++) {
+      oldest.add(dirtyPages.get(i).getKey());
+    }
+    return oldest;
   }
 
   public static int getPageSize() {
@@ -75,19 +374,105 @@ public class BufferPool {
   public Page getPage(TransactionId tid, PageId pid, Permissions perm) throws DbException,
       TransactionAbortedException {
     lockManager.acquireLock(tid, pid, perm);
-    if (pageIdToPages.containsKey(pid)) {
-      return pageIdToPages.get(pid);
+    Page page = pageIdToPages.get(pid);
+    if (page != null) {
+      hitCount.incrementAndGet();
+      replacementPolicy.pageAccessed(pid);
+      return page;
+    }
+    // reserve a frame before taking the frame lock, so that no thread ever
+    // holds one frame lock while waiting for another one during eviction
+    reserveFrame();
+    synchronized (frameLock(pid)) {
+      page = pageIdToPages.get(pid);
+      if (page != null) {
+        // another thread read the page in while we were reserving a frame
+        currentPages.decrementAndGet();
+        hitCount.incrementAndGet();
+        replacementPolicy.pageAccessed(pid);
+        return page;
+      }
+      missCount.incrementAndGet();
+      pin(pid);
+      try {
+        int tableId = pid.getTableId();
+        Catalog catalog = Database.getCatalog();
+        DbFile dbFile = catalog.getDatabaseFile(tableId);
+        page = dbFile.readPage(pid);
+      } catch (RuntimeException e) {
+        currentPages.decrementAndGet();
+        throw e;
+      } finally {
+        unpin(pid);
+      }
+      pageIdToPages.put(pid, page);
+      replacementPolicy.pageAdmitted(pid);
+      return page;
+    }
+  }
+
+  /**
+   * Claims one frame of the pool for a page that is about to be read in,
+   * evicting a page first if the pool is full.
+   */
+  private void reserveFrame() throws DbException {
+    while (true) {
+      int pages = currentPages.get();
+      if (pages < maxPages) {
+        if (currentPages.compareAndSet(pages, pages + 1)) {
+          return;
+        }
+      } else {
+        evictPage();
+      }
+    }
+  }
+
+  private Object frameLock(PageId pageId) {
+    return frameLocks[(pageId.hashCode() & Integer.MAX_VALUE) % NUM_FRAME_LOCKS];
+  }
+
+  private void pin(PageId pageId) {
+    AtomicInteger pinCount = pinCounts.get(pageId);
+    if (pinCount == null) {
+      pinCounts.putIfAbsent(pageId, new AtomicInteger(0));
+      pinCount = pinCounts.get(pageId);
     }
-    if (currentPages.get() == maxPages) {
-      evictPage();
+    pinCount.incrementAndGet();
+  }
+
+  private void unpin(PageId pageId) {
+    AtomicInteger pinCount = pinCounts.get(pageId);
+    if (pinCount != null && pinCount.decrementAndGet() == 0) {
+      pinCounts.remove(pageId, pinCount);
     }
-    int tableId = pid.getTableId();
-    Catalog catalog = Database.getCatalog();
-    DbFile dbFile = catalog.getDatabaseFile(tableId);
-    Page page = dbFile.readPage(pid);
-    pageIdToPages.put(pid, page);
-    currentPages.incrementAndGet();
-    return page;
+  }
+
+  private boolean isPinned(PageId pageId) {
+    AtomicInteger pinCount = pinCounts.get(pageId);
+    return pinCount != null && pinCount.get() > 0;
+  }
+
+  /**
+   * @return the number of getPage calls that found the page already resident
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * @return the number of getPage calls that had to read the page from disk
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Resets the hit and miss counters, e.g. after warming up the pool.
+   */
+  public void resetStatistics() {
+    hitCount.set(0);
+    missCount.set(0);
   }
 
   /**
@@ -126,23 +511,44 @@ public class BufferPool {
   public void transactionComplete(TransactionId tid, boolean commit) throws IOException {
     if (commit) {
       Set<PageId> dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(tid);
-      for (PageId pageId : pageIdToPages.keySet()) {
-        Page page = pageIdToPages.get(pageId);
+      Set<PageId> dirtied = new HashSet<PageId>();
+      for (Page page : pageIdToPages.values()) {
         if (tid.equals(page.isDirty())) {
-          flushPage(pageId);
+          dirtied.add(page.getId());
+        }
+      }
+      flushCommittedPages(dirtied);
+      for (Page page : pageIdToPages.values()) {
+        PageId pageId = page.getId();
+        if (dirtied.contains(pageId)
+            || (dirtiedFlushedPages != null && dirtiedFlushedPages.contains(pageId))) {
           // use current page contents as the before-image
           // for the next transaction that modifies this page.
           page.setBeforeImage();
-        } else if (dirtiedFlushedPages != null && dirtiedFlushedPages.contains(pageId)) {
-          page.setBeforeImage();
         }
       }
     } else {
+      Set<PageId> undone = new HashSet<PageId>();
+      Set<PageId> dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(tid);
+      if (dirtiedFlushedPages != null) {
+        undone.addAll(dirtiedFlushedPages);
+      }
       for (PageId pageId : pageIdToPages.keySet()) {
-        Page page = pageIdToPages.get(pageId);
-        if (tid.equals(page.isDirty())) {
-          pageIdToPages.put(pageId, page.getBeforeImage());
-          page.markDirty(false, null);
+        synchronized (frameLock(pageId)) {
+          Page page = pageIdToPages.get(pageId);
+          if (page != null && tid.equals(page.isDirty())) {
+            pageIdToPages.put(pageId, page.getBeforeImage());
+            page.markDirty(false, null);
+            dirtyPageTable.remove(pageId);
+            undone.add(pageId);
+          }
+        }
+      }
+      // the slots the transaction filled are free again
+      for (PageId pageId : undone) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pageId.getTableId());
+        if (file instanceof HeapFile) {
+          ((HeapFile) file).addFreePage(pageId.pageNumber());
         }
       }
     }
@@ -173,6 +579,7 @@ public class BufferPool {
     List<Page> dirtiedPages = heapFile.insertTuple(tid, t);
     for (Page dirtiedPage : dirtiedPages) {
       dirtiedPage.markDirty(true, tid);
+      addDirtyPage(dirtiedPage.getId());
     }
   }
 
@@ -195,6 +602,20 @@ public class BufferPool {
         t.getRecordId().getPageId().getTableId());
     Page dirtiedPage = heapFile.deleteTuple(tid, t);
     dirtiedPage.markDirty(true, tid);
+    addDirtyPage(dirtiedPage.getId());
+  }
+
+  /** Enter a page that was just dirtied into the dirty page table. */
+  private void addDirtyPage(PageId pageId) {
+    dirtyPageTable.putIfAbsent(pageId, Database.getLogFile().getEndLsn());
+  }
+
+  /**
+   * @return a copy of the dirty page table: the recLSN of each dirty page, for
+   *         checkpoints
+   */
+  public Map<PageId, Long> getDirtyPageTable() {
+    return new HashMap<PageId, Long>(dirtyPageTable);
   }
 
   /**
@@ -202,7 +623,7 @@ public class BufferPool {
    * writes dirty data to disk so will break simpledb if running in NO STEAL
    * mode.
    */
-  public synchronized void flushAllPages() throws IOException {
+  public void flushAllPages() throws IOException {
     for (PageId pageId : pageIdToPages.keySet()) {
       flushPage(pageId);
     }
@@ -213,21 +634,33 @@ public class BufferPool {
    * manager to ensure that the buffer pool doesn't keep a rolled back page in
    * its cache.
    */
-  public synchronized void discardPage(PageId pageId) {
-    if (pageIdToPages.containsKey(pageId)) {
-      pageIdToPages.remove(pageId);
-      currentPages.decrementAndGet();
+  public void discardPage(PageId pageId) {
+    Page page;
+    synchronized (frameLock(pageId)) {
+      prefetchTokens.remove(pageId);
+      page = pageIdToPages.remove(pageId);
+      if (page != null) {
+        currentPages.decrementAndGet();
+        replacementPolicy.pageRemoved(pageId);
+      }
+      dirtyPageTable.remove(pageId);
+    }
+    if (page != null) {
+      // wait out a flush of the page that is already in progress; later ones
+      // find the page gone and write nothing
+      synchronized (page) {
+      }
     }
   }
-  
+
   private void addDirtiedFlushedPage(TransactionId dirtier, PageId pageId) {
-    if (transactionsToDirtiedFlushedPages.containsKey(dirtier)) {
-      transactionsToDirtiedFlushedPages.get(dirtier).add(pageId);
-    } else {
-      Set<PageId> dirtiedFlushedPages = new HashSet<PageId>();
-      dirtiedFlushedPages.add(pageId);
-      transactionsToDirtiedFlushedPages.put(dirtier, dirtiedFlushedPages);
+    Set<PageId> dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(dirtier);
+    if (dirtiedFlushedPages == null) {
+      transactionsToDirtiedFlushedPages.putIfAbsent(dirtier,
+          Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>()));
+      dirtiedFlushedPages = transactionsToDirtiedFlushedPages.get(dirtier);
     }
+    dirtiedFlushedPages.add(pageId);
   }
 
   /**
@@ -235,62 +668,226 @@ public class BufferPool {
    * 
    * @param pageId an ID indicating the page to flush
    */
-  private synchronized void flushPage(PageId pageId) throws IOException {
-    if (pageIdToPages.containsKey(pageId)) {
-      Page page = pageIdToPages.get(pageId);
-      // append an update record to the log, with
-      // a before-image and after-image.
-      TransactionId dirtier = page.isDirty();
-      if (dirtier != null) {
+  private void flushPage(PageId pageId) throws IOException {
+    // the frame lock is only held to find and pin the page; logging and
+    // writing it take the page latch and then the LogFile monitor, in that
+    // order, so a rollback discarding pages never waits for a flush holding
+    // its frame lock
+    Page page;
+    synchronized (frameLock(pageId)) {
+      page = pageIdToPages.get(pageId);
+      if (page == null || page.isDirty() == null) {
+        return;
+      }
+      pin(pageId);
+    }
+    try {
+      // the page latch keeps the dirtier from changing the page between
+      // logging and writing it, now that pages are flushed while their
+      // transactions run
+      synchronized (page) {
+        // append an update record to the log, with
+        // a before-image and after-image or the changed slots.
+        TransactionId dirtier = page.isDirty();
+        // another flush may have written the page, or a rollback discarded
+        // it, since it was pinned
+        if (dirtier == null || pageIdToPages.get(pageId) != page) {
+          return;
+        }
         addDirtiedFlushedPage(dirtier, pageId);
-        Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+        // pages dirtied without the BufferPool have no recLSN yet
+        addDirtyPage(pageId);
+        page.setLsn(logUpdate(dirtier, page));
         Database.getLogFile().force();
         Database.getCatalog().getDatabaseFile(pageId.getTableId()).writePage(page);
         page.markDirty(false, null);
+        dirtyPageTable.remove(pageId);
       }
+    } finally {
+      unpin(pageId);
     }
   }
 
+  /**
+   * Flushes the pages of a committing transaction as a batch: logs every page,
+   * forces the log once, and writes the pages of each file with one
+   * HeapFile.writePages call. Unlike flushPage, the page latches are not held
+   * from logging to writing, so this is only for pages whose dirtier holds
+   * their locks and is not changing them, as at commit. The pages stay dirty
+   * and pinned until they are written.
+   */
+  private void flushCommittedPages(Collection<PageId> pageIds) throws IOException {
+    Map<Integer, List<Page>> logged = new HashMap<Integer, List<Page>>();
+    Map<PageId, Long> lsns = new HashMap<PageId, Long>();
+    List<PageId> pinned = new ArrayList<PageId>();
+    try {
+      for (PageId pageId : pageIds) {
+        Page page;
+        synchronized (frameLock(pageId)) {
+          page = pageIdToPages.get(pageId);
+          if (page == null || page.isDirty() == null) {
+            continue;
+          }
+          pin(pageId);
+          pinned.add(pageId);
+        }
+        synchronized (page) {
+          TransactionId dirtier = page.isDirty();
+          if (dirtier == null || pageIdToPages.get(pageId) != page) {
+            continue;
+          }
+          addDirtiedFlushedPage(dirtier, pageId);
+          addDirtyPage(pageId);
+          page.setLsn(logUpdate(dirtier, page));
+          lsns.put(pageId, page.getLsn());
+        }
+        List<Page> pages = logged.get(pageId.getTableId());
+        if (pages == null) {
+          pages = new ArrayList<Page>();
+          logged.put(pageId.getTableId(), pages);
+        }
+        pages.add(page);
+      }
+      if (lsns.isEmpty()) {
+        return;
+      }
+      Database.getLogFile().force();
+      for (Map.Entry<Integer, List<Page>> table : logged.entrySet()) {
+        DbFile file = Database.getCatalog().getDatabaseFile(table.getKey());
+        if (file instanceof HeapFile) {
+          ((HeapFile) file).writePages(table.getValue());
+        } else {
+          for (Page page : table.getValue()) {
+            file.writePage(page);
+          }
+        }
+      }
+      for (List<Page> pages : logged.values()) {
+        for (Page page : pages) {
+          PageId pageId = page.getId();
+          synchronized (page) {
+            // a concurrent flushPage may have logged and written it again
+            if (page.getLsn() == lsns.get(pageId)) {
+              page.markDirty(false, null);
+              dirtyPageTable.remove(pageId);
+            }
+          }
+        }
+      }
+    } finally {
+      for (PageId pageId : pinned) {
+        unpin(pageId);
+      }
+    }
+  }
+
+  /**
+   * Locks a page that a file is about to add at its end exclusively for a
+   * transaction, before the file counts it, so nobody else can lock the page
+   * until the transaction completes.
+   */
+  public void lockNewPage(TransactionId tid, PageId pageId) throws TransactionAbortedException {
+    lockManager.acquireLock(tid, pageId, Permissions.READ_WRITE);
+  }
+
+  /**
+   * Writes new pages that a transaction built outside the pool at the end of a
+   * file, as a bulk load does. Each page is locked exclusively (one lock per
+   * page, if lockNewPage did not lock it already) and logged as a whole-page UPDATE record whose before image is an
+   * empty page, so an abort empties it again. The log is forced once and the
+   * pages are written with one HeapFile.writePages call. The pages are not
+   * cached; any stale copy a concurrent reader brought in is discarded.
+   * 
+   * @param pages new pages of a single table
+   */
+  public void appendPages(TransactionId tid, List<Page> pages) throws DbException, IOException,
+      TransactionAbortedException {
+    if (pages.isEmpty()) {
+      return;
+    }
+    LogFile log = Database.getLogFile();
+    for (Page page : pages) {
+      PageId pageId = page.getId();
+      lockManager.acquireLock(tid, pageId, Permissions.READ_WRITE);
+      addDirtiedFlushedPage(tid, pageId);
+      addDirtyPage(pageId);
+      Page empty = new HeapPage(pageId, HeapPage.createEmptyPageData());
+      page.setLsn(log.logWrite(tid, empty, page));
+    }
+    log.force();
+    DbFile file = Database.getCatalog().getDatabaseFile(pages.get(0).getId().getTableId());
+    ((HeapFile) file).writePages(pages);
+    for (Page page : pages) {
+      discardPage(page.getId());
+    }
+  }
+
+  /**
+   * Log the changes to a page that is about to be written. A HeapPage's slot
+   * changes are logged instead of whole images when the log takes them and the
+   * page kept track of every change since it was last written.
+   * 
+   * @return the LSN of the update record
+   */
+  private long logUpdate(TransactionId dirtier, Page page) throws IOException {
+    LogFile log = Database.getLogFile();
+    // taken even when unused, so the page starts a new list for the next flush
+    List<HeapPage.SlotDelta> deltas = page instanceof HeapPage ? ((HeapPage) page)
+        .takeSlotDeltas() : null;
+    if (log.isPhysiologicalLogging() && deltas != null && !deltas.isEmpty()) {
+      return log.logSlotUpdates(dirtier, page.getId(), deltas);
+    }
+    return log.logWrite(dirtier, page.getBeforeImage(), page);
+  }
+
   /**
    * Write all pages of the specified transaction to disk.
    */
-  public synchronized void flushPages(TransactionId tid) throws IOException {
-    for (PageId pageId : pageIdToPages.keySet()) {
-      Page page = pageIdToPages.get(pageId);
-      if (page.isDirty() == tid) {
-        flushPage(pageId);
+  public void flushPages(TransactionId tid) throws IOException {
+    for (Page page : pageIdToPages.values()) {
+      if (tid.equals(page.isDirty())) {
+        flushPage(page.getId());
       }
     }
   }
 
-  private boolean isDirty(PageId pageId) {
-    return pageIdToPages.get(pageId).isDirty() != null;
+  private boolean isEvictable(PageId pageId) {
+    Page page = pageIdToPages.get(pageId);
+    return page != null && page.isDirty() == null && !isPinned(pageId);
   }
 
   /**
    * Discards a page from the buffer pool. Flushes the page to disk to ensure
-   * dirty pages are updated on disk.
+   * dirty pages are updated on disk. The page is chosen by the replacement
+   * policy among the clean, unpinned pages, since dirty pages may not be
+   * evicted. Only the victim's frame lock is held while it is removed.
    */
-  private synchronized void evictPage() throws DbException {
-    Iterator<PageId> pageIdIterator = pageIdToPages.keySet().iterator();
-    PageId pageId = null;
-    while (pageIdIterator.hasNext()) {
-      pageId = pageIdIterator.next();
-      if (!isDirty(pageId)) {
+  private void evictPage() throws DbException {
+    ReplacementPolicy.EvictionFilter evictable = new ReplacementPolicy.EvictionFilter() {
+      @Override
+      public boolean canEvict(PageId pageId) {
+        return isEvictable(pageId);
+      }
+    };
+    for (int attempt = 0; attempt < MAX_EVICTION_ATTEMPTS; attempt++) {
+      PageId pageId = replacementPolicy.chooseVictim(evictable);
+      if (pageId == null) {
         break;
       }
+      synchronized (frameLock(pageId)) {
+        // the victim may have been dirtied, pinned or evicted since it was
+        // chosen; if so, ask the policy for another one
+        if (!isEvictable(pageId)) {
+          continue;
+        }
+        prefetchTokens.remove(pageId);
+        pageIdToPages.remove(pageId);
+        currentPages.decrementAndGet();
+        replacementPolicy.pageRemoved(pageId);
+        return;
+      }
     }
-    if (pageId == null || isDirty(pageId)) {
-      throw new DbException("All pages in BufferPool are dirty and therefore none can be evicted.");
-    }
-    try {
-      flushPage(pageId);
-    } catch (IOException e) {
-      e.printStackTrace();
-      throw new DbException("IOException while flushing page during eviction.");
-    }
-    pageIdToPages.remove(pageId);
-    currentPages.decrementAndGet();
+    throw new DbException("All pages in BufferPool are dirty and therefore none can be evicted.");
   }
 
 }
@@ -0,0 +1,109 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit in a ring of frames,
+ * each with a reference bit that is set on every hit. The clock hand sweeps the
+ * ring, clearing reference bits, and evicts the first page whose bit is
+ * already clear.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+  private PageId[] frames;
+  private boolean[] referenced;
+  private final Map<PageId, Integer> pageIdToFrame;
+  private final Deque<Integer> freeFrames;
+  private int hand;
+
+  private ClockReplacementPolicy(int numPages) {
+    int capacity = Math.max(numPages, 1);
+    this.frames = new PageId[capacity];
+    this.referenced = new boolean[capacity];
+    this.pageIdToFrame = new HashMap<PageId, Integer>();
+    this.freeFrames = new ArrayDeque<Integer>();
+    for (int i = 0; i < capacity; i++) {
+      freeFrames.add(i);
+    }
+    this.hand = 0;
+  }
+
+  /**
+   * @param numPages the number of frames in the buffer pool using this policy
+   */
+  public static ClockReplacementPolicy create(int numPages) {
+    return new ClockReplacementPolicy(numPages);
+  }
+
+  @Override
+  public synchronized void pageAdmitted(PageId pageId) {
+    if (pageIdToFrame.containsKey(pageId)) {
+      pageAccessed(pageId);
+      return;
+    }
+    if (freeFrames.isEmpty()) {
+      grow();
+    }
+    int frame = freeFrames.poll();
+    frames[frame] = pageId;
+    referenced[frame] = true;
+    pageIdToFrame.put(pageId, frame);
+  }
+
+  @Override
+  public synchronized void pageAccessed(PageId pageId) {
+    Integer frame = pageIdToFrame.get(pageId);
+    if (frame != null) {
+      referenced[frame] = true;
+    }
+  }
+
+  @Override
+  public synchronized void pageRemoved(PageId pageId) {
+    Integer frame = pageIdToFrame.remove(pageId);
+    if (frame != null) {
+      frames[frame] = null;
+      referenced[frame] = false;
+      freeFrames.add(frame);
+    }
+  }
+
+  @Override
+  public synchronized PageId chooseVictim(EvictionFilter filter) {
+    // two full sweeps: the first may only be clearing reference bits
+    for (int step = 0; step < 2 * frames.length; step++) {
+      int frame = hand;
+      hand = (hand + 1) % frames.length;
+      PageId pageId = frames[frame];
+      if (pageId == null || !filter.canEvict(pageId)) {
+        continue;
+      }
+      if (referenced[frame]) {
+        referenced[frame] = false;
+        continue;
+      }
+      return pageId;
+    }
+    return null;
+  }
+
+  /**
+   * The buffer pool may briefly hold more pages than it was sized for (pages
+   * replaced during abort, for example), so the ring grows rather than fail.
+   */
+  private void grow() {
+    int oldCapacity = frames.length;
+    PageId[] newFrames = new PageId[oldCapacity * 2];
+    boolean[] newReferenced = new boolean[oldCapacity * 2];
+    System.arraycopy(frames, 0, newFrames, 0, oldCapacity);
+    System.arraycopy(referenced, 0, newReferenced, 0, oldCapacity);
+    frames = newFrames;
+    referenced = newReferenced;
+    for (int i = oldCapacity; i < newFrames.length; i++) {
+      freeFrames.add(i);
+    }
+  }
+}
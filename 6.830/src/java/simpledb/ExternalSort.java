@@ -0,0 +1,254 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Sorts the tuples of an iterator on one field within a memory budget.
+ * Tuples are read in runs that fit the budget and each run is sorted in
+ * memory. If the input ends within the first run, the sorted run is returned
+ * as it is; otherwise every run is spilled to a SpillFile, and the runs are
+ * merged as the result is read. A merge reads one page of each run at a time,
+ * so when there are more runs than pages in the budget, groups of runs are
+ * first merged into longer ones.
+ *
+ * @see SpillFile
+ */
+class ExternalSort {
+
+  private ExternalSort() {
+  }
+
+  /** @return the number of tuples of a TupleDesc that fit in memoryPages */
+  static int runSize(TupleDesc td, int memoryPages) {
+    return Math.max(1, memoryPages * BufferPool.getPageSize() / td.getSize());
+  }
+
+  /** @return the number of runs merged at once within memoryPages */
+  static int fanIn(int memoryPages) {
+    // one page for each run, and one for the output
+    return Math.max(2, memoryPages - 1);
+  }
+
+  /**
+   * Reads the rest of an open iterator and returns its tuples in order. The
+   * result is not open; closing it deletes any runs it spilled.
+   *
+   * @param child the tuples to sort
+   * @param field the field to sort on
+   * @param asc true to sort in ascending order
+   * @param memoryPages the number of pages of tuples to sort in memory at once
+   */
+  static DbIterator sort(DbIterator child, int field, boolean asc, int memoryPages)
+      throws DbException, TransactionAbortedException {
+    TupleDesc td = child.getTupleDesc();
+    TupleComparator comparator = new TupleComparator(field, asc);
+    int runSize = runSize(td, memoryPages);
+    List<SpillFile> runs = new ArrayList<SpillFile>();
+    ArrayList<Tuple> run = new ArrayList<Tuple>();
+    try {
+      while (child.hasNext()) {
+        run.add(child.next());
+        if (run.size() == runSize && child.hasNext()) {
+          runs.add(spill(td, run, comparator));
+          run.clear();
+        }
+      }
+      Collections.sort(run, comparator);
+      if (runs.isEmpty()) {
+        return new TupleIterator(td, run);
+      }
+      if (!run.isEmpty()) {
+        runs.add(spill(td, run, comparator));
+      }
+      // the last run is on disk now; free it before merging
+      run = null;
+      int fanIn = fanIn(memoryPages);
+      while (runs.size() > fanIn) {
+        runs = mergePass(td, runs, comparator, fanIn);
+      }
+    } catch (IOException e) {
+      for (SpillFile file : runs) {
+        file.delete();
+      }
+      throw new DbException("cannot spill sort run: " + e.getMessage());
+    }
+    return new Merge(td, runs, comparator);
+  }
+
+  private static SpillFile spill(TupleDesc td, List<Tuple> run, TupleComparator comparator)
+      throws IOException {
+    Collections.sort(run, comparator);
+    SpillFile file = new SpillFile(td);
+    for (Tuple t : run) {
+      file.add(t);
+    }
+    return file;
+  }
+
+  /**
+   * Merges each group of fanIn runs into one run, deleting the runs merged.
+   *
+   * @return the merged runs
+   */
+  private static List<SpillFile> mergePass(TupleDesc td, List<SpillFile> runs,
+      TupleComparator comparator, int fanIn) throws IOException, DbException,
+      TransactionAbortedException {
+    List<SpillFile> merged = new ArrayList<SpillFile>();
+    try {
+      for (int i = 0; i < runs.size(); i += fanIn) {
+        List<SpillFile> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+        if (group.size() == 1) {
+          merged.add(group.get(0));
+          continue;
+        }
+        SpillFile file = new SpillFile(td);
+        merged.add(file);
+        Merge merge = new Merge(td, new ArrayList<SpillFile>(group), comparator);
+        merge.open();
+        while (merge.hasNext()) {
+          file.add(merge.next());
+        }
+        merge.close();
+      }
+    } catch (IOException e) {
+      for (SpillFile file : merged) {
+        file.delete();
+      }
+      throw e;
+    }
+    return merged;
+  }
+
+  /**
+   * Merges sorted runs, reading each one sequentially. The next tuple of every
+   * run is kept in a tournament tree of losers, so that each tuple returned
+   * takes one comparison per level of the tree to replace.
+   */
+  private static class Merge implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TupleDesc td;
+    private final List<SpillFile> files;
+    private final TupleComparator comparator;
+    private transient DbIterator[] runs = null;
+    // the next tuple of each run, or null once the run is exhausted
+    private transient Tuple[] heads = null;
+    // tree[0] is the run holding the smallest head; tree[1..k-1] are the runs
+    // that lost the match at each internal node, with the children of node n
+    // at 2n and 2n + 1 and run i at leaf k + i
+    private transient int[] tree = null;
+
+    Merge(TupleDesc td, List<SpillFile> files, TupleComparator comparator) {
+      this.td = td;
+      this.files = files;
+      this.comparator = comparator;
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+      int k = files.size();
+      runs = new DbIterator[k];
+      heads = new Tuple[k];
+      for (int i = 0; i < k; i++) {
+        try {
+          runs[i] = files.get(i).iterator();
+        } catch (IOException e) {
+          throw new DbException("cannot read sort run: " + e.getMessage());
+        }
+        runs[i].open();
+        heads[i] = runs[i].hasNext() ? runs[i].next() : null;
+      }
+      // play every match from the leaves up
+      tree = new int[Math.max(1, k)];
+      int[] winners = new int[2 * k];
+      for (int i = 0; i < k; i++) {
+        winners[k + i] = i;
+      }
+      for (int node = k - 1; node >= 1; node--) {
+        int a = winners[2 * node];
+        int b = winners[2 * node + 1];
+        if (beats(a, b)) {
+          winners[node] = a;
+          tree[node] = b;
+        } else {
+          winners[node] = b;
+          tree[node] = a;
+        }
+      }
+      tree[0] = k > 1 ? winners[1] : 0;
+    }
+
+    /** @return true if the head of run a comes before the head of run b */
+    private boolean beats(int a, int b) {
+      if (heads[b] == null) {
+        return true;
+      }
+      if (heads[a] == null) {
+        return false;
+      }
+      return comparator.compare(heads[a], heads[b]) <= 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return heads != null && heads.length > 0 && heads[tree[0]] != null;
+    }
+
+    @Override
+    public Tuple next() throws DbException, TransactionAbortedException {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int winner = tree[0];
+      Tuple result = heads[winner];
+      heads[winner] = runs[winner].hasNext() ? runs[winner].next() : null;
+      // replay the matches on the path from the winner's leaf to the root
+      for (int node = (winner + runs.length) / 2; node >= 1; node /= 2) {
+        if (beats(tree[node], winner)) {
+          int loser = winner;
+          winner = tree[node];
+          tree[node] = loser;
+        }
+      }
+      tree[0] = winner;
+      return result;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+      closeRuns();
+      open();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+      return td;
+    }
+
+    private void closeRuns() {
+      if (runs != null) {
+        for (DbIterator run : runs) {
+          if (run != null) {
+            run.close();
+          }
+        }
+        runs = null;
+      }
+      heads = null;
+      tree = null;
+    }
+
+    @Override
+    public void close() {
+      closeRuns();
+      for (SpillFile file : files) {
+        file.delete();
+      }
+    }
+  }
+}
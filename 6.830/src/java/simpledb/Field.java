@@ -3,6 +3,7 @@ package simpledb;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for values of fields in tuples in SimpleDB.
@@ -16,6 +17,15 @@ public interface Field extends Serializable {
    */
   void serialize(DataOutputStream dos) throws IOException;
 
+  /**
+   * Write the bytes representing this field to the specified buffer at its
+   * current position, in the same format as {@link #serialize(DataOutputStream)}.
+   * 
+   * @param buffer The buffer to write to; its position is advanced past the
+   *          field.
+   */
+  void serialize(ByteBuffer buffer);
+
   /**
    * Compare the value of this field object to the passed in value.
    * 
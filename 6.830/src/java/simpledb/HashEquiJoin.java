@@ -1,22 +1,84 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements an equality join as a hybrid hash join.
+ * The left child is the build side: its tuples are loaded into a hash table,
+ * and each tuple of the right child probes it.
+ * <p>
+ * When the build side outgrows the memory budget, both sides are split by a
+ * hash of the join key into {@link #FANOUT} partitions. Partition 0 stays in
+ * memory while it fits and is joined as the right child streams by; the
+ * others are spilled to temporary files and joined pairwise afterwards, so
+ * each input is read about twice whatever its size. A spilled partition that
+ * is still too large is split again with a different hash. One that cannot be
+ * split, because too many tuples share a key, is joined a memory-sized chunk
+ * at a time against its probe partition instead.
  */
 public class HashEquiJoin extends Operator {
 
   private static final long serialVersionUID = 1L;
+
+  /** Pages of build tuples held in memory by default. */
+  public static final int DEFAULT_MEMORY_PAGES = 256;
+
+  /** Number of partitions a build side that does not fit is split into. */
+  static final int FANOUT = 16;
+
+  /** Number of times a partition can be split before it is joined in chunks. */
+  static final int MAX_LEVEL = 4;
+
   private JoinPredicate pred;
   private DbIterator child1, child2;
   private TupleDesc comboTD;
+  private final int memoryPages;
   transient private Tuple t1 = null;
   transient private Tuple t2 = null;
 
+  /**
+   * A build side and a probe side to join: either the children, or a pair of
+   * spilled partitions of an earlier pass.
+   */
+  private static class Pass {
+    final DbIterator build;
+    final DbIterator probe;
+    final SpillFile buildFile; // null for the children
+    final SpillFile probeFile;
+    final int level; // the hash level that splits this pass
+
+    int buildCount = 0;
+    SpillFile[] buildPartitions = null; // set once the build side is split
+    SpillFile[] probePartitions = null;
+    boolean residentSpilled = false; // partition 0 did not fit either
+    boolean chunked = false; // the build side is loaded a chunk at a time
+
+    Pass(DbIterator build, DbIterator probe, int level) {
+      this.build = build;
+      this.probe = probe;
+      this.buildFile = null;
+      this.probeFile = null;
+      this.level = level;
+    }
+
+    Pass(SpillFile buildFile, SpillFile probeFile, int level) throws IOException {
+      this.build = buildFile.iterator();
+      this.probe = probeFile.iterator();
+      this.buildFile = buildFile;
+      this.probeFile = probeFile;
+      this.level = level;
+    }
+  }
+
+  transient private Pass pass = null;
+  transient private LinkedList<Pass> pending = new LinkedList<Pass>();
+
   /**
    * Constructor. Accepts to children to join and the predicate to join them on
    * 
@@ -25,9 +87,23 @@ public class HashEquiJoin extends Operator {
    * @param child2 Iterator for the right(inner) relation to join
    */
   public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+    this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Constructor with a memory budget for the build side.
+   * 
+   * @param p The predicate to use to join the children
+   * @param child1 Iterator for the left(outer) relation, the build side
+   * @param child2 Iterator for the right(inner) relation, the probe side
+   * @param memoryPages The number of pages of left tuples to hold in memory
+   *          before spilling partitions to disk
+   */
+  public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
     this.pred = p;
     this.child1 = child1;
     this.child2 = child2;
+    this.memoryPages = memoryPages;
     comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
   }
 
@@ -49,49 +125,216 @@ public class HashEquiJoin extends Operator {
   }
 
   HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-  public final static int MAP_SIZE = 20000;
 
-  private boolean loadMap() throws DbException, TransactionAbortedException {
-    int cnt = 0;
+  /** @return the number of build tuples the memory budget holds */
+  private int maxResidentTuples() {
+    return Math.max(1, memoryPages * BufferPool.getPageSize() / child1.getTupleDesc().getSize());
+  }
+
+  /** @return the partition of a join key; each level hashes differently */
+  static int partition(Field key, int level) {
+    int h = key.hashCode() ^ (level * 0x9e3779b9);
+    h *= 0x85ebca6b;
+    h ^= h >>> 15;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 13;
+    return (h & 0x7fffffff) % FANOUT;
+  }
+
+  /** Adds a tuple to a partition, creating its spill file on first use. */
+  private static void spill(SpillFile[] partitions, int part, Tuple t) throws DbException {
+    try {
+      if (partitions[part] == null) {
+        partitions[part] = new SpillFile(t.getTupleDesc());
+      }
+      partitions[part].add(t);
+    } catch (IOException e) {
+      throw new DbException("cannot spill join partition: " + e.getMessage());
+    }
+  }
+
+  private void addToMap(Tuple t) {
+    Object key = t.getField(pred.getField1());
+    ArrayList<Tuple> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<Tuple>();
+      map.put(key, list);
+    }
+    list.add(t);
+  }
+
+  /**
+   * Loads the build side of the current pass: into the hash table while it
+   * fits, and into partitions once it does not. In chunked mode, loads only
+   * the next chunk.
+   */
+  private void loadMap() throws DbException, TransactionAbortedException {
     map.clear();
-    while (child1.hasNext()) {
-      t1 = child1.next();
-      ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-      if (list == null) {
-        list = new ArrayList<Tuple>();
-        map.put(t1.getField(pred.getField1()), list);
+    int resident = 0;
+    int limit = maxResidentTuples();
+    while (pass.build.hasNext()) {
+      t1 = pass.build.next();
+      pass.buildCount++;
+      if (pass.buildPartitions != null) {
+        int part = partition(t1.getField(pred.getField1()), pass.level);
+        if (part != 0 || pass.residentSpilled) {
+          spill(pass.buildPartitions, part, t1);
+          continue;
+        }
+      }
+      addToMap(t1);
+      if (++resident <= limit) {
+        continue;
+      }
+      if (pass.chunked) {
+        return;
+      } else if (pass.buildPartitions == null && pass.level < MAX_LEVEL) {
+        resident = splitMap();
+      } else if (pass.buildPartitions != null) {
+        // the resident partition does not fit either
+        for (List<Tuple> tuples : map.values()) {
+          for (Tuple t : tuples) {
+            spill(pass.buildPartitions, 0, t);
+          }
+        }
+        map.clear();
+        resident = 0;
+        pass.residentSpilled = true;
+      } else {
+        pass.chunked = true;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Starts partitioning the current pass, spilling every tuple in the hash
+   * table but those of partition 0.
+   * 
+   * @return the number of tuples left in the hash table
+   */
+  private int splitMap() throws DbException {
+    pass.buildPartitions = new SpillFile[FANOUT];
+    pass.probePartitions = new SpillFile[FANOUT];
+    int resident = 0;
+    for (Iterator<ArrayList<Tuple>> it = map.values().iterator(); it.hasNext();) {
+      ArrayList<Tuple> tuples = it.next();
+      int part = partition(tuples.get(0).getField(pred.getField1()), pass.level);
+      if (part == 0) {
+        resident += tuples.size();
+        continue;
+      }
+      for (Tuple t : tuples) {
+        spill(pass.buildPartitions, part, t);
+      }
+      it.remove();
+    }
+    return resident;
+  }
+
+  /** Opens a pass and loads its build side. */
+  private void startPass(Pass next) throws DbException, TransactionAbortedException {
+    pass = next;
+    if (pass.buildFile != null) {
+      pass.build.open();
+      pass.probe.open();
+    }
+    listIt = null;
+    loadMap();
+  }
+
+  /**
+   * Ends the current pass, queueing a pass for every spilled partition that
+   * has tuples on both sides.
+   */
+  private void finishPass() throws DbException {
+    Pass done = pass;
+    pass = null;
+    if (done.buildPartitions != null) {
+      for (int part = 0; part < FANOUT; part++) {
+        SpillFile build = done.buildPartitions[part];
+        SpillFile probe = done.probePartitions[part];
+        if (build != null && probe != null) {
+          // a partition that took every tuple will not split by key
+          int level = build.size() == done.buildCount ? MAX_LEVEL : done.level + 1;
+          try {
+            pending.add(new Pass(build, probe, level));
+          } catch (IOException e) {
+            throw new DbException("cannot read join partition: " + e.getMessage());
+          }
+        } else {
+          if (build != null) {
+            build.delete();
+          }
+          if (probe != null) {
+            probe.delete();
+          }
+        }
+      }
+      done.buildPartitions = null;
+      done.probePartitions = null;
+    }
+    discard(done);
+  }
+
+  /** Closes a pass and deletes the spill files it still owns. */
+  private static void discard(Pass pass) {
+    if (pass.buildFile != null) {
+      pass.build.close();
+      pass.probe.close();
+      pass.buildFile.delete();
+      pass.probeFile.delete();
+    }
+    for (SpillFile[] partitions : new SpillFile[][] { pass.buildPartitions,
+        pass.probePartitions }) {
+      if (partitions != null) {
+        for (SpillFile file : partitions) {
+          if (file != null) {
+            file.delete();
+          }
+        }
       }
-      list.add(t1);
-      if (cnt++ == MAP_SIZE)
-        return true;
     }
-    return cnt > 0;
+  }
 
+  /** Drops the current pass and every pending one. */
+  private void discardPasses() {
+    if (pass != null) {
+      discard(pass);
+      pass = null;
+    }
+    for (Pass p : pending) {
+      discard(p);
+    }
+    pending.clear();
+    map.clear();
+    listIt = null;
   }
 
   @Override
   public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
     child1.open();
     child2.open();
-    loadMap();
+    startPass(new Pass(child1, child2, 0));
     super.open();
   }
 
   @Override
   public void close() {
     super.close();
+    discardPasses();
     child2.close();
     child1.close();
     this.t1 = null;
     this.t2 = null;
-    this.listIt = null;
-    this.map.clear();
   }
 
   @Override
   public void rewind() throws DbException, TransactionAbortedException {
+    discardPasses();
     child1.rewind();
     child2.rewind();
+    startPass(new Pass(child1, child2, 0));
   }
 
   transient Iterator<Tuple> listIt = null;
@@ -132,32 +375,50 @@ public class HashEquiJoin extends Operator {
 
   @Override
   protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    if (listIt != null && listIt.hasNext()) {
-      return processList();
+    if (pass == null) {
+      // every pass is done; hasNext() asks again once the join is exhausted
+      return null;
     }
+    while (true) {
+      if (listIt != null && listIt.hasNext()) {
+        return processList();
+      }
+      listIt = null;
 
-    // loop around child2
-    while (child2.hasNext()) {
-      t2 = child2.next();
-
-      // if match, create a combined tuple and fill it with the values
-      // from both tuples
-      ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-      if (l == null)
+      // loop around the probe side
+      if (pass.probe.hasNext()) {
+        t2 = pass.probe.next();
+        Object key = t2.getField(pred.getField2());
+        if (pass.buildPartitions != null) {
+          int part = partition((Field) key, pass.level);
+          if (part != 0 || pass.residentSpilled) {
+            // a probe tuple whose build partition is empty has no match
+            if (pass.buildPartitions[part] != null) {
+              spill(pass.probePartitions, part, t2);
+            }
+            continue;
+          }
+        }
+        ArrayList<Tuple> l = map.get(key);
+        if (l != null) {
+          listIt = l.iterator();
+        }
         continue;
-      listIt = l.iterator();
-
-      return processList();
-
-    }
+      }
 
-    // child2 is done: advance child1
-    child2.rewind();
-    if (loadMap()) {
-      return fetchNext();
+      // the probe side is done: load the next chunk, or move on to the next
+      // pass
+      if (pass.chunked && pass.build.hasNext()) {
+        pass.probe.rewind();
+        loadMap();
+        continue;
+      }
+      finishPass();
+      if (pending.isEmpty()) {
+        return null;
+      }
+      startPass(pending.removeFirst());
     }
-
-    return null;
   }
 
   @Override
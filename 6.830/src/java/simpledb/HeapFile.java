@@ -4,7 +4,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -13,6 +23,36 @@ import java.util.concurrent.atomic.AtomicInteger;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * All page I/O uses positional reads and writes on the file's channel, so
+ * concurrent reads and writes of different pages neither share a file pointer
+ * nor wait for each other. readPages and writePages transfer a batch of
+ * pages, with a single call for each run of consecutive pages.
+ * <p>
+ * Pages can optionally be read through memory mappings of the file instead of
+ * read calls. The file is mapped in chunks of MAP_CHUNK_PAGES pages, and a
+ * chunk is mapped again when the file has grown past its mapping. Readers of
+ * a mapped file neither make a system call nor share a file pointer, so reads
+ * of different pages proceed in parallel. Pages are still written through
+ * the file; the mappings see those writes through the operating system's
+ * page cache.
+ * <p>
+ * Inserts find room through a free-space map: the set of pages that may have
+ * an empty slot. It is built from the page headers on disk by the first insert
+ * or delete after the file is opened. Deletes add their page, and an insert
+ * drops a page it finds full, so an insert only locks pages that had room at
+ * some point, and adds a page to the file only when none has room. An abort
+ * puts back every page its transaction changed, since the slots it filled are
+ * empty again.
+ * <p>
+ * bulkAppend loads many tuples without going through insertTuple: it fills
+ * new pages outside the BufferPool and hands them to
+ * BufferPool.appendPages in batches.
+ * <p>
+ * New pages are written to the end of the file, empty, before numPages counts
+ * them, so readers and inserts never ask for a page the file does not hold
+ * yet. Recovery counts the pages it writes past the end, which a crash kept
+ * from being written, through countPagesTo.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -20,9 +60,25 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class HeapFile implements DbFile {
 
   private final File backingFile;
-  private final RandomAccessFile accessFile;
+  private final FileChannel channel;
   private final TupleDesc tupleDesc;
   private final AtomicInteger numberOfPages;
+  // serializes adding pages to the end of the file
+  private final Object extendLock = new Object();
+
+  /** Pages bulkAppend builds before it hands them to the BufferPool. */
+  static final int BULK_APPEND_BATCH_PAGES = 64;
+
+  /** Pages covered by each memory-mapped chunk of the file. */
+  static final int MAP_CHUNK_PAGES = 4096;
+
+  private volatile boolean memoryMapped = false;
+  // the mapped chunks, null where not mapped yet; replaced under mapLock
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+  private final Object mapLock = new Object();
+
+  // page numbers of the pages that may have an empty slot; built lazily
+  private volatile NavigableSet<Integer> freeSpaceMap = null;
 
   /**
    * Constructs a heap file backed by the specified file.
@@ -32,7 +88,7 @@ public class HeapFile implements DbFile {
   public HeapFile(File f, TupleDesc td) {
     this.backingFile = f;
     try {
-      this.accessFile = new RandomAccessFile(f, "rw");
+      this.channel = new RandomAccessFile(f, "rw").getChannel();
     } catch (FileNotFoundException e) {
       throw new RuntimeException(e);
     }
@@ -73,35 +129,203 @@ public class HeapFile implements DbFile {
     return tupleDesc;
   }
 
+  /**
+   * Enables or disables reading pages through memory mappings of the file.
+   * Disabling drops the mappings.
+   */
+  public void setMemoryMapped(boolean memoryMapped) {
+    synchronized (mapLock) {
+      this.memoryMapped = memoryMapped;
+      if (!memoryMapped) {
+        chunks = new MappedByteBuffer[0];
+      }
+    }
+  }
+
+  public boolean isMemoryMapped() {
+    return memoryMapped;
+  }
+
+  /**
+   * @return a buffer holding exactly the bytes of the page in the file's
+   *         mapping, or null if the page lies past the end of the file
+   */
+  ByteBuffer mappedPage(PageId pid) throws IOException {
+    int pageSize = BufferPool.getPageSize();
+    int chunk = pid.pageNumber() / MAP_CHUNK_PAGES;
+    int end = (pid.pageNumber() % MAP_CHUNK_PAGES + 1) * pageSize;
+    MappedByteBuffer[] mapped = chunks;
+    MappedByteBuffer buffer = chunk < mapped.length ? mapped[chunk] : null;
+    if (buffer == null || buffer.capacity() < end) {
+      buffer = remap(chunk);
+      if (buffer == null || buffer.capacity() < end) {
+        return null;
+      }
+    }
+    // each reader gets its own position and limit
+    ByteBuffer page = buffer.duplicate();
+    page.limit(end);
+    page.position(end - pageSize);
+    return page.slice();
+  }
+
+  /**
+   * Map the chunk again to cover as much of it as the file holds now.
+   * 
+   * @return the new mapping, or null if the file ends before the chunk
+   */
+  private MappedByteBuffer remap(int chunk) throws IOException {
+    synchronized (mapLock) {
+      long chunkSize = (long) MAP_CHUNK_PAGES * BufferPool.getPageSize();
+      long start = chunk * chunkSize;
+      long length = Math.min(chunkSize, channel.size() - start);
+      if (length <= 0) {
+        return null;
+      }
+      MappedByteBuffer[] mapped = chunks;
+      if (chunk < mapped.length && mapped[chunk] != null && mapped[chunk].capacity() >= length) {
+        // another reader got here first
+        return mapped[chunk];
+      }
+      MappedByteBuffer[] remapped = Arrays.copyOf(mapped, Math.max(mapped.length, chunk + 1));
+      remapped[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      chunks = remapped;
+      return remapped[chunk];
+    }
+  }
+
   // see DbFile.java for javadocs
   @Override
   public Page readPage(PageId pid) {
     int pageSize = BufferPool.getPageSize();
-    int offset = pageSize * pid.pageNumber();
     try {
       byte[] readData = new byte[pageSize];
-      accessFile.seek(offset);
-      int numberOfBytesRead = accessFile.read(readData);
-      if (numberOfBytesRead == BufferPool.getPageSize()) {
+      if (memoryMapped) {
+        ByteBuffer mapped = mappedPage(pid);
+        if (mapped == null) {
+          throw new RuntimeException("Did not read entire page successfully.");
+        }
+        mapped.get(readData);
         return new HeapPage(pid, readData);
       }
-      throw new RuntimeException("Did not read entire page successfully.");
+      ByteBuffer buffer = ByteBuffer.wrap(readData);
+      readFully(buffer, (long) pageSize * pid.pageNumber());
+      if (buffer.hasRemaining()) {
+        throw new RuntimeException("Did not read entire page successfully.");
+      }
+      return new HeapPage(pid, readData);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
-  // see DbFile.java for javadocs
-  @Override
-  public void writePage(Page page) throws IOException {
+  /**
+   * Reads a batch of pages of this file. Each run of consecutive page numbers
+   * is read with a single call.
+   * 
+   * @return the pages, in the order of pids
+   */
+  public List<Page> readPages(List<PageId> pids) {
+    Page[] pages = new Page[pids.size()];
+    if (memoryMapped) {
+      for (int i = 0; i < pages.length; i++) {
+        pages[i] = readPage(pids.get(i));
+      }
+      return Arrays.asList(pages);
+    }
     int pageSize = BufferPool.getPageSize();
-    int offset = pageSize * page.getId().pageNumber();
+    List<Integer> order = byPageNumber(pids);
     try {
-      accessFile.seek(offset);
-      accessFile.write(page.getPageData());
+      for (int start = 0, end; start < order.size(); start = end) {
+        end = endOfRun(order, start, pids);
+        int first = pids.get(order.get(start)).pageNumber();
+        ByteBuffer buffer = ByteBuffer.allocate((end - start) * pageSize);
+        readFully(buffer, (long) pageSize * first);
+        if (buffer.hasRemaining()) {
+          throw new RuntimeException("Did not read entire page successfully.");
+        }
+        for (int i = start; i < end; i++) {
+          byte[] readData = Arrays.copyOfRange(buffer.array(), (i - start) * pageSize,
+              (i - start + 1) * pageSize);
+          pages[order.get(i)] = new HeapPage(pids.get(order.get(i)), readData);
+        }
+      }
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+    return Arrays.asList(pages);
+  }
+
+  // see DbFile.java for javadocs
+  @Override
+  public void writePage(Page page) throws IOException {
+    int pageSize = BufferPool.getPageSize();
+    writeFully(ByteBuffer.wrap(page.getPageData()), (long) pageSize * page.getId().pageNumber());
+  }
+
+  /**
+   * Writes a batch of pages of this file. Each run of consecutive page
+   * numbers is written with a single call.
+   */
+  public void writePages(List<Page> pages) throws IOException {
+    int pageSize = BufferPool.getPageSize();
+    List<PageId> pids = new ArrayList<PageId>(pages.size());
+    for (Page page : pages) {
+      pids.add(page.getId());
+    }
+    List<Integer> order = byPageNumber(pids);
+    for (int start = 0, end; start < order.size(); start = end) {
+      end = endOfRun(order, start, pids);
+      ByteBuffer buffer = ByteBuffer.allocate((end - start) * pageSize);
+      for (int i = start; i < end; i++) {
+        buffer.put(pages.get(order.get(i)).getPageData());
+      }
+      buffer.flip();
+      writeFully(buffer, (long) pageSize * pids.get(order.get(start)).pageNumber());
+    }
+  }
+
+  /** @return the indexes of pids, ordered by page number */
+  private static List<Integer> byPageNumber(final List<PageId> pids) {
+    List<Integer> order = new ArrayList<Integer>(pids.size());
+    for (int i = 0; i < pids.size(); i++) {
+      order.add(i);
+    }
+    Collections.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Integer.compare(pids.get(a).pageNumber(), pids.get(b).pageNumber());
+      }
+    });
+    return order;
+  }
+
+  /**
+   * @return the end of the run of consecutive page numbers that begins at
+   *         start in order
+   */
+  private static int endOfRun(List<Integer> order, int start, List<PageId> pids) {
+    int end = start + 1;
+    while (end < order.size()
+        && pids.get(order.get(end)).pageNumber() == pids.get(order.get(end - 1)).pageNumber() + 1) {
+      end++;
+    }
+    return end;
+  }
+
+  /** Read into the buffer from the position until it is full or the file ends. */
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return;
+      }
+    }
+  }
+
+  private void writeFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
   }
 
   /**
@@ -111,9 +335,89 @@ public class HeapFile implements DbFile {
     return numberOfPages.get();
   }
 
+  /**
+   * Make numPages at least pages, once the file holds that many, as after
+   * recovery wrote pages past the end of the file.
+   */
+  void countPagesTo(int pages) {
+    while (true) {
+      int counted = numberOfPages.get();
+      if (counted >= pages || numberOfPages.compareAndSet(counted, pages)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Adds empty pages to the end of the file and only then counts them. If tid
+   * is not null, the new pages are locked for it before they are counted.
+   * 
+   * @return the page number of the first new page
+   */
+  private int extend(TransactionId tid, int count) throws IOException,
+      TransactionAbortedException {
+    synchronized (extendLock) {
+      int first = numberOfPages.get();
+      if (tid != null) {
+        for (int pageNumber = first; pageNumber < first + count; pageNumber++) {
+          Database.getBufferPool().lockNewPage(tid, new HeapPageId(getId(), pageNumber));
+        }
+      }
+      int pageSize = BufferPool.getPageSize();
+      writeFully(ByteBuffer.allocate(count * pageSize), (long) pageSize * first);
+      countPagesTo(first + count);
+      return first;
+    }
+  }
+
+  /**
+   * @return the free-space map, building it from the page headers on disk if
+   *         it is not built yet
+   */
+  private NavigableSet<Integer> freeSpaceMap() throws IOException {
+    NavigableSet<Integer> map = freeSpaceMap;
+    if (map != null) {
+      return map;
+    }
+    synchronized (this) {
+      if (freeSpaceMap == null) {
+        int numberOfTupleSlots = HeapPage.getNumTuples(tupleDesc);
+        int headerSize = HeapPage.getHeaderSize(numberOfTupleSlots);
+        map = new ConcurrentSkipListSet<Integer>();
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        for (int pageNumber = 0; pageNumber < numberOfPages.get(); pageNumber++) {
+          header.clear();
+          Arrays.fill(header.array(), (byte) 0);
+          readFully(header, (long) BufferPool.getPageSize() * pageNumber + HeapPage.LSN_SIZE);
+          int usedSlots = HeapPage.countUsedSlots(HeapPage.readSlotBitmap(header.array(), 0,
+              numberOfTupleSlots));
+          if (usedSlots < numberOfTupleSlots) {
+            map.add(pageNumber);
+          }
+        }
+        freeSpaceMap = map;
+      }
+      return freeSpaceMap;
+    }
+  }
+
+  /**
+   * Puts a page back into the free-space map, as when the transaction that
+   * filled it aborted. A page without room is dropped again by the next insert
+   * that tries it.
+   */
+  void addFreePage(int pageNumber) {
+    NavigableSet<Integer> map = freeSpaceMap;
+    // a map built later reads the page header from disk
+    if (map != null) {
+      map.add(pageNumber);
+    }
+  }
+
   private HeapPage attemptTupleInsert(TransactionId tid, Tuple t, int pageNumber)
           throws DbException, TransactionAbortedException {
     PageId pageId = new HeapPageId(getId(), pageNumber);
+    boolean held = Database.getBufferPool().holdsLock(tid, pageId);
     HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId,
             Permissions.READ_ONLY);
     int numberOfEmptySlots = heapPage.getNumEmptySlots();
@@ -122,7 +426,10 @@ public class HeapFile implements DbFile {
       heapPage.insertTuple(t);
       return heapPage;
     }
-    Database.getBufferPool().releasePage(tid, pageId);
+    // under two-phase locking, a lock taken before must be kept
+    if (!held) {
+      Database.getBufferPool().releasePage(tid, pageId);
+    }
     return null;
   }
 
@@ -130,25 +437,71 @@ public class HeapFile implements DbFile {
   @Override
   public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException, IOException,
       TransactionAbortedException {
+    NavigableSet<Integer> freePages = freeSpaceMap();
     HeapPage insertedPage = null;
-    for (int pageNumber = 0; pageNumber < numberOfPages.get(); pageNumber++) {
-      insertedPage = attemptTupleInsert(tid, t, pageNumber);
-      if (insertedPage != null) {
-        break;
+    while (insertedPage == null) {
+      for (Integer pageNumber : freePages) {
+        insertedPage = attemptTupleInsert(tid, t, pageNumber);
+        if (insertedPage != null) {
+          if (insertedPage.getNumEmptySlots() == 0) {
+            freePages.remove(pageNumber);
+          }
+          break;
+        }
+        freePages.remove(pageNumber);
+      }
+      if (insertedPage == null) {
+        // no page has room: add an empty one to the end of the file, where a
+        // concurrent insert may still take it first
+        freePages.add(extend(null, 1));
       }
-    }
-    if (insertedPage == null) {
-      int newPageNumber = numberOfPages.getAndIncrement();
-      HeapPage newHeapPage = new HeapPage(new HeapPageId(getId(), newPageNumber),
-          HeapPage.createEmptyPageData());
-      newHeapPage.insertTuple(t);
-      insertedPage = attemptTupleInsert(tid, t, newPageNumber);
     }
     ArrayList<Page> affectedPages = new ArrayList<Page>();
     affectedPages.add(insertedPage);
     return affectedPages;
   }
 
+  /**
+   * Appends tuples to new pages at the end of the file on behalf of a
+   * transaction. Tuples are taken a batch of pages at a time; the file is
+   * extended by as many pages as the batch fills, locked for the transaction,
+   * and the pages are filled, then logged as whole pages and written by
+   * BufferPool.appendPages, without being cached. Free space on existing pages
+   * is not used.
+   * 
+   * @return the number of tuples appended
+   * @see BufferPool#appendPages
+   */
+  public int bulkAppend(TransactionId tid, Iterator<Tuple> tuples) throws DbException, IOException,
+      TransactionAbortedException {
+    int slotsPerPage = HeapPage.getNumTuples(tupleDesc);
+    int count = 0;
+    List<Tuple> pending = new ArrayList<Tuple>();
+    HeapPage page = null;
+    while (tuples.hasNext()) {
+      pending.clear();
+      while (tuples.hasNext() && pending.size() < BULK_APPEND_BATCH_PAGES * slotsPerPage) {
+        pending.add(tuples.next());
+      }
+      int first = extend(tid, (pending.size() + slotsPerPage - 1) / slotsPerPage);
+      List<Page> batch = new ArrayList<Page>(BULK_APPEND_BATCH_PAGES);
+      for (int i = 0; i < pending.size(); i++) {
+        if (i % slotsPerPage == 0) {
+          page = new HeapPage(new HeapPageId(getId(), first + i / slotsPerPage), HeapPage
+              .createEmptyPageData());
+          batch.add(page);
+        }
+        page.insertTuple(pending.get(i));
+      }
+      Database.getBufferPool().appendPages(tid, batch);
+      count += pending.size();
+    }
+    if (page != null && page.getNumEmptySlots() > 0) {
+      freeSpaceMap().add(page.getId().pageNumber());
+    }
+    return count;
+  }
+
   // see DbFile.java for javadocs
   @Override
   public Page deleteTuple(TransactionId tid, Tuple t) throws DbException,
@@ -160,6 +513,11 @@ public class HeapFile implements DbFile {
     HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId,
         Permissions.READ_WRITE);
     heapPage.deleteTuple(t);
+    try {
+      freeSpaceMap().add(pageId.pageNumber());
+    } catch (IOException e) {
+      throw new DbException("could not build the free-space map: " + e.getMessage());
+    }
     return heapPage;
   }
 
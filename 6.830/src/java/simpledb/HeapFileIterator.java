@@ -1,10 +1,23 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
+/**
+ * Iterates over the tuples of a HeapFile page by page. Once it has moved
+ * through two pages in a row it asks the BufferPool to prefetch the next
+ * window of pages, and requests the following window when half of the
+ * current one is consumed. The window starts small and doubles whenever the
+ * scan reaches a page the prefetcher has not delivered yet, so it grows until
+ * the reads keep ahead of the scan, up to a quarter of the pool.
+ */
 public class HeapFileIterator implements DbFileIterator {
 
+  static final int MIN_PREFETCH_PAGES = 2;
+  static final int MAX_PREFETCH_PAGES = 64;
+
   private final int tableId;
   private final int numberOfPages;
   private final TransactionId transactionId;
@@ -12,6 +25,8 @@ public class HeapFileIterator implements DbFileIterator {
   private Iterator<Tuple> currentPageIterator;
   private boolean open;
   private Tuple next;
+  private int prefetchWindow = MIN_PREFETCH_PAGES;
+  private int prefetchedUpTo; // pages below this were prefetched or read
 
   private HeapFileIterator(int tableId, int numberOfPages, TransactionId transactionId) {
     this.tableId = tableId;
@@ -45,9 +60,37 @@ public class HeapFileIterator implements DbFileIterator {
     if (currentPageNumber >= numberOfPages) {
       return;
     }
+    prefetch();
     currentPageIterator = getPageIterator(currentPageNumber);
   }
 
+  /** Called on moving to currentPageNumber, before the page is read. */
+  private void prefetch() {
+    BufferPool bufferPool = Database.getBufferPool();
+    if (currentPageNumber < 2 || !bufferPool.isPrefetching()) {
+      // not sequential yet
+      return;
+    }
+    int maxWindow = Math.max(MIN_PREFETCH_PAGES, Math.min(MAX_PREFETCH_PAGES, bufferPool
+        .getNumPages() / 4));
+    if (currentPageNumber < prefetchedUpTo
+        && !bufferPool.isCached(new HeapPageId(tableId, currentPageNumber))) {
+      // the scan caught up with the prefetcher
+      prefetchWindow = Math.min(prefetchWindow * 2, maxWindow);
+    }
+    prefetchedUpTo = Math.max(prefetchedUpTo, currentPageNumber + 1);
+    int end = Math.min(currentPageNumber + 1 + prefetchWindow, numberOfPages);
+    if (prefetchedUpTo - currentPageNumber > prefetchWindow / 2 || prefetchedUpTo >= end) {
+      return;
+    }
+    List<PageId> pids = new ArrayList<PageId>(end - prefetchedUpTo);
+    for (int pageNumber = prefetchedUpTo; pageNumber < end; pageNumber++) {
+      pids.add(new HeapPageId(tableId, pageNumber));
+    }
+    bufferPool.prefetchPages(pids);
+    prefetchedUpTo = end;
+  }
+
   private Tuple getNext() throws DbException, TransactionAbortedException {
     while (currentPageNumber < numberOfPages) {
       if (currentPageIterator.hasNext()) {
@@ -77,6 +120,7 @@ public class HeapFileIterator implements DbFileIterator {
   public void rewind() throws DbException, TransactionAbortedException {
     if (open) {
       this.currentPageNumber = 0;
+      this.prefetchedUpTo = 0;
       this.currentPageIterator = getPageIterator(currentPageNumber);
       this.next = getNext();
     }
@@ -1,16 +1,29 @@
 package simpledb;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
-import java.util.NoSuchElementException;
+import java.util.List;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
- * implements the Page interface that is used by BufferPool.
+ * implements the Page interface that is used by BufferPool. Changing and
+ * serializing the page synchronize on it, so that the BufferPool can latch a
+ * page while it logs and writes it.
+ * <p>
+ * A page keeps its serialized image between calls to {@link #getPageData()}
+ * and only re-encodes the slots changed since the last call; the LSN and the
+ * header are small enough to copy every time. Tuples are not parsed when the
+ * page is read: each is created on first access as a view of its slot in the
+ * image, and decodes its fields as they are used.
+ * <p>
+ * The before-image is captured only when a transaction first changes the
+ * page: a page read from disk uses the bytes it was read from, and
+ * {@link #setBeforeImage()} just notes that the current contents are the
+ * before-image.
  * 
  * @see HeapFile
  * @see BufferPool
@@ -18,28 +31,63 @@ import java.util.NoSuchElementException;
  */
 public class HeapPage implements Page {
 
-  private static final int BYTE_SIZE = 8;
+  /** Bytes at the start of every page holding its LSN. */
+  static final int LSN_SIZE = 8;
 
   private final PageId heapPageId;
   private final TupleDesc tupleDesc;
-  private final byte header[];
-  private final Tuple tuples[];
+  // slot i is used if bit i % 64 of word i / 64 is set
+  private final long usedSlots[]; // protected by this
+  private final int headerSize;
+  private volatile int numEmptySlots;
+  private final Tuple tuples[]; // null for used slots not yet accessed
   private final int numberOfTupleSlots;
 
-  private byte[] oldData;
+  private final byte[] image; // protected by this
+  private final ByteBuffer imageBuffer; // protected by this
+  private final BitSet staleSlots; // protected by this
+
+  // the bytes of the page before the current transaction changed it, or null
+  // while the current contents are the before-image; never changed once set,
+  // so before-images and the pages built from them share it
+  private byte[] oldData; // protected by this
 
-  private final Byte oldDataLock = new Byte((byte) 0);
-  
   private boolean isDirty;
   private TransactionId dirtyingTransactionId;
+  private volatile long lsn;
+
+  // slot changes since the page was read or last flushed; null once they
+  // outgrow a page image
+  private List<SlotDelta> slotDeltas = new ArrayList<SlotDelta>(); // protected by slotDeltaLock
+  private int slotDeltaBytes = 0; // protected by slotDeltaLock
+  private final Object slotDeltaLock = new Object();
+
+  /**
+   * A change to one slot of a page, which the log can record instead of whole
+   * page images: the slot number, whether the change filled or cleared the
+   * slot, and the bytes of the tuple inserted into or deleted from it. Redo
+   * and undo each set the slot to an absolute state, so applying either one
+   * more than once is harmless.
+   */
+  public static class SlotDelta {
+    final int slot;
+    final boolean inserted;
+    final byte[] tupleData;
+
+    SlotDelta(int slot, boolean inserted, byte[] tupleData) {
+      this.slot = slot;
+      this.inserted = inserted;
+      this.tupleData = tupleData;
+    }
+  }
 
   /**
    * Create a HeapPage from a set of bytes of data read from disk. The format of
-   * a HeapPage is a set of header bytes indicating the slots of the page that
-   * are in use, some number of tuple slots. Specifically, the number of tuples
-   * is equal to:
+   * a HeapPage is a long integer LSN of the last logged change the page holds,
+   * a set of header bytes indicating the slots of the page that are in use, and
+   * some number of tuple slots. Specifically, the number of tuples is equal to:
    * <p>
-   * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+   * floor(((BufferPool.getPageSize() - 8)*8) / (tuple size * 8 + 1))
    * <p>
    * where tuple size is the size of tuples in this database table, which can be
    * determined via {@link Catalog#getTupleDesc}. The number of 8-bit header
@@ -56,27 +104,28 @@ public class HeapPage implements Page {
     this.heapPageId = id;
     this.tupleDesc = Database.getCatalog().getTupleDesc(id.getTableId());
     this.numberOfTupleSlots = getNumTuples(this.tupleDesc);
-    DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+    this.lsn = ByteBuffer.wrap(data).getLong(0);
 
     // allocate and read the header slots of this page
-    header = new byte[getHeaderSize(this.numberOfTupleSlots)];
-    for (int i = 0; i < header.length; i++)
-      header[i] = dis.readByte();
-
-    // allocate and read the actual records of this page
+    headerSize = getHeaderSize(this.numberOfTupleSlots);
+    usedSlots = readSlotBitmap(data, LSN_SIZE, this.numberOfTupleSlots);
+    numEmptySlots = this.numberOfTupleSlots - countUsedSlots(usedSlots);
+
+    // the image starts as the used slots of the data read; empty slots and the
+    // padding are zero. Tuples are created from it as they are accessed.
+    image = new byte[BufferPool.getPageSize()];
+    imageBuffer = ByteBuffer.wrap(image);
+    staleSlots = new BitSet(numberOfTupleSlots);
     tuples = new Tuple[numberOfTupleSlots];
-    try {
-      for (int i = 0; i < tuples.length; i++)
-        tuples[i] = readNextTuple(dis, i);
-    } catch (NoSuchElementException e) {
-      e.printStackTrace();
+    for (int i = 0; i < numberOfTupleSlots; i++) {
+      if (isSlotUsed(i)) {
+        System.arraycopy(data, getSlotOffset(i), image, getSlotOffset(i), tupleDesc.getSize());
+      }
     }
-    dis.close();
 
     this.isDirty = false;
     this.dirtyingTransactionId = null;
-    
-    setBeforeImage();
+    this.oldData = data;
   }
 
   /**
@@ -84,8 +133,8 @@ public class HeapPage implements Page {
    * 
    * @return the number of tuples on this page
    */
-  private static int getNumTuples(TupleDesc tupleDesc) {
-    return (int) Math.floor((BufferPool.getPageSize() * 8)
+  static int getNumTuples(TupleDesc tupleDesc) {
+    return (int) Math.floor(((BufferPool.getPageSize() - LSN_SIZE) * 8)
         / ((double) (tupleDesc.getSize() * 8 + 1)));
   }
 
@@ -96,21 +145,46 @@ public class HeapPage implements Page {
    * @return the number of bytes in the header of a page in a HeapFile with each
    *         tuple occupying tupleSize bytes
    */
-  private static int getHeaderSize(int numberOfTupleSlots) {
+  static int getHeaderSize(int numberOfTupleSlots) {
     return (int) Math.ceil(numberOfTupleSlots / ((double) 8));
   }
 
+  /**
+   * Reads the header of a page into a bitmap of 64-bit words. Header byte k
+   * holds slots 8k to 8k + 7, lowest bit first, so word w holds header bytes
+   * 8w to 8w + 7 in little-endian order. Bits past the last slot are dropped.
+   * 
+   * @param data the bytes holding the header
+   * @param offset the offset of the header in data
+   */
+  static long[] readSlotBitmap(byte[] data, int offset, int numberOfTupleSlots) {
+    long[] bitmap = new long[(numberOfTupleSlots + 63) >>> 6];
+    int headerSize = getHeaderSize(numberOfTupleSlots);
+    for (int i = 0; i < headerSize; i++) {
+      bitmap[i >>> 3] |= (data[offset + i] & 0xffL) << ((i & 7) << 3);
+    }
+    if ((numberOfTupleSlots & 63) != 0) {
+      bitmap[bitmap.length - 1] &= (1L << numberOfTupleSlots) - 1;
+    }
+    return bitmap;
+  }
+
+  /** @return the number of slots set in a bitmap read by readSlotBitmap */
+  static int countUsedSlots(long[] bitmap) {
+    int count = 0;
+    for (int w = 0; w < bitmap.length; w++) {
+      count += Long.bitCount(bitmap[w]);
+    }
+    return count;
+  }
+
   /**
    * Return a view of this page before it was modified -- used by recovery
    */
   @Override
-  public HeapPage getBeforeImage() {
+  public synchronized HeapPage getBeforeImage() {
     try {
-      byte[] oldDataRef = null;
-      synchronized (oldDataLock) {
-        oldDataRef = oldData;
-      }
-      return new HeapPage(heapPageId, oldDataRef);
+      return new HeapPage(heapPageId, oldData != null ? oldData : getPageData());
     } catch (IOException e) {
       e.printStackTrace();
       // should never happen -- we parsed it OK before!
@@ -120,9 +194,14 @@ public class HeapPage implements Page {
   }
 
   @Override
-  public void setBeforeImage() {
-    synchronized (oldDataLock) {
-      oldData = getPageData().clone();
+  public synchronized void setBeforeImage() {
+    oldData = null;
+  }
+
+  /** Keeps the current contents as the before-image if none was kept yet. */
+  private void captureBeforeImage() {
+    if (oldData == null) {
+      oldData = getPageData();
     }
   }
 
@@ -135,36 +214,17 @@ public class HeapPage implements Page {
   }
 
   /**
-   * Suck up tuples from the source file.
+   * Returns the tuple in a used slot, creating it over the slot's bytes in the
+   * image the first time it is asked for. Every caller gets the same object,
+   * so that it can be materialized before the slot changes.
    */
-  private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-    // if associated bit is not set, read forward to the next tuple, and
-    // return null.
-    if (!isSlotUsed(slotId)) {
-      for (int i = 0; i < tupleDesc.getSize(); i++) {
-        try {
-          dis.readByte();
-        } catch (IOException e) {
-          throw new NoSuchElementException("error reading empty tuple");
-        }
-      }
-      return null;
-    }
-
-    // read fields in the tuple
-    Tuple t = new Tuple(tupleDesc);
-    RecordId rid = new RecordId(heapPageId, slotId);
-    t.setRecordId(rid);
-    try {
-      for (int j = 0; j < tupleDesc.numFields(); j++) {
-        Field f = tupleDesc.getFieldType(j).parse(dis);
-        t.setField(j, f);
-      }
-    } catch (java.text.ParseException e) {
-      e.printStackTrace();
-      throw new NoSuchElementException("parsing error!");
+  private synchronized Tuple getTuple(int slot) {
+    Tuple t = tuples[slot];
+    if (t == null) {
+      t = new Tuple(tupleDesc, imageBuffer, getSlotOffset(slot));
+      t.setRecordId(new RecordId(heapPageId, slot));
+      tuples[slot] = t;
     }
-
     return t;
   }
 
@@ -180,68 +240,34 @@ public class HeapPage implements Page {
    * @return A byte array correspond to the bytes of this page.
    */
   @Override
-  public byte[] getPageData() {
-    int len = BufferPool.getPageSize();
-    ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-    DataOutputStream dos = new DataOutputStream(baos);
-
-    // create the header of the page
-    for (int i = 0; i < header.length; i++) {
-      try {
-        dos.writeByte(header[i]);
-      } catch (IOException e) {
-        // this really shouldn't happen
-        e.printStackTrace();
-      }
+  public synchronized byte[] getPageData() {
+    imageBuffer.putLong(0, lsn);
+    for (int i = 0; i < headerSize; i++) {
+      image[LSN_SIZE + i] = (byte) (usedSlots[i >>> 3] >>> ((i & 7) << 3));
     }
-
-    // create the tuples
-    for (int i = 0; i < tuples.length; i++) {
-
-      // empty slot
-      if (!isSlotUsed(i)) {
-        for (int j = 0; j < tupleDesc.getSize(); j++) {
-          try {
-            dos.writeByte(0);
-          } catch (IOException e) {
-            e.printStackTrace();
-          }
-
-        }
-        continue;
-      }
-
-      // non-empty slot
-      for (int j = 0; j < tupleDesc.numFields(); j++) {
-        Field f = tuples[i].getField(j);
-        try {
-          f.serialize(dos);
-
-        } catch (IOException e) {
-          e.printStackTrace();
-        }
-      }
+    for (int i = staleSlots.nextSetBit(0); i >= 0; i = staleSlots.nextSetBit(i + 1)) {
+      encodeSlot(i);
     }
+    staleSlots.clear();
+    return image.clone();
+  }
 
-    // padding
-    int zerolen = BufferPool.getPageSize() - (header.length + tupleDesc.getSize() * tuples.length); // -
-    // numSlots
-    // *
-    // td.getSize();
-    byte[] zeroes = new byte[zerolen];
-    try {
-      dos.write(zeroes, 0, zerolen);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+  /** @return the offset of a slot's tuple bytes within the page */
+  private int getSlotOffset(int slot) {
+    return LSN_SIZE + headerSize + slot * tupleDesc.getSize();
+  }
 
-    try {
-      dos.flush();
-    } catch (IOException e) {
-      e.printStackTrace();
+  /** Writes a slot of the image from the tuple it holds, or zeroes it. */
+  private void encodeSlot(int slot) {
+    int offset = getSlotOffset(slot);
+    if (!isSlotUsed(slot)) {
+      Arrays.fill(image, offset, offset + tupleDesc.getSize(), (byte) 0);
+      return;
+    }
+    imageBuffer.position(offset);
+    for (int j = 0; j < tupleDesc.numFields(); j++) {
+      tuples[slot].getField(j).serialize(imageBuffer);
     }
-
-    return baos.toByteArray();
   }
 
   /**
@@ -265,7 +291,7 @@ public class HeapPage implements Page {
    *           already empty.
    * @param t The tuple to delete
    */
-  public void deleteTuple(Tuple t) throws DbException {
+  public synchronized void deleteTuple(Tuple t) throws DbException {
     if (t.getRecordId() == null || !(t.getRecordId().getPageId().equals(heapPageId))) {
       throw new DbException("Tuple can only be deleted from its page.");
     }
@@ -273,6 +299,7 @@ public class HeapPage implements Page {
     if (!isSlotUsed(tupleNumber)) {
       throw new DbException("Tuple's slot is already empty.");
     }
+    recordSlotDelta(tupleNumber, false);
     markSlotUsed(tupleNumber, false);
     t.setRecordId(null);
     tuples[tupleNumber] = null;
@@ -286,7 +313,7 @@ public class HeapPage implements Page {
    *           mismatch.
    * @param t The tuple to add.
    */
-  public void insertTuple(Tuple t) throws DbException {
+  public synchronized void insertTuple(Tuple t) throws DbException {
     if (!(t.getTupleDesc().equals(tupleDesc))) {
       throw new DbException("Cannot insert a Tuple with a different TupleDesc.");
     }
@@ -297,6 +324,71 @@ public class HeapPage implements Page {
     t.setRecordId(new RecordId(heapPageId, emptySlotIndex));
     markSlotUsed(emptySlotIndex, true);
     tuples[emptySlotIndex] = t;
+    recordSlotDelta(emptySlotIndex, true);
+  }
+
+  private void recordSlotDelta(int slot, boolean inserted) {
+    synchronized (slotDeltaLock) {
+      if (slotDeltas == null) {
+        return;
+      }
+      slotDeltaBytes += tupleDesc.getSize();
+      if (slotDeltaBytes > BufferPool.getPageSize()) {
+        slotDeltas = null;
+        return;
+      }
+      slotDeltas.add(new SlotDelta(slot, inserted, getSlotData(slot)));
+    }
+  }
+
+  /**
+   * Returns the slot changes made since the page was read or this method was
+   * last called, oldest first, and starts a new list.
+   * 
+   * @return the changes, or null if they took more space than a page image and
+   *         stopped being kept; the page must then be logged as a whole
+   */
+  public List<SlotDelta> takeSlotDeltas() {
+    synchronized (slotDeltaLock) {
+      List<SlotDelta> deltas = slotDeltas;
+      slotDeltas = new ArrayList<SlotDelta>();
+      slotDeltaBytes = 0;
+      return deltas;
+    }
+  }
+
+  /** Reapplies a logged slot change to this page. Used by recovery. */
+  public void redo(SlotDelta delta) {
+    setSlotContents(delta.slot, delta.inserted, delta.tupleData);
+  }
+
+  /** Reverts a logged slot change on this page. Used by rollback. */
+  public void undo(SlotDelta delta) {
+    setSlotContents(delta.slot, !delta.inserted, delta.tupleData);
+  }
+
+  private synchronized void setSlotContents(int slot, boolean used, byte[] tupleData) {
+    markSlotUsed(slot, used);
+    tuples[slot] = null;
+    if (used) {
+      // the tuple is created from these bytes when it is next asked for
+      System.arraycopy(tupleData, 0, image, getSlotOffset(slot), tupleData.length);
+      staleSlots.clear(slot);
+    }
+  }
+
+  /** @return the tuple in a used slot serialized as it is stored there */
+  private byte[] getSlotData(int slot) {
+    if (!staleSlots.get(slot)) {
+      int offset = getSlotOffset(slot);
+      return Arrays.copyOfRange(image, offset, offset + tupleDesc.getSize());
+    }
+    byte[] data = new byte[tupleDesc.getSize()];
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    for (int j = 0; j < tupleDesc.numFields(); j++) {
+      tuples[slot].getField(j).serialize(buffer);
+    }
+    return data;
   }
 
   /**
@@ -318,51 +410,52 @@ public class HeapPage implements Page {
     return isDirty ? dirtyingTransactionId : null;
   }
 
+  @Override
+  public long getLsn() {
+    return lsn;
+  }
+
+  @Override
+  public void setLsn(long lsn) {
+    this.lsn = lsn;
+  }
+
   /**
-   * Abstraction to fill or clear a slot on this page.
+   * Abstraction to fill or clear a slot on this page. The slot is re-encoded
+   * by the next call to getPageData. Every change goes through here, so this
+   * is where the before-image is captured.
    */
   private void markSlotUsed(int i, boolean value) {
+    captureBeforeImage();
+    if (tuples[i] != null) {
+      // the tuple may outlive the slot, so it stops reading the image
+      tuples[i].materialize();
+    }
     setSlot(i, value);
+    staleSlots.set(i);
   }
 
   /**
    * Returns the number of empty slots on this page.
    */
   public int getNumEmptySlots() {
-    int count = 0;
-    for (int i = 0; i < header.length; i++) {
-      int bytePresentCount = 0;
-      int headerByte = header[i];
-      if (headerByte < 0) {
-        bytePresentCount++;
-        headerByte += 1 << (BYTE_SIZE - 1);
-      }
-      for (; headerByte != 0; headerByte = headerByte >> 1) {
-        if (headerByte % 2 == 1)
-          bytePresentCount++;
-      }
-      count += (8 - bytePresentCount);
-    }
-    return count;
+    return numEmptySlots;
   }
 
   /**
    * Returns true if associated slot on this page is filled.
    */
   public boolean isSlotUsed(int i) {
-    int headerByte = i / 8;
-    int byteBit = i % 8;
-    return (header[headerByte] & (1 << byteBit)) != 0;
+    return (usedSlots[i >>> 6] & (1L << i)) != 0;
   }
 
   /**
    * Abstraction to fill or clear a slot on this page.
    */
   private void setSlot(int i, boolean value) {
-    int headerByte = i / 8;
-    int byteBit = i % 8;
     if (value != isSlotUsed(i)) {
-      header[headerByte] ^= (1 << byteBit);
+      usedSlots[i >>> 6] ^= 1L << i;
+      numEmptySlots += value ? -1 : 1;
     }
   }
 
@@ -378,18 +471,28 @@ public class HeapPage implements Page {
     return getNextTupleIndexOfValue(startIndex, maxIndex, true);
   }
   
+  /**
+   * Finds the first slot from startIndex whose used bit is value, a word of
+   * the bitmap at a time.
+   * 
+   * @return the slot, or maxIndex if there is none before it
+   */
   protected int getNextTupleIndexOfValue(int startIndex, int maxIndex, boolean value) {
-    int nextTupleIndex = startIndex;
-    while (nextTupleIndex < maxIndex && (isSlotUsed(nextTupleIndex) != value)) {
-      nextTupleIndex++;
+    if (startIndex >= maxIndex) {
+      return maxIndex;
+    }
+    int w = startIndex >>> 6;
+    // ignore the slots before startIndex in its word
+    long word = (value ? usedSlots[w] : ~usedSlots[w]) & (-1L << startIndex);
+    while (word == 0) {
+      if ((++w << 6) >= maxIndex) {
+        return maxIndex;
+      }
+      word = value ? usedSlots[w] : ~usedSlots[w];
     }
-    return nextTupleIndex;
+    return Math.min((w << 6) + Long.numberOfTrailingZeros(word), maxIndex);
   }
   
-  protected Tuple[] getTuples() {
-    return tuples;
-  }
-
   /**
    * @return an iterator over all tuples on this page (calling remove on this
    *         iterator throws an UnsupportedOperationException) (note that this
@@ -398,7 +501,7 @@ public class HeapPage implements Page {
   public Iterator<Tuple> iterator() {
     return new Iterator<Tuple>() {
 
-      int maxIndex = getTuples().length;
+      int maxIndex = numberOfTupleSlots;
       int currentIndex = getFirstUsedTupleIndex(maxIndex);
 
       @Override
@@ -408,7 +511,7 @@ public class HeapPage implements Page {
 
       @Override
       public Tuple next() {
-        Tuple tuple = getTuples()[currentIndex];
+        Tuple tuple = getTuple(currentIndex);
         currentIndex = getNextUsedTupleIndex(currentIndex + 1, maxIndex);
         return tuple;
       }
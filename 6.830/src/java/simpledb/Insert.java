@@ -1,10 +1,14 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Inserts tuples read from the child operator into the tableid specified in the
- * constructor
+ * constructor. In bulk mode the tuples are appended to new pages of the table
+ * with HeapFile.bulkAppend instead of being inserted one at a time through the
+ * BufferPool.
  */
 public class Insert extends Operator {
 
@@ -12,6 +16,7 @@ public class Insert extends Operator {
   
   private final int tableId;
   private final TransactionId transactionId;
+  private final boolean bulk;
   private DbIterator child;
   private boolean open;
   private boolean inserted;
@@ -25,9 +30,26 @@ public class Insert extends Operator {
    *           are to insert.
    */
   public Insert(TransactionId t, DbIterator child, int tableid) throws DbException {
+    this(t, child, tableid, false);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param t The transaction running the insert.
+   * @param child The child operator from which to read tuples to be inserted.
+   * @param tableid The table in which to insert tuples.
+   * @param bulk Whether to append the tuples to new pages in bulk; the table
+   *          must be a HeapFile.
+   * @throws DbException if TupleDesc of child differs from table into which we
+   *           are to insert.
+   * @see HeapFile#bulkAppend
+   */
+  public Insert(TransactionId t, DbIterator child, int tableid, boolean bulk) throws DbException {
     this.transactionId = t;
     this.child = child;
     this.tableId = tableid;
+    this.bulk = bulk;
     this.open = false;
   }
 
@@ -75,15 +97,19 @@ public class Insert extends Operator {
     }
     child.open();
     int count = 0;
-    while (child.hasNext()) {
-      Tuple toBeInsertedTuple = child.next();
-      try {
-        Database.getBufferPool().insertTuple(transactionId, tableId, toBeInsertedTuple);
-      } catch (IOException e) {
-        e.printStackTrace();
-        throw new DbException("IOException caught while trying to insert tuple.");
+    if (bulk) {
+      count = bulkAppend();
+    } else {
+      while (child.hasNext()) {
+        Tuple toBeInsertedTuple = child.next();
+        try {
+          Database.getBufferPool().insertTuple(transactionId, tableId, toBeInsertedTuple);
+        } catch (IOException e) {
+          e.printStackTrace();
+          throw new DbException("IOException caught while trying to insert tuple.");
+        }
+        count++;
       }
-      count++;
     }
     child.close();
     Tuple resultTuple = new Tuple(getTupleDesc());
@@ -92,6 +118,66 @@ public class Insert extends Operator {
     return resultTuple;
   }
 
+  private int bulkAppend() throws TransactionAbortedException, DbException {
+    ChildTuples tuples = new ChildTuples();
+    int count;
+    try {
+      count = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).bulkAppend(
+          transactionId, tuples);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new DbException("IOException caught while trying to append tuples.");
+    }
+    if (tuples.dbException != null) {
+      throw tuples.dbException;
+    }
+    if (tuples.abortedException != null) {
+      throw tuples.abortedException;
+    }
+    return count;
+  }
+
+  /**
+   * The child as an Iterator. An exception from the child ends the iteration
+   * and is kept for bulkAppend to rethrow.
+   */
+  private class ChildTuples implements Iterator<Tuple> {
+    DbException dbException = null;
+    TransactionAbortedException abortedException = null;
+    private Tuple pending = null;
+
+    @Override
+    public boolean hasNext() {
+      if (pending == null && dbException == null && abortedException == null) {
+        try {
+          if (child.hasNext()) {
+            pending = child.next();
+          }
+        } catch (DbException e) {
+          dbException = e;
+        } catch (TransactionAbortedException e) {
+          abortedException = e;
+        }
+      }
+      return pending != null;
+    }
+
+    @Override
+    public Tuple next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Tuple next = pending;
+      pending = null;
+      return next;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   @Override
   public DbIterator[] getChildren() {
     return new DbIterator[]{child};
@@ -1,19 +1,30 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 /**
- * The Join operator implements the relational join operation.
+ * The Join operator implements the relational join operation as a block
+ * nested-loop join: it reads a block of outer tuples into memory, then scans
+ * the inner relation once for the whole block, so the inner relation is
+ * scanned once per block instead of once per outer tuple. It handles any
+ * predicate, which makes it the join for predicates other than equality.
  */
 public class Join extends Operator {
 
   private static final long serialVersionUID = 1L;
 
+  /** Pages of outer tuples buffered per inner scan by default. */
+  public static final int DEFAULT_BLOCK_PAGES = 16;
+
   private final JoinPredicate p;
   private DbIterator child1;
   private DbIterator child2;
   private boolean open;
-  private Tuple currentPotentialTuple1;
+  private final int blockPages;
+  private transient ArrayList<Tuple> block = new ArrayList<Tuple>();
+  private transient Tuple currentTuple2;
+  private transient int blockIndex;
 
   /**
    * Constructor. Accepts to children to join and the predicate to join them on
@@ -23,11 +34,29 @@ public class Join extends Operator {
    * @param child2 Iterator for the right(inner) relation to join
    */
   public Join(JoinPredicate p, DbIterator child1, DbIterator child2) {
+    this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+  }
+
+  /**
+   * Constructor with the size of the outer blocks.
+   * 
+   * @param p The predicate to use to join the children
+   * @param child1 Iterator for the left(outer) relation to join
+   * @param child2 Iterator for the right(inner) relation to join
+   * @param blockPages The number of pages of outer tuples to join per scan of
+   *          the inner relation; a block holds at least one tuple
+   */
+  public Join(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
     this.p = p;
     this.child1 = child1;
     this.child2 = child2;
     this.open = false;
-    this.currentPotentialTuple1 = null;
+    this.blockPages = blockPages;
+  }
+
+  /** @return the number of outer tuples in a block */
+  int getBlockSize() {
+    return Math.max(1, blockPages * BufferPool.getPageSize() / child1.getTupleDesc().getSize());
   }
 
   public JoinPredicate getJoinPredicate() {
@@ -73,20 +102,23 @@ public class Join extends Operator {
     child1.close();
     child2.close();
     this.open = false;
+    this.block.clear();
+    this.currentTuple2 = null;
   }
 
   @Override
   public void rewind() throws DbException, TransactionAbortedException {
     child1.rewind();
     child2.rewind();
-    this.currentPotentialTuple1 = null;
+    this.block.clear();
+    this.currentTuple2 = null;
   }
 
   /**
    * Returns the next tuple generated by the join, or null if there are no more
    * tuples. Logically, this is the next tuple in r1 cross r2 that satisfies the
-   * join predicate. There are many possible implementations; the simplest is a
-   * nested loops join.
+   * join predicate. Each inner tuple is compared with every outer tuple of the
+   * current block before the next inner tuple is read.
    * <p>
    * Note that the tuples returned from this particular implementation of Join
    * are simply the concatenation of joining tuples from the left and right
@@ -103,16 +135,27 @@ public class Join extends Operator {
   @Override
   protected Tuple fetchNext() throws TransactionAbortedException, DbException {
     while (true) {
-      while (currentPotentialTuple1 != null && child2.hasNext()) {
-        Tuple potentialTuple2 = child2.next();
-        if (p.filter(currentPotentialTuple1, potentialTuple2)) {
-          return Tuple.join(currentPotentialTuple1, potentialTuple2);
+      while (currentTuple2 != null && blockIndex < block.size()) {
+        Tuple potentialTuple1 = block.get(blockIndex++);
+        if (p.filter(potentialTuple1, currentTuple2)) {
+          return Tuple.join(potentialTuple1, currentTuple2);
         }
       }
-      if (!child1.hasNext()) {
+      if (!block.isEmpty() && child2.hasNext()) {
+        currentTuple2 = child2.next();
+        blockIndex = 0;
+        continue;
+      }
+      // the inner relation is done with this block: read the next one
+      block.clear();
+      currentTuple2 = null;
+      int blockSize = getBlockSize();
+      while (block.size() < blockSize && child1.hasNext()) {
+        block.add(child1.next());
+      }
+      if (block.isEmpty()) {
         return null;
       }
-      currentPotentialTuple1 = child1.next();
       child2.rewind();
     }
   }
@@ -72,7 +72,16 @@ public class JoinOptimizer {
 
     JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-    j = new Join(p, plan1, plan2);
+    if (lj.p == Predicate.Op.EQUALS) {
+      // builds on plan1 and spills to disk if it outgrows memory
+      j = new HashEquiJoin(p, plan1, plan2);
+    } else if (SortMergeJoin.supports(lj.p)) {
+      // range predicates: sorted inputs let each outer tuple stop at its
+      // first non-matching inner tuple
+      j = new SortMergeJoin(p, plan1, plan2);
+    } else {
+      j = new Join(p, plan1, plan2);
+    }
 
     return j;
 
@@ -103,9 +112,27 @@ public class JoinOptimizer {
       // You do not need to implement proper support for these for Lab 4.
       return card1 + cost1 + cost2;
     }
+    if (j.p == Predicate.Op.EQUALS) {
+      // a HashEquiJoin: each child is read once, and spilled partitions add
+      // work per tuple rather than another run of a child. Building costs
+      // more than probing, so the smaller input is preferred as the build
+      // (left) side.
+      return cost1 + cost2 + 2 * card1 + card2;
+    }
+    if (SortMergeJoin.supports(j.p)) {
+      // a SortMergeJoin: sort both sides, then read each matching prefix of
+      // the inner side once per outer tuple
+      return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2 + 0.5 * card1
+          * card2;
+    }
     return cost1 + cost2 * card1 + card1 * card2;
   }
 
+  /** @return the number of comparisons to sort card tuples */
+  private static double sortCost(int card) {
+    return card > 1 ? card * (Math.log(card) / Math.log(2)) : 0;
+  }
+
   /**
    * Estimate the cardinality of a join. The cardinality of a join is the number
    * of tuples produced by the join.
@@ -38,7 +38,7 @@ public class JoinPredicate implements Serializable {
    * @return true if the tuples satisfy the predicate.
    */
   public boolean filter(Tuple t1, Tuple t2) {
-    return t1.getField(field1).compare(op, t2.getField(field2));
+    return t1.compareField(field1, op, t2.getField(field2));
   }
 
   public int getField1() {
@@ -1,211 +1,505 @@
 package simpledb;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * LockManager grants page-level shared and exclusive locks to transactions.
+ * <p>
+ * Every page has a FIFO queue of waiting requests. A request that conflicts
+ * with the current holders, or that arrives while earlier requests are still
+ * waiting, is queued and its thread parks until a release grants it the lock,
+ * so blocked transactions use no CPU. Locks are handed to the queue head in
+ * arrival order; consecutive shared requests are granted together. Lock
+ * upgrades go to the front of the queue, since the upgrading transaction
+ * already holds the page and everyone behind it would wait for it anyway.
+ * <p>
+ * Each waiting request records the transactions it waits for. How conflicts
+ * that could deadlock are resolved depends on the DeadlockPolicy:
+ * <ul>
+ * <li>DETECT: these edges form the waits-for graph. A new wait can only close
+ * a cycle through the waiting transaction, so the graph is searched from the
+ * new edges alone, outside the page's monitor. One transaction on the cycle is
+ * aborted, chosen by the VictimPolicy.</li>
+ * <li>WAIT_DIE and WOUND_WAIT: transactions are ordered by age (older ids are
+ * smaller) and no graph search is done. Under wait-die a transaction only
+ * waits for younger ones and otherwise aborts itself; under wound-wait an
+ * older transaction aborts ("wounds") the younger ones it waits for.</li>
+ * </ul>
+ * An aborted transaction that is waiting wakes up with a
+ * TransactionAbortedException; one that is running gets it from its next lock
+ * request. Any transaction that waits longer than the lock timeout is aborted
+ * as well.
+ */
 public class LockManager {
 
-  private final ConcurrentMap<PageId, Object> locks;
-  private final Map<PageId, List<TransactionId>> sharedLocks;
-  private final Map<PageId, TransactionId> exclusiveLocks;
+  /** Lock timeout that lets transactions wait until they are granted or deadlocked. */
+  public static final long NO_TIMEOUT = 0;
+
+  /** How lock conflicts that could deadlock are resolved. */
+  public enum DeadlockPolicy {
+    DETECT, WAIT_DIE, WOUND_WAIT
+  }
+
+  /** Which transaction on a waits-for cycle is aborted under DETECT. */
+  public enum VictimPolicy {
+    /** The transaction whose request closed the cycle. */
+    REQUESTER,
+    /** The transaction that started last. */
+    YOUNGEST,
+    /** The transaction holding the fewest locks, then the youngest. */
+    LEAST_WORK
+  }
+
+  private final ConcurrentMap<PageId, PageLock> locks;
   private final ConcurrentMap<TransactionId, Collection<PageId>> pageIdsLockedByTransaction;
-  private final ConcurrentMap<TransactionId, Collection<TransactionId>> dependencyGraph;
+  private final ConcurrentMap<TransactionId, Collection<LockRequest>> waitingRequests;
+  private final Set<TransactionId> abortedTransactions;
+  private volatile long lockTimeoutMillis;
+  private volatile DeadlockPolicy deadlockPolicy;
+  private volatile VictimPolicy victimPolicy;
+
+  /**
+   * The holders and waiters of one page. All fields are guarded by the
+   * PageLock's monitor.
+   */
+  private static class PageLock {
+    final Set<TransactionId> sharedHolders = new HashSet<TransactionId>();
+    TransactionId exclusiveHolder;
+    final LinkedList<LockRequest> waiters = new LinkedList<LockRequest>();
+
+    boolean isHeldBy(TransactionId transactionId, boolean exclusive) {
+      if (transactionId.equals(exclusiveHolder)) {
+        return true;
+      }
+      return !exclusive && sharedHolders.contains(transactionId);
+    }
+
+    boolean isCompatible(TransactionId transactionId, boolean exclusive) {
+      if (exclusiveHolder != null) {
+        return transactionId.equals(exclusiveHolder);
+      }
+      if (!exclusive) {
+        return true;
+      }
+      return sharedHolders.isEmpty()
+          || (sharedHolders.size() == 1 && sharedHolders.contains(transactionId));
+    }
+
+    void grant(TransactionId transactionId, boolean exclusive) {
+      if (exclusive) {
+        sharedHolders.remove(transactionId);
+        exclusiveHolder = transactionId;
+      } else if (!transactionId.equals(exclusiveHolder)) {
+        sharedHolders.add(transactionId);
+      }
+    }
+  }
+
+  /**
+   * A queued lock request. The thread that made it parks until another thread
+   * sets granted and unparks it.
+   */
+  private static class LockRequest {
+    final TransactionId transactionId;
+    final boolean exclusive;
+    final Thread thread;
+    volatile boolean granted;
+    /** Set when the transaction was chosen to abort while this request waits. */
+    volatile boolean aborted;
+    /** Transactions this request waits for; replaced, never mutated. */
+    volatile Set<TransactionId> blockers;
+
+    LockRequest(TransactionId transactionId, boolean exclusive) {
+      this.transactionId = transactionId;
+      this.exclusive = exclusive;
+      this.thread = Thread.currentThread();
+      this.granted = false;
+      this.aborted = false;
+      this.blockers = Collections.emptySet();
+    }
+  }
 
-  private LockManager() {
-    locks = new ConcurrentHashMap<PageId, Object>();
-    sharedLocks = new HashMap<PageId, List<TransactionId>>();
-    exclusiveLocks = new HashMap<PageId, TransactionId>();
+  private LockManager(long lockTimeoutMillis) {
+    locks = new ConcurrentHashMap<PageId, PageLock>();
     pageIdsLockedByTransaction = new ConcurrentHashMap<TransactionId, Collection<PageId>>();
-    dependencyGraph = new ConcurrentHashMap<TransactionId, Collection<TransactionId>>();
+    waitingRequests = new ConcurrentHashMap<TransactionId, Collection<LockRequest>>();
+    abortedTransactions = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId, Boolean>());
+    this.lockTimeoutMillis = lockTimeoutMillis;
+    this.deadlockPolicy = DeadlockPolicy.DETECT;
+    this.victimPolicy = VictimPolicy.YOUNGEST;
   }
 
   public static LockManager create() {
-    return new LockManager();
+    return new LockManager(NO_TIMEOUT);
+  }
+
+  /**
+   * @param lockTimeoutMillis how long a transaction may wait for a lock before
+   *          it is aborted, or NO_TIMEOUT
+   */
+  public static LockManager create(long lockTimeoutMillis) {
+    return new LockManager(lockTimeoutMillis);
   }
 
-  private Object getLock(PageId pageId) {
-    locks.putIfAbsent(pageId, new Object());
+  /**
+   * Sets how long a transaction may wait for a lock before it is aborted.
+   * Applies to requests made after the call.
+   *
+   * @param lockTimeoutMillis the timeout in milliseconds, or NO_TIMEOUT
+   */
+  public void setLockTimeout(long lockTimeoutMillis) {
+    this.lockTimeoutMillis = lockTimeoutMillis;
+  }
+
+  /**
+   * Sets how conflicts that could deadlock are resolved. Should be changed
+   * only while no transaction is waiting for a lock.
+   */
+  public void setDeadlockPolicy(DeadlockPolicy deadlockPolicy) {
+    this.deadlockPolicy = deadlockPolicy;
+  }
+
+  /**
+   * Sets which transaction on a waits-for cycle is aborted when deadlocks are
+   * detected.
+   */
+  public void setVictimPolicy(VictimPolicy victimPolicy) {
+    this.victimPolicy = victimPolicy;
+  }
+
+  private PageLock getLock(PageId pageId) {
+    locks.putIfAbsent(pageId, new PageLock());
     return locks.get(pageId);
   }
 
+  /**
+   * Acquires a lock on the page, blocking until it is granted.
+   *
+   * @throws TransactionAbortedException if the transaction has been chosen to
+   *           abort, by deadlock resolution or by a timeout
+   */
   public boolean acquireLock(TransactionId transactionId, PageId pageId, Permissions permissions)
       throws TransactionAbortedException {
     TransactionId notNullTransactionId = (transactionId == null) ? TransactionId.NULL_TRANSACTION_ID
         : transactionId;
+    boolean exclusive;
     if (permissions == Permissions.READ_ONLY) {
-      if (hasReadPermissions(notNullTransactionId, pageId)) {
+      exclusive = false;
+    } else if (permissions == Permissions.READ_WRITE) {
+      exclusive = true;
+    } else {
+      throw new IllegalArgumentException("Expected either READ_ONLY or READ_WRITE permissions.");
+    }
+    if (abortedTransactions.contains(notNullTransactionId)) {
+      throw new TransactionAbortedException();
+    }
+    DeadlockPolicy policy = deadlockPolicy;
+    PageLock lock = getLock(pageId);
+    LockRequest request;
+    synchronized (lock) {
+      if (lock.isHeldBy(notNullTransactionId, exclusive)) {
         return true;
       }
-      while (!acquireReadOnlyLock(notNullTransactionId, pageId)) {
-        // waiting for lock
-      }
-    } else if (permissions == Permissions.READ_WRITE) {
-      if (hasWritePermissions(notNullTransactionId, pageId)) {
+      boolean upgrade = exclusive && lock.sharedHolders.contains(notNullTransactionId);
+      if ((upgrade || lock.waiters.isEmpty()) && lock.isCompatible(notNullTransactionId, exclusive)) {
+        grant(lock, pageId, notNullTransactionId, exclusive);
         return true;
       }
-      while (!acquireReadWriteLock(notNullTransactionId, pageId)) {
-        // waiting for lock
+      request = new LockRequest(notNullTransactionId, exclusive);
+      if (upgrade) {
+        lock.waiters.addFirst(request);
+      } else {
+        lock.waiters.addLast(request);
+      }
+      addWaitingRequest(request);
+      updateBlockers(lock);
+      if (policy != DeadlockPolicy.DETECT) {
+        resolveByAge(lock, policy);
       }
-    } else {
-      throw new IllegalArgumentException("Expected either READ_ONLY or READ_WRITE permissions.");
     }
-    addPageToTransactionLocks(notNullTransactionId, pageId);
+    if (policy == DeadlockPolicy.DETECT) {
+      resolveDeadlock(request);
+    }
+    awaitGrant(lock, pageId, request);
     return true;
   }
 
-  private boolean hasReadPermissions(TransactionId transactionId, PageId pageId) {
-    if (hasWritePermissions(transactionId, pageId)) {
-      return true;
+  /**
+   * Parks the calling thread until the request is granted, aborted or times
+   * out. A
+   * request abandoned for any reason leaves the queue, so it never blocks the
+   * requests behind it.
+   */
+  private void awaitGrant(PageLock lock, PageId pageId, LockRequest request)
+      throws TransactionAbortedException {
+    long timeoutMillis = lockTimeoutMillis;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (!request.granted) {
+        long remaining = deadline - System.nanoTime();
+        if (request.aborted || (timeoutMillis != NO_TIMEOUT && remaining <= 0)) {
+          synchronized (lock) {
+            if (!request.granted) {
+              cancel(lock, pageId, request);
+              throw new TransactionAbortedException();
+            }
+          }
+        } else if (timeoutMillis == NO_TIMEOUT) {
+          LockSupport.park(this);
+        } else {
+          LockSupport.parkNanos(this, remaining);
+        }
+      }
+    } finally {
+      if (!request.granted) {
+        synchronized (lock) {
+          if (!request.granted) {
+            cancel(lock, pageId, request);
+          }
+        }
+      }
     }
-    return sharedLocks.containsKey(pageId) && sharedLocks.get(pageId).contains(transactionId);
   }
 
-  private boolean hasWritePermissions(TransactionId transactionId, PageId pageId) {
-    return exclusiveLocks.containsKey(pageId) && transactionId.equals(exclusiveLocks.get(pageId));
+  /**
+   * Records the lock as held. Called with the page's monitor held, and before
+   * the requesting thread wakes up, so releasePages never misses a lock that
+   * has been granted.
+   */
+  private void grant(PageLock lock, PageId pageId, TransactionId transactionId, boolean exclusive) {
+    lock.grant(transactionId, exclusive);
+    addPageToTransactionLocks(transactionId, pageId);
   }
 
-  private void addPageToTransactionLocks(TransactionId transactionId, PageId pageId) {
-    pageIdsLockedByTransaction.putIfAbsent(transactionId, new LinkedBlockingQueue<PageId>());
-    pageIdsLockedByTransaction.get(transactionId).add(pageId);
+  /**
+   * Grants the lock to waiters at the head of the queue, in order, until one
+   * conflicts with the holders. Called with the page's monitor held.
+   */
+  private void grantWaiters(PageLock lock, PageId pageId) {
+    boolean granted = false;
+    Iterator<LockRequest> waiters = lock.waiters.iterator();
+    while (waiters.hasNext()) {
+      LockRequest request = waiters.next();
+      if (!lock.isCompatible(request.transactionId, request.exclusive)) {
+        break;
+      }
+      waiters.remove();
+      removeWaitingRequest(request);
+      grant(lock, pageId, request.transactionId, request.exclusive);
+      request.granted = true;
+      LockSupport.unpark(request.thread);
+      granted = true;
+    }
+    if (granted) {
+      updateBlockers(lock);
+    }
   }
 
-  public boolean acquireReadOnlyLock(TransactionId transactionId, PageId pageId)
-      throws TransactionAbortedException {
-    Object lock = getLock(pageId);
-    while (true) {
-      synchronized (lock) {
-        TransactionId exclusiveLockHolder = exclusiveLocks.get(pageId);
-        if (exclusiveLockHolder == null || transactionId.equals(exclusiveLockHolder)) {
-          removeDependencies(transactionId);
-          addSharedUser(transactionId, pageId);
-          return true;
-        }
-        addDependency(transactionId, exclusiveLockHolder);
+  private void cancel(PageLock lock, PageId pageId, LockRequest request) {
+    lock.waiters.remove(request);
+    removeWaitingRequest(request);
+    // the cancelled request may have been the one holding up the queue
+    grantWaiters(lock, pageId);
+  }
+
+  /**
+   * Recomputes the waits-for edges of every waiter of the page: a waiter waits
+   * for the holders it conflicts with and for the conflicting requests queued
+   * ahead of it. Called with the page's monitor held.
+   */
+  private void updateBlockers(PageLock lock) {
+    Set<TransactionId> sharedAhead = new HashSet<TransactionId>(lock.sharedHolders);
+    Set<TransactionId> exclusiveAhead = new HashSet<TransactionId>();
+    if (lock.exclusiveHolder != null) {
+      exclusiveAhead.add(lock.exclusiveHolder);
+    }
+    for (LockRequest request : lock.waiters) {
+      Set<TransactionId> blockers = new HashSet<TransactionId>(exclusiveAhead);
+      if (request.exclusive) {
+        blockers.addAll(sharedAhead);
+      }
+      blockers.remove(request.transactionId);
+      request.blockers = blockers;
+      if (request.exclusive) {
+        exclusiveAhead.add(request.transactionId);
+      } else {
+        sharedAhead.add(request.transactionId);
       }
     }
   }
 
-  private void removeDependencies(TransactionId dependent) {
-    dependencyGraph.remove(dependent);
+  private void addWaitingRequest(LockRequest request) {
+    waitingRequests.putIfAbsent(request.transactionId, new LinkedBlockingQueue<LockRequest>());
+    waitingRequests.get(request.transactionId).add(request);
   }
 
-  private void addDependency(TransactionId dependent, TransactionId dependee)
-      throws TransactionAbortedException {
-    Collection<TransactionId> dependees = new ArrayList<TransactionId>();
-    dependees.add(dependee);
-    addDependencies(dependent, dependees);
+  private void removeWaitingRequest(LockRequest request) {
+    Collection<LockRequest> requests = waitingRequests.get(request.transactionId);
+    if (requests != null) {
+      requests.remove(request);
+    }
   }
 
-  private void addDependencies(TransactionId dependent, Collection<TransactionId> dependees)
-      throws TransactionAbortedException {
-    dependencyGraph.putIfAbsent(dependent, new LinkedBlockingQueue<TransactionId>());
-    Collection<TransactionId> dependeesCollection = dependencyGraph.get(dependent);
-    boolean addedDependee = false;
-    for (TransactionId newDependee : dependees) {
-      if (!dependeesCollection.contains(newDependee) && !newDependee.equals(dependent)) {
-        addedDependee = true;
-        dependeesCollection.add(newDependee);
-      }
+  private Set<TransactionId> getDependees(TransactionId transactionId) {
+    Collection<LockRequest> requests = waitingRequests.get(transactionId);
+    if (requests == null || requests.isEmpty()) {
+      return Collections.emptySet();
     }
-    if (addedDependee) {
-      abortIfDeadlocked();
+    Set<TransactionId> dependees = new HashSet<TransactionId>();
+    for (LockRequest request : requests) {
+      dependees.addAll(request.blockers);
     }
+    return dependees;
   }
 
-  private void abortIfDeadlocked() throws TransactionAbortedException {
-    Set<TransactionId> visitedTransactionIds = new HashSet<TransactionId>();
-    for (TransactionId transactionId : dependencyGraph.keySet()) {
-      if (!visitedTransactionIds.contains(transactionId)) {
-        testForDeadlock(transactionId, visitedTransactionIds, new Stack<TransactionId>());
+  /**
+   * Looks for a waits-for cycle through the transaction that just queued the
+   * request and, if there is one, aborts a victim on it. Every edge added since
+   * the last check starts at or ends at that transaction, so any new cycle
+   * passes through it and the search can start there.
+   */
+  private void resolveDeadlock(LockRequest request) {
+    List<TransactionId> cycle = findCycle(request.transactionId);
+    if (cycle == null) {
+      return;
+    }
+    TransactionId victim = chooseVictim(request.transactionId, cycle);
+    if (victim.equals(request.transactionId)) {
+      request.aborted = true;
+    } else {
+      abortTransaction(victim);
+    }
+  }
+
+  /**
+   * Depth-first search of the waits-for graph from the given transaction, each
+   * transaction visited at most once.
+   *
+   * @return the transactions on a cycle through start, or null if there is none
+   */
+  private List<TransactionId> findCycle(TransactionId start) {
+    Map<TransactionId, TransactionId> parents = new HashMap<TransactionId, TransactionId>();
+    Deque<TransactionId> stack = new ArrayDeque<TransactionId>();
+    stack.push(start);
+    while (!stack.isEmpty()) {
+      TransactionId transactionId = stack.pop();
+      for (TransactionId dependee : getDependees(transactionId)) {
+        if (dependee.equals(start)) {
+          List<TransactionId> cycle = new ArrayList<TransactionId>();
+          for (TransactionId t = transactionId; !t.equals(start); t = parents.get(t)) {
+            cycle.add(t);
+          }
+          cycle.add(start);
+          return cycle;
+        }
+        if (!parents.containsKey(dependee)) {
+          parents.put(dependee, transactionId);
+          stack.push(dependee);
+        }
       }
     }
+    return null;
   }
 
-  private void testForDeadlock(TransactionId transactionId,
-      Set<TransactionId> visitedTransactionIds, Stack<TransactionId> parents)
-      throws TransactionAbortedException {
-    visitedTransactionIds.add(transactionId);
-    if (!dependencyGraph.containsKey(transactionId)) {
-      return;
+  private TransactionId chooseVictim(TransactionId requester, List<TransactionId> cycle) {
+    TransactionId victim = requester;
+    if (victimPolicy == VictimPolicy.REQUESTER) {
+      return victim;
     }
-    for (TransactionId dependee : dependencyGraph.get(transactionId)) {
-      if (parents.contains(dependee)) {
-        throw new TransactionAbortedException();
+    int victimLocks = getLockCount(victim);
+    for (TransactionId transactionId : cycle) {
+      if (transactionId.equals(TransactionId.NULL_TRANSACTION_ID)) {
+        // no one would ever complete the null transaction and clear its abort
+        continue;
       }
-      if (!visitedTransactionIds.contains(dependee)) {
-        parents.push(transactionId);
-        testForDeadlock(dependee, visitedTransactionIds, parents);
-        parents.pop();
+      int locks = getLockCount(transactionId);
+      boolean younger = transactionId.getId() > victim.getId();
+      if (victimPolicy == VictimPolicy.YOUNGEST ? younger
+          : locks < victimLocks || (locks == victimLocks && younger)) {
+        victim = transactionId;
+        victimLocks = locks;
       }
     }
+    return victim;
   }
 
-  private void addSharedUser(TransactionId transactionId, PageId pageId) {
-    if (!sharedLocks.containsKey(pageId)) {
-      sharedLocks.put(pageId, new ArrayList<TransactionId>());
-    }
-    sharedLocks.get(pageId).add(transactionId);
+  private int getLockCount(TransactionId transactionId) {
+    Collection<PageId> pageIds = pageIdsLockedByTransaction.get(transactionId);
+    return pageIds == null ? 0 : pageIds.size();
   }
 
-  private Collection<TransactionId> getLockHolders(PageId pageId) {
-    Collection<TransactionId> lockHolders = new ArrayList<TransactionId>();
-    if (exclusiveLocks.containsKey(pageId)) {
-      lockHolders.add(exclusiveLocks.get(pageId));
-      return lockHolders;
-    }
-    if (sharedLocks.containsKey(pageId)) {
-      lockHolders.addAll(sharedLocks.get(pageId));
+  /**
+   * Applies wait-die or wound-wait to every waiter of the page, which also
+   * covers waiters that an upgrade has just been queued ahead of. Called with
+   * the page's monitor held.
+   */
+  private void resolveByAge(PageLock lock, DeadlockPolicy policy) {
+    for (LockRequest request : lock.waiters) {
+      for (TransactionId blocker : request.blockers) {
+        if (blocker.getId() < request.transactionId.getId()) {
+          if (policy == DeadlockPolicy.WAIT_DIE) {
+            // younger transactions never wait for older ones
+            request.aborted = true;
+            LockSupport.unpark(request.thread);
+            break;
+          }
+        } else if (policy == DeadlockPolicy.WOUND_WAIT
+            && !blocker.equals(TransactionId.NULL_TRANSACTION_ID)) {
+          abortTransaction(blocker);
+        }
+      }
     }
-    return lockHolders;
   }
 
-  private boolean isLockedByOthers(TransactionId transactionId,
-      Collection<TransactionId> lockHolders) {
-    if (lockHolders == null || lockHolders.isEmpty()) {
-      return false;
+  /**
+   * Marks the transaction as aborted and wakes any of its threads waiting for
+   * locks. The mark is cleared when its locks are released.
+   */
+  private void abortTransaction(TransactionId transactionId) {
+    abortedTransactions.add(transactionId);
+    Collection<LockRequest> requests = waitingRequests.get(transactionId);
+    if (requests == null) {
+      return;
     }
-    if (lockHolders.size() == 1 && transactionId.equals(lockHolders.iterator().next())) {
-      return false;
+    for (LockRequest request : requests) {
+      request.aborted = true;
+      LockSupport.unpark(request.thread);
     }
-    return true;
   }
 
-  private void addExclusiveUser(TransactionId transactionId, PageId pageId) {
-    exclusiveLocks.put(pageId, transactionId);
+  private void addPageToTransactionLocks(TransactionId transactionId, PageId pageId) {
+    pageIdsLockedByTransaction.putIfAbsent(transactionId, newPageIdSet());
+    pageIdsLockedByTransaction.get(transactionId).add(pageId);
   }
 
-  public boolean acquireReadWriteLock(TransactionId transactionId, PageId pageId)
-      throws TransactionAbortedException {
-    Object lock = getLock(pageId);
-    while (true) {
-      synchronized (lock) {
-        Collection<TransactionId> lockHolders = getLockHolders(pageId);
-        if (!isLockedByOthers(transactionId, lockHolders)) {
-          removeDependencies(transactionId);
-          addExclusiveUser(transactionId, pageId);
-          return true;
-        }
-        addDependencies(transactionId, lockHolders);
-      }
-    }
+  private static Collection<PageId> newPageIdSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
   }
 
   private void releaseLock(TransactionId transactionId, PageId pageId) {
-    Object lock = getLock(pageId);
+    PageLock lock = getLock(pageId);
     synchronized (lock) {
-      exclusiveLocks.remove(pageId);
-      if (sharedLocks.containsKey(pageId)) {
-        sharedLocks.get(pageId).remove(transactionId);
+      if (transactionId.equals(lock.exclusiveHolder)) {
+        lock.exclusiveHolder = null;
       }
+      lock.sharedHolders.remove(transactionId);
+      grantWaiters(lock, pageId);
     }
   }
 
@@ -217,12 +511,13 @@ public class LockManager {
   }
 
   public void releasePages(TransactionId transactionId) {
+    abortedTransactions.remove(transactionId);
     if (pageIdsLockedByTransaction.containsKey(transactionId)) {
       Collection<PageId> pageIds = pageIdsLockedByTransaction.get(transactionId);
+      pageIdsLockedByTransaction.replace(transactionId, newPageIdSet());
       for (PageId pageId : pageIds) {
         releaseLock(transactionId, pageId);
       }
-      pageIdsLockedByTransaction.replace(transactionId, new LinkedBlockingQueue<PageId>());
     }
   }
 
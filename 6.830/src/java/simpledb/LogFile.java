@@ -1,13 +1,15 @@
 package simpledb;
 
-import javax.xml.crypto.Data;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 
 /**
  LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -19,65 +21,140 @@ import java.util.*;
  <p>
 
  Many of the methods here are synchronized (to prevent concurrent log
- writes from happening); many of the methods in BufferPool are also
- synchronized (for similar reasons.)  Problem is that BufferPool writes
- log records (on page flushed) and the log file flushes BufferPool
- pages (on checkpoints and recovery.)  This can lead to deadlock.  For
- that reason, any LogFile operation that needs to access the BufferPool
- must not be declared synchronized and must begin with a block like:
+ writes from happening).  BufferPool writes log records while holding
+ the latch of the page it flushes, so the lock order is page latch, then
+ LogFile monitor.  The log file in turn writes and discards BufferPool
+ pages on rollback and recovery, which takes frame locks and page
+ latches; to keep to that order, no LogFile operation calls into the
+ BufferPool while holding the LogFile monitor.  Rollback and recovery
+ log their CLRs and force them inside the monitor, and only then, after
+ releasing it, write the restored pages and discard the cached copies
+ (see installPages).
+
+ <u> Writing records: </u>
+ <p>
+
+ Each record is serialized into a reusable direct ByteBuffer and written
+ with a single positional FileChannel write at currentOffset, which is
+ the in-memory end of the current segment.  Reads go through LogReader,
+ which fetches large chunks of the log at a time and verifies each
+ record's checksum.
+
+ <u> Segments: </u>
+ <p>
+
+ The log is split into segment files next to a small manifest (the file
+ the LogFile is constructed with).  Records are appended to the last
+ segment until it reaches the segment size; the segment is then forced
+ and a new one started, so only the last segment is ever incomplete.
+ Truncating the log updates the manifest to start at the oldest segment
+ recovery still needs and deletes the older segment files, which costs
+ the same no matter how long the log is, and never copies a record.
 
+ <u> Group commit: </u>
  <p>
- <pre>
- synchronized (Database.getBufferPool()) {
- synchronized (this) {
 
- ..
+ Committing transactions do not force the log themselves.  They append
+ their COMMIT record and then wait, outside the LogFile monitor, for a
+ single flusher thread that forces everything appended so far and wakes
+ every waiter at once.  One fsync therefore covers all the commits that
+ arrived while the previous one was in progress, and the flusher can
+ optionally wait up to a maximum batch delay to let more commits join.
+ force() waits for the flusher the same way; methods that already hold
+ the LogFile monitor call forceLog() instead.
+
+ <u> Recovery: </u>
+ <p>
 
- }
- }
- </pre>
+ Recovery follows ARIES.  Every record is identified by its LSN, its
+ position in the log as a whole, so LSNs stay valid when old segments
+ are deleted.  Each page stores the LSN of
+ the last logged change it holds, records point back to the previous
+ record of their transaction, and checkpoints save the transaction table
+ and the BufferPool's dirty page table.  recover() runs three passes: an
+ analysis pass from the last checkpoint rebuilds both tables, a redo pass
+ from the oldest recLSN of a dirty page reapplies the changes that pages
+ on disk are missing, and an undo pass rolls back the transactions that
+ did not finish, logging a compensation record (CLR) for every change it
+ undoes so that a crash during recovery never undoes a change twice.
+ Rolling back a transaction at runtime is the same undo.
  */
 
 /**
  * <p>
- * The format of the log file is as follows:
+ * The format of the log (version 3) is as follows. All numbers are
+ * big-endian.
  * 
  * <ul>
  * 
- * <li>The first long integer of the file represents the offset of the last
- * written checkpoint, or -1 if there are no checkpoints
+ * <li>The manifest holds an integer magic number, an integer format version,
+ * a long integer LSN of the last written checkpoint, or -1 if there are no
+ * checkpoints, and the long integer number of the oldest segment.
+ * 
+ * <li>Segment n is the file named after the manifest with the suffix
+ * ".n", zero-padded to eight digits. Segments are numbered consecutively.
+ * Each begins with an integer magic number and the long integer LSN of its
+ * first record; the LSN of a record is that LSN plus the record's offset from
+ * the end of this header. A segment ends exactly where the next one begins.
  * 
- * <li>All additional data in the log consists of log records. Log records are
- * variable length.
+ * <li>All additional data in a segment consists of log records. Log records
+ * are variable length, and never span segments.
  * 
- * <li>Each log record begins with an integer type and a long integer
- * transaction id.
+ * <li>Each log record begins with a byte type, an integer body length, a long
+ * integer transaction id and the long integer LSN of the previous record of
+ * the same transaction (-1 if there is none), followed by the body.
  * 
- * <li>Each log record ends with a long integer file offset representing the
- * position in the log file where the record began.
+ * <li>Each log record ends with an integer CRC-32 of everything from the type
+ * through the body, and the long integer LSN of the record. A record whose
+ * checksum does not match (such as one torn by a crash) ends the log.
  * 
- * <li>There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and CHECKPOINT
+ * <li>There are seven record types: ABORT, COMMIT, UPDATE, SLOT_UPDATE, BEGIN,
+ * CHECKPOINT and CLR
  * 
  * <li>ABORT, COMMIT, and BEGIN records contain no additional data
  * 
  * <li>UPDATE RECORDS consist of two entries, a before image and an after image.
- * These images are serialized Page objects, and can be accessed with the
- * LogFile.readPageData() and LogFile.writePageData() methods. See
- * LogFile.print() for an example.
+ * Each image is a byte page type tag, a byte page id type tag, a byte count of
+ * page id integers, the page id integers (see PageId.serialize()), an integer
+ * data length and the page data. The tags are listed below; see
+ * LogFile.writePageData() and LogFile.readPageData().
+ * 
+ * <li>SLOT_UPDATE records hold changes to individual slots of a HeapPage: the
+ * page id (its type tag, integer count and integers, as in an image), an
+ * integer count of changes, and for each change a byte that is 1 if a tuple
+ * was inserted and 0 if one was deleted, the integer slot number, an integer
+ * data length and the bytes of the inserted or deleted tuple. They are written
+ * instead of UPDATE records when physiological logging is enabled.
  * 
- * <li>CHECKPOINT records consist of active transactions at the time the
- * checkpoint was taken and their first log record on disk. The format of the
- * record is an integer count of the number of transactions, as well as a long
- * integer transaction id and a long integer first record offset for each active
- * transaction.
+ * <li>CLR (compensation) records are written while a transaction is rolled
+ * back, one for each UPDATE or SLOT_UPDATE record undone. They consist of the
+ * long integer LSN of the next record of the transaction to undo, a byte form,
+ * and either (form 0) the page image the undo installed, in the format of an
+ * UPDATE image, or (form 1) the slot changes the undo made, in the format of a
+ * SLOT_UPDATE body. CLRs are redone but never undone.
+ * 
+ * <li>CHECKPOINT records consist of the transaction table and the dirty page
+ * table at the time the checkpoint was taken: an integer count of
+ * transactions, a long integer transaction id, first record LSN and last
+ * record LSN for each active transaction, an integer count of dirty pages, and
+ * the page id (as in a SLOT_UPDATE record) and long integer recLSN of each
+ * dirty page.
  * 
  * </ul>
  */
 
 public class LogFile {
 
-  final File logFile;
-  private RandomAccessFile raf;
+  final File logFile; // the manifest
+  private final RandomAccessFile raf;
+  private final FileChannel manifest; // raf's channel
+  // the segments, by the LSN of their first record
+  private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>(); // protected by this
+  private Segment current; // the last segment; protected by this
+  private FileChannel channel; // current's channel, where records are appended
+  private ByteBuffer writeBuffer; // protected by this
+  private final CRC32 writeChecksum = new CRC32(); // protected by this
+  private final byte[] checksumScratch = new byte[BufferPool.getPageSize()]; // protected by this
   Boolean recoveryUndecided; // no call to recover() and no append to log
 
   static final int ABORT_RECORD = 1;
@@ -85,16 +162,67 @@ public class LogFile {
   static final int UPDATE_RECORD = 3;
   static final int BEGIN_RECORD = 4;
   static final int CHECKPOINT_RECORD = 5;
+  static final int SLOT_UPDATE_RECORD = 6;
+  static final int CLR_RECORD = 7;
   static final long NO_CHECKPOINT_ID = -1;
+  static final long NO_LSN = -1;
+
+  // forms of a CLR record
+  static final byte CLR_IMAGE = 0;
+  static final byte CLR_SLOTS = 1;
 
   final static int INT_SIZE = 4;
   final static int LONG_SIZE = 8;
 
-  long currentOffset = -1;// protected by this
+  static final int LOG_MAGIC = 0x53444247; // "SDBG"
+  static final int LOG_VERSION = 3;
+  static final int CHECKPOINT_POINTER_OFFSET = 2 * INT_SIZE;
+  static final int FIRST_SEGMENT_OFFSET = CHECKPOINT_POINTER_OFFSET + LONG_SIZE;
+  static final int HEADER_SIZE = FIRST_SEGMENT_OFFSET + LONG_SIZE;
+  // magic, LSN of the first record
+  static final int SEGMENT_HEADER_SIZE = INT_SIZE + LONG_SIZE;
+  static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+  // type, body length, tid, prevLSN
+  static final int RECORD_HEADER_SIZE = 1 + INT_SIZE + 2 * LONG_SIZE;
+  // crc, LSN
+  static final int RECORD_TRAILER_SIZE = INT_SIZE + LONG_SIZE;
+
+  // type tags of the page and page id classes that may appear in the log
+  static final byte HEAP_PAGE_TAG = 1;
+  static final byte HEAP_PAGE_ID_TAG = 1;
+  /** Large enough for an UPDATE record with two default-sized page images. */
+  final static int INITIAL_WRITE_BUFFER_SIZE = 4 * BufferPool.getPageSize();
+
+  long currentOffset = -1;// offset in the current segment; protected by this
+  long firstSegment = 0; // number of the oldest segment; protected by this
+  private long segmentSize = DEFAULT_SEGMENT_SIZE; // protected by this
+  // LSN of the end of the log, readable without the LogFile monitor
+  private volatile long endLsn = SEGMENT_HEADER_SIZE;
   // int pageSize;
   int totalRecords = 0; // for PatchTest //protected by this
 
+  // the transaction table: first and last record LSNs of active transactions
   HashMap<Long, Long> tidToFirstLogRecord = new HashMap<Long, Long>();
+  HashMap<Long, Long> tidToLastLogRecord = new HashMap<Long, Long>();
+  private long recordTid; // tid of the record in the write buffer
+  // recLSN of each page undo restored that installPages has not written yet;
+  // checkpoints count them as dirty. protected by this
+  private final Map<PageId, Long> uninstalledPages = new HashMap<PageId, Long>();
+
+  /** How long an idle flusher thread lingers before it exits. */
+  static final long FLUSHER_IDLE_MILLIS = 1000;
+
+  // incremented on every append; unlike offsets, it survives truncation
+  long appendSequence = 0; // protected by this
+  private volatile boolean groupCommit = true;
+  private volatile long maxBatchDelayMicros = 0;
+  private volatile boolean physiologicalLogging = false;
+
+  private final Object flushLock = new Object();
+  private long flushedSequence = 0; // protected by flushLock
+  private long requestedSequence = 0; // protected by flushLock
+  private IOException flushError = null; // protected by flushLock
+  private Thread flusher = null; // protected by flushLock
 
   /**
    * Constructor. Initialize and back the log file with the specified file.
@@ -110,6 +238,8 @@ public class LogFile {
   public LogFile(File f) throws IOException {
     this.logFile = f;
     raf = new RandomAccessFile(f, "rw");
+    manifest = raf.getChannel();
+    writeBuffer = ByteBuffer.allocateDirect(INITIAL_WRITE_BUFFER_SIZE);
     recoveryUndecided = Boolean.TRUE;
 
     // install shutdown hook to force cleanup on close
@@ -128,20 +258,279 @@ public class LogFile {
   // the log.
   void preAppend() throws IOException {
     totalRecords++;
+    appendSequence++;
     if (recoveryUndecided.booleanValue()) {
       recoveryUndecided = Boolean.FALSE;
-      raf.seek(0);
-      raf.setLength(0);
-      raf.writeLong(NO_CHECKPOINT_ID);
-      raf.seek(raf.length());
-      currentOffset = raf.getFilePointer();
+      startEmptyLog();
+    }
+  }
+
+  /** Throw out the segments of any previous log and start a new one. */
+  private void startEmptyLog() throws IOException {
+    closeSegments();
+    long number = 0;
+    if (manifest.size() > 0) {
+      try {
+        readHeader();
+        number = firstSegment;
+      } catch (IOException e) {
+        // not a log; there are no segments to delete
+      }
+    }
+    while (segmentFile(logFile, number).delete()) {
+      number++;
+    }
+    manifest.truncate(0);
+    writeHeader(manifest, NO_CHECKPOINT_ID, 0);
+    firstSegment = 0;
+    createSegment(0, SEGMENT_HEADER_SIZE);
+  }
+
+  private static void writeHeader(FileChannel channel, long checkpointLsn, long firstSegment)
+      throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(LOG_MAGIC);
+    header.putInt(LOG_VERSION);
+    header.putLong(checkpointLsn);
+    header.putLong(firstSegment);
+    header.flip();
+    writeFully(channel, header, 0);
+  }
+
+  /**
+   * Read the manifest, setting firstSegment.
+   * 
+   * @return the checkpoint LSN from the manifest
+   */
+  private long readHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining() && manifest.read(header, header.position()) >= 0) {
+      // keep reading
+    }
+    if (header.hasRemaining() || header.getInt(0) != LOG_MAGIC) {
+      throw new IOException("not a SimpleDb log file: " + logFile);
+    }
+    if (header.getInt(INT_SIZE) != LOG_VERSION) {
+      throw new IOException("unsupported log format version " + header.getInt(INT_SIZE));
+    }
+    firstSegment = header.getLong(FIRST_SEGMENT_OFFSET);
+    return header.getLong(CHECKPOINT_POINTER_OFFSET);
+  }
+
+  /** @return the file of the given segment of a log */
+  static File segmentFile(File logFile, long number) {
+    return new File(logFile.getPath() + String.format(".%08d", number));
+  }
+
+  /**
+   * Create a segment whose first record will have the given LSN, and make it
+   * the current segment.
+   */
+  private void createSegment(long number, long firstLsn) throws IOException {
+    File file = segmentFile(logFile, number);
+    FileChannel segmentChannel = new RandomAccessFile(file, "rw").getChannel();
+    segmentChannel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    header.putInt(LOG_MAGIC);
+    header.putLong(firstLsn);
+    header.flip();
+    writeFully(segmentChannel, header, 0);
+    current = new Segment(number, file, segmentChannel, firstLsn);
+    segments.put(firstLsn, current);
+    channel = segmentChannel;
+    currentOffset = SEGMENT_HEADER_SIZE;
+    endLsn = firstLsn;
+  }
+
+  /**
+   * @return the existing segment, or null if it is missing or its header is
+   *         incomplete
+   */
+  private Segment openSegment(long number) throws IOException {
+    File file = segmentFile(logFile, number);
+    if (!file.exists()) {
+      return null;
+    }
+    FileChannel segmentChannel = new RandomAccessFile(file, "rw").getChannel();
+    ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    while (header.hasRemaining() && segmentChannel.read(header, header.position()) >= 0) {
+      // keep reading
+    }
+    if (header.hasRemaining() || header.getInt(0) != LOG_MAGIC) {
+      segmentChannel.close();
+      return null;
+    }
+    return new Segment(number, file, segmentChannel, header.getLong(INT_SIZE));
+  }
+
+  private void closeSegments() throws IOException {
+    for (Segment segment : segments.values()) {
+      segment.channel.close();
+    }
+    segments.clear();
+    current = null;
+    channel = null;
+  }
+
+  /**
+   * Force the current segment and start the next one where it ends. The
+   * force keeps every segment but the last complete, and lets the flusher
+   * force only the current segment.
+   */
+  private void rollSegment() throws IOException {
+    channel.force(true);
+    createSegment(current.number + 1, endLsn);
+  }
+
+  /**
+   * Sets the size at which a segment is closed and a new one started. A
+   * record larger than this gets a segment of its own.
+   */
+  public synchronized void setSegmentSize(long segmentSize) {
+    this.segmentSize = segmentSize;
+  }
+
+  /** @return a reader of the log up to its current end */
+  private LogReader newReader() {
+    return new LogReader(segments, endLsn);
+  }
+
+  /**
+   * Clear the write buffer and start a record with its type, transaction id
+   * and the LSN of the transaction's previous record. The buffer can take at
+   * least the given number of further bytes.
+   */
+  private void beginRecord(int type, long tid, int bodySize) {
+    writeBuffer.clear();
+    reserve(RECORD_HEADER_SIZE + bodySize + RECORD_TRAILER_SIZE);
+    Long prevLsn = tidToLastLogRecord.get(tid);
+    writeBuffer.put((byte) type);
+    writeBuffer.putInt(0); // body length, filled in by finishRecord
+    writeBuffer.putLong(tid);
+    writeBuffer.putLong(prevLsn == null ? NO_LSN : prevLsn.longValue());
+    recordTid = tid;
+  }
+
+  /** Grow the write buffer, keeping its contents, to fit size more bytes. */
+  private void reserve(int size) {
+    if (writeBuffer.remaining() >= size) {
+      return;
+    }
+    int capacity = Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + size);
+    ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+    writeBuffer.flip();
+    grown.put(writeBuffer);
+    writeBuffer = grown;
+  }
+
+  /**
+   * Fill in the body length of the record in the write buffer, add its
+   * checksum and LSN, and flip the buffer for writing.
+   */
+  private void finishRecord(long lsn) {
+    int bodyLength = writeBuffer.position() - RECORD_HEADER_SIZE;
+    writeBuffer.putInt(1, bodyLength);
+    reserve(RECORD_TRAILER_SIZE);
+    // CRC32 only takes arrays, so feed it through a scratch array
+    ByteBuffer covered = writeBuffer.duplicate();
+    covered.flip();
+    writeChecksum.reset();
+    while (covered.hasRemaining()) {
+      int length = Math.min(covered.remaining(), checksumScratch.length);
+      covered.get(checksumScratch, 0, length);
+      writeChecksum.update(checksumScratch, 0, length);
+    }
+    writeBuffer.putInt((int) writeChecksum.getValue());
+    writeBuffer.putLong(lsn);
+    writeBuffer.flip();
+  }
+
+  /**
+   * Finish the record in the write buffer and append it to the log at
+   * currentOffset, making it the last record of its transaction if the
+   * transaction is active.
+   * 
+   * @return the LSN of the record
+   */
+  private long appendRecord() throws IOException {
+    long size = writeBuffer.position() + RECORD_TRAILER_SIZE;
+    if (currentOffset > SEGMENT_HEADER_SIZE && currentOffset + size > segmentSize) {
+      rollSegment();
+    }
+    long start = currentOffset;
+    long lsn = endLsn;
+    finishRecord(lsn);
+    currentOffset = start + writeFully(channel, writeBuffer, start);
+    endLsn = lsn + (currentOffset - start);
+    if (tidToLastLogRecord.containsKey(recordTid)) {
+      tidToLastLogRecord.put(recordTid, lsn);
+    }
+    return lsn;
+  }
+
+  private static int writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int written = 0;
+    while (buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
     }
+    return written;
+  }
+
+  /** Overwrite a long in the manifest. */
+  private void writeLongAt(long position, long value) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(LONG_SIZE);
+    buffer.putLong(value);
+    buffer.flip();
+    writeFully(manifest, buffer, position);
   }
 
   public synchronized int getTotalRecords() {
     return totalRecords;
   }
 
+  /**
+   * @return the LSN the next record will get. Any record appended later has
+   *         at least this LSN, so the BufferPool uses it as the recLSN of a
+   *         page when it becomes dirty. Does not take the LogFile monitor.
+   */
+  public long getEndLsn() {
+    return endLsn;
+  }
+
+  /**
+   * Enables or disables group commit. When disabled, every commit forces the
+   * log itself while holding the LogFile monitor.
+   */
+  public void setGroupCommit(boolean groupCommit) {
+    this.groupCommit = groupCommit;
+  }
+
+  /**
+   * Sets how long the flusher waits after the first commit of a batch for
+   * more commits to join it. Zero (the default) flushes immediately; commits
+   * that arrive during a flush still share the next one.
+   * 
+   * @param maxBatchDelayMicros the maximum batch delay in microseconds
+   */
+  public void setMaxBatchDelay(long maxBatchDelayMicros) {
+    this.maxBatchDelayMicros = maxBatchDelayMicros;
+  }
+
+  /**
+   * Enables or disables physiological logging. When enabled, flushing a
+   * HeapPage logs the slots changed since it was last written (a
+   * SLOT_UPDATE record of a few dozen bytes for a single insert) instead of
+   * its before and after images.
+   */
+  public void setPhysiologicalLogging(boolean physiologicalLogging) {
+    this.physiologicalLogging = physiologicalLogging;
+  }
+
+  public boolean isPhysiologicalLogging() {
+    return physiologicalLogging;
+  }
+
   /**
    * Write an abort record to the log for the specified tid, force the log to
    * disk, and perform a rollback
@@ -149,47 +538,51 @@ public class LogFile {
    * @param tid The aborting transaction.
    */
   public void logAbort(TransactionId tid) throws IOException {
-    // must have buffer pool lock before proceeding, since this
-    // calls rollback
-
-    synchronized (Database.getBufferPool()) {
-
-      synchronized (this) {
-        preAppend();
-        // Debug.log("ABORT");
-        // should we verify that this is a live transaction?
-
-        // must do this here, since rollback only works for
-        // live transactions (needs tidToFirstLogRecord)
-        rollback(tid);
-
-        raf.writeInt(ABORT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(new Long(tid.getId()));
-      }
+    // the pages rollback restores are installed after leaving the monitor
+    Collection<Page> restored;
+    synchronized (this) {
+      preAppend();
+      // Debug.log("ABORT");
+      // should we verify that this is a live transaction?
+
+      // must do this here, since rollback only works for
+      // live transactions (needs tidToFirstLogRecord)
+      restored = rollback(tid.getId());
+
+      beginRecord(ABORT_RECORD, tid.getId(), 0);
+      appendRecord();
+      forceLog();
+      tidToFirstLogRecord.remove(new Long(tid.getId()));
+      tidToLastLogRecord.remove(new Long(tid.getId()));
     }
+    installPages(restored);
   }
 
   /**
    * Write a commit record to disk for the specified tid, and force the log to
-   * disk.
+   * disk. With group commit, the force is shared with concurrent committers
+   * and happens after the LogFile monitor is released.
    * 
    * @param tid The committing transaction.
    */
-  public synchronized void logCommit(TransactionId tid) throws IOException {
-    preAppend();
-    Debug.log("COMMIT " + tid.getId());
-    // should we verify that this is a live transaction?
-
-    raf.writeInt(COMMIT_RECORD);
-    raf.writeLong(tid.getId());
-    raf.writeLong(currentOffset);
-    currentOffset = raf.getFilePointer();
-    force();
-    tidToFirstLogRecord.remove(new Long(tid.getId()));
+  public void logCommit(TransactionId tid) throws IOException {
+    long sequence;
+    synchronized (this) {
+      preAppend();
+      Debug.log("COMMIT " + tid.getId());
+      // should we verify that this is a live transaction?
+
+      beginRecord(COMMIT_RECORD, tid.getId(), 0);
+      appendRecord();
+      tidToFirstLogRecord.remove(new Long(tid.getId()));
+      tidToLastLogRecord.remove(new Long(tid.getId()));
+      if (!groupCommit) {
+        forceLog();
+        return;
+      }
+      sequence = appendSequence;
+    }
+    awaitFlush(sequence);
   }
 
   /**
@@ -199,10 +592,11 @@ public class LogFile {
    * @param tid The transaction performing the write
    * @param before The before image of the page
    * @param after The after image of the page
+   * @return the LSN of the record, which the page should carry when written
    * @see simpledb.Page#getBeforeImage
    */
-  public synchronized void logWrite(TransactionId tid, Page before, Page after) throws IOException {
-    Debug.log("WRITE, offset = " + raf.getFilePointer());
+  public synchronized long logWrite(TransactionId tid, Page before, Page after) throws IOException {
+    Debug.log("WRITE, offset = " + currentOffset);
     preAppend();
     /*
      * update record conists of
@@ -210,94 +604,149 @@ public class LogFile {
      * record type transaction id before page data (see writePageData) after
      * page data start offset
      */
-    raf.writeInt(UPDATE_RECORD);
-    raf.writeLong(tid.getId());
-
-    writePageData(raf, before);
-    writePageData(raf, after);
-    raf.writeLong(currentOffset);
-    currentOffset = raf.getFilePointer();
+    beginRecord(UPDATE_RECORD, tid.getId(), 0);
+    writePageData(before);
+    writePageData(after);
+    long lsn = appendRecord();
 
     Debug.log("WRITE OFFSET = " + currentOffset);
+    return lsn;
   }
 
-  void writePageData(RandomAccessFile raf, Page p) throws IOException {
-    PageId pid = p.getId();
-    int pageInfo[] = pid.serialize();
-
-    // page data is:
-    // page class name
-    // id class name
-    // id class bytes
-    // id class data
-    // page class bytes
-    // page class data
+  /**
+   * Write a SLOT_UPDATE record to disk for the specified tid and page, with
+   * the slot changes made to the page since it was last written.
+   * 
+   * @param tid The transaction performing the write
+   * @param pid The page that was changed
+   * @param deltas The changes, oldest first
+   * @return the LSN of the record, which the page should carry when written
+   * @see HeapPage#takeSlotDeltas
+   */
+  public synchronized long logSlotUpdates(TransactionId tid, PageId pid,
+      List<HeapPage.SlotDelta> deltas) throws IOException {
+    preAppend();
+    beginRecord(SLOT_UPDATE_RECORD, tid.getId(), 0);
+    writeSlotDeltas(pid, deltas);
+    return appendRecord();
+  }
 
-    String pageClassName = p.getClass().getName();
-    String idClassName = pid.getClass().getName();
+  /**
+   * Write a CLR record for an undone change that installed a page image.
+   * 
+   * @return the LSN of the record
+   */
+  private long logCompensation(long tid, long undoNextLsn, Page image) throws IOException {
+    preAppend();
+    beginRecord(CLR_RECORD, tid, LONG_SIZE + 1);
+    writeBuffer.putLong(undoNextLsn);
+    writeBuffer.put(CLR_IMAGE);
+    writePageData(image);
+    return appendRecord();
+  }
 
-    raf.writeUTF(pageClassName);
-    raf.writeUTF(idClassName);
+  /**
+   * Write a CLR record for an undone change that reverted slot changes.
+   * 
+   * @param deltas the changes the undo made, in the order it made them
+   * @return the LSN of the record
+   */
+  private long logCompensation(long tid, long undoNextLsn, PageId pid,
+      List<HeapPage.SlotDelta> deltas) throws IOException {
+    preAppend();
+    beginRecord(CLR_RECORD, tid, LONG_SIZE + 1);
+    writeBuffer.putLong(undoNextLsn);
+    writeBuffer.put(CLR_SLOTS);
+    writeSlotDeltas(pid, deltas);
+    return appendRecord();
+  }
 
-    raf.writeInt(pageInfo.length);
-    for (int i = 0; i < pageInfo.length; i++) {
-      raf.writeInt(pageInfo[i]);
+  /** Append a page id and its slot changes to the record in the write buffer. */
+  private void writeSlotDeltas(PageId pid, List<HeapPage.SlotDelta> deltas) throws IOException {
+    writePageId(pid);
+    reserve(INT_SIZE);
+    writeBuffer.putInt(deltas.size());
+    for (HeapPage.SlotDelta delta : deltas) {
+      reserve(1 + 2 * INT_SIZE + delta.tupleData.length);
+      writeBuffer.put((byte) (delta.inserted ? 1 : 0));
+      writeBuffer.putInt(delta.slot);
+      writeBuffer.putInt(delta.tupleData.length);
+      writeBuffer.put(delta.tupleData);
     }
-    byte[] pageData = p.getPageData();
-    raf.writeInt(pageData.length);
-    raf.write(pageData);
-    // Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +
-    // pid.getTableId() + ", page = " + pid.pageno());
   }
 
-  Page readPageData(RandomAccessFile raf) throws IOException {
-    PageId pid;
-    Page newPage = null;
-
-    String pageClassName = raf.readUTF();
-    String idClassName = raf.readUTF();
-
-    try {
-      Class<?> idClass = Class.forName(idClassName);
-      Class<?> pageClass = Class.forName(pageClassName);
-
-      Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-      int numIdArgs = raf.readInt();
-      Object idArgs[] = new Object[numIdArgs];
-      for (int i = 0; i < numIdArgs; i++) {
-        idArgs[i] = new Integer(raf.readInt());
-      }
-      pid = (PageId) idConsts[0].newInstance(idArgs);
+  /** Append the page to the record in the write buffer. */
+  void writePageData(Page p) throws IOException {
+    byte[] pageData = p.getPageData();
+    reserve(1);
+    writeBuffer.put(pageTag(p));
+    writePageId(p.getId());
+    reserve(INT_SIZE + pageData.length);
+    writeBuffer.putInt(pageData.length);
+    writeBuffer.put(pageData);
+  }
 
-      Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-      int pageSize = raf.readInt();
+  /** Append the page id to the record in the write buffer. */
+  private void writePageId(PageId pid) throws IOException {
+    int pageInfo[] = pid.serialize();
+    reserve(2 + pageInfo.length * INT_SIZE);
+    writeBuffer.put(pageIdTag(pid));
+    writeBuffer.put((byte) pageInfo.length);
+    for (int i = 0; i < pageInfo.length; i++) {
+      writeBuffer.putInt(pageInfo[i]);
+    }
+  }
 
-      byte[] pageData = new byte[pageSize];
-      raf.read(pageData); // read before image
+  /** Read a page written by writePageData, advancing the buffer past it. */
+  static Page readPageData(ByteBuffer buffer) throws IOException {
+    byte pageTag = buffer.get();
+    PageId pid = readPageId(buffer);
+    byte[] pageData = new byte[buffer.getInt()];
+    buffer.get(pageData);
+    switch (pageTag) {
+    case HEAP_PAGE_TAG:
+      return new HeapPage(pid, pageData);
+    default:
+      throw new IOException("unknown page type tag " + pageTag + " in log");
+    }
+  }
 
-      Object[] pageArgs = new Object[2];
-      pageArgs[0] = pid;
-      pageArgs[1] = pageData;
+  /** Read a page id written by writePageId. */
+  static PageId readPageId(ByteBuffer buffer) throws IOException {
+    byte idTag = buffer.get();
+    int[] pageInfo = new int[buffer.get()];
+    for (int i = 0; i < pageInfo.length; i++) {
+      pageInfo[i] = buffer.getInt();
+    }
+    switch (idTag) {
+    case HEAP_PAGE_ID_TAG:
+      return new HeapPageId(pageInfo[0], pageInfo[1]);
+    default:
+      throw new IOException("unknown page id type tag " + idTag + " in log");
+    }
+  }
 
-      newPage = (Page) pageConsts[0].newInstance(pageArgs);
+  /** Advance the buffer past a page written by writePageData. */
+  static void skipPageData(ByteBuffer buffer) {
+    buffer.position(buffer.position() + 2);
+    int idLength = buffer.get();
+    buffer.position(buffer.position() + idLength * INT_SIZE);
+    int dataLength = buffer.getInt();
+    buffer.position(buffer.position() + dataLength);
+  }
 
-      // Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " +
-      // newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-    } catch (ClassNotFoundException e) {
-      e.printStackTrace();
-      throw new IOException();
-    } catch (InstantiationException e) {
-      e.printStackTrace();
-      throw new IOException();
-    } catch (IllegalAccessException e) {
-      e.printStackTrace();
-      throw new IOException();
-    } catch (InvocationTargetException e) {
-      e.printStackTrace();
-      throw new IOException();
+  private static byte pageTag(Page p) throws IOException {
+    if (p instanceof HeapPage) {
+      return HEAP_PAGE_TAG;
     }
-    return newPage;
+    throw new IOException("no log type tag for " + p.getClass().getName());
+  }
 
+  private static byte pageIdTag(PageId pid) throws IOException {
+    if (pid instanceof HeapPageId) {
+      return HEAP_PAGE_ID_TAG;
+    }
+    throw new IOException("no log type tag for " + pid.getClass().getName());
   }
 
   /**
@@ -312,192 +761,256 @@ public class LogFile {
       throw new IOException("double logXactionBegin()");
     }
     preAppend();
-    raf.writeInt(BEGIN_RECORD);
-    raf.writeLong(tid.getId());
-    raf.writeLong(currentOffset);
-    tidToFirstLogRecord.put(new Long(tid.getId()), new Long(currentOffset));
-    currentOffset = raf.getFilePointer();
+    beginRecord(BEGIN_RECORD, tid.getId(), 0);
+    long lsn = appendRecord();
+    tidToFirstLogRecord.put(new Long(tid.getId()), new Long(lsn));
+    tidToLastLogRecord.put(new Long(tid.getId()), new Long(lsn));
 
     Debug.log("BEGIN OFFSET = " + currentOffset);
   }
 
-  /** Checkpoint the log and write a checkpoint record. */
-  public void logCheckpoint() throws IOException {
-    // make sure we have buffer pool lock before proceeding
-    synchronized (Database.getBufferPool()) {
-      synchronized (this) {
-        // Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-        preAppend();
-        long startCpOffset, endCpOffset;
-        Set<Long> keys = tidToFirstLogRecord.keySet();
-        Iterator<Long> els = keys.iterator();
-        force();
-        Database.getBufferPool().flushAllPages();
-        startCpOffset = raf.getFilePointer();
-        raf.writeInt(CHECKPOINT_RECORD);
-        raf.writeLong(-1); // no tid , but leave space for convenience
-
-        // write list of outstanding transactions
-        raf.writeInt(keys.size());
-        while (els.hasNext()) {
-          Long key = els.next();
-          Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-          raf.writeLong(key.longValue());
-          // Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " +
-          // tidToFirstLogRecord.get(key));
-          raf.writeLong(tidToFirstLogRecord.get(key).longValue());
-        }
-
-        // once the CP is written, make sure the CP location at the
-        // beginning of the log file is updated
-        endCpOffset = raf.getFilePointer();
-        raf.seek(0);
-        raf.writeLong(startCpOffset);
-        raf.seek(endCpOffset);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        // Debug.log("CP OFFSET = " + currentOffset);
+  /**
+   * Write a fuzzy checkpoint: the transaction table and the BufferPool's
+   * dirty page table as they are now. No pages are flushed and other
+   * transactions keep running; pages reach the disk at commit or through the
+   * BufferPool's background writer, and recovery redoes from the oldest recLSN
+   * in the checkpoint. The segments the new checkpoint makes unnecessary are
+   * then deleted; see logTruncate().
+   */
+  public synchronized void logCheckpoint() throws IOException {
+    // Debug.log("CHECKPOINT, offset = " + currentOffset);
+    preAppend();
+    Map<PageId, Long> dirtyPages = Database.getBufferPool().getDirtyPageTable();
+    // restored pages that are not written yet are dirty, too
+    for (Map.Entry<PageId, Long> page : uninstalledPages.entrySet()) {
+      Long recLsn = dirtyPages.get(page.getKey());
+      if (recLsn == null || page.getValue() < recLsn) {
+        dirtyPages.put(page.getKey(), page.getValue());
       }
     }
+    Set<Long> keys = tidToFirstLogRecord.keySet();
+    // no tid , but leave space for convenience
+    beginRecord(CHECKPOINT_RECORD, -1, 2 * INT_SIZE + keys.size() * 3 * LONG_SIZE);
+
+    // write the transaction table
+    writeBuffer.putInt(keys.size());
+    for (Long key : keys) {
+      Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+      writeBuffer.putLong(key.longValue());
+      writeBuffer.putLong(tidToFirstLogRecord.get(key).longValue());
+      writeBuffer.putLong(tidToLastLogRecord.get(key).longValue());
+    }
+
+    // write the dirty page table
+    writeBuffer.putInt(dirtyPages.size());
+    for (Map.Entry<PageId, Long> dirtyPage : dirtyPages.entrySet()) {
+      writePageId(dirtyPage.getKey());
+      reserve(LONG_SIZE);
+      writeBuffer.putLong(dirtyPage.getValue().longValue());
+    }
+    long checkpointLsn = appendRecord();
+    forceLog();
+
+    // once the CP is written, make sure the CP location in the
+    // manifest is updated
+    writeLongAt(CHECKPOINT_POINTER_OFFSET, checkpointLsn);
+    // Debug.log("CP OFFSET = " + currentOffset);
 
     logTruncate();
   }
 
   /**
-   * Truncate any unneeded portion of the log to reduce its space consumption
+   * Truncate any unneeded portion of the log to reduce its space consumption.
+   * Recovery needs nothing before the last checkpoint, the first record of any
+   * transaction active at the checkpoint, or the recLSN of any page dirty at
+   * the checkpoint, whichever is oldest. The log is truncated a segment at a
+   * time: the manifest is moved to the segment holding that record, then the
+   * older segment files are deleted.
    */
   public synchronized void logTruncate() throws IOException {
     preAppend();
-    raf.seek(0);
-    long cpLoc = raf.readLong();
-
-    long minLogRecord = cpLoc;
-
-    if (cpLoc != -1L) {
-      raf.seek(cpLoc);
-      int cpType = raf.readInt();
-      @SuppressWarnings("unused")
-      long cpTid = raf.readLong();
-
-      if (cpType != CHECKPOINT_RECORD) {
-        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-      }
-
-      int numOutstanding = raf.readInt();
-
-      for (int i = 0; i < numOutstanding; i++) {
-        @SuppressWarnings("unused")
-        long tid = raf.readLong();
-        long firstLogRecord = raf.readLong();
-        if (firstLogRecord < minLogRecord) {
-          minLogRecord = firstLogRecord;
-        }
-      }
+    long cpLsn = readHeader();
+    if (cpLsn == NO_CHECKPOINT_ID) {
+      return;
     }
+    Checkpoint checkpoint = Checkpoint.read(readCheckpoint(newReader(), cpLsn));
+    long minLogRecord = Math.min(cpLsn, checkpoint.oldestLsn());
 
-    // we can truncate everything before minLogRecord
-    File newFile = new File("logtmp" + System.currentTimeMillis());
-    RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-    logNew.seek(0);
-    logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-    raf.seek(minLogRecord);
-
-    // have to rewrite log records since offsets are different after truncation
-    while (true) {
-      try {
-        int type = raf.readInt();
-        long record_tid = raf.readLong();
-        long newStart = logNew.getFilePointer();
-
-        Debug.log("NEW START = " + newStart);
+    // we can delete every segment before the one holding minLogRecord
+    Map<Long, Segment> unneeded = segments.headMap(segments.floorKey(minLogRecord));
+    if (unneeded.isEmpty()) {
+      return;
+    }
+    List<Segment> deleted = new ArrayList<Segment>(unneeded.values());
+    unneeded.clear();
+    firstSegment = segments.firstEntry().getValue().number;
+    // a crash must not leave the manifest pointing at a deleted segment
+    writeLongAt(FIRST_SEGMENT_OFFSET, firstSegment);
+    manifest.force(true);
+    for (Segment segment : deleted) {
+      segment.channel.close();
+      segment.file.delete();
+    }
+    Debug.log("TRUNCATING LOG; DELETED " + deleted.size() + " SEGMENTS ; NEW START : "
+        + segments.firstKey());
+  }
 
-        logNew.writeInt(type);
-        logNew.writeLong(record_tid);
+  private static LogRecord readCheckpoint(LogReader reader, long lsn) throws IOException {
+    LogRecord checkpoint = reader.read(lsn);
+    if (checkpoint == null || checkpoint.type != CHECKPOINT_RECORD) {
+      throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    }
+    return checkpoint;
+  }
 
-        switch (type) {
-        case UPDATE_RECORD:
-          Page before = readPageData(raf);
-          Page after = readPageData(raf);
+  private Collection<Page> rollback(long tid) throws NoSuchElementException, IOException {
+    Long lastLogRecord = tidToLastLogRecord.get(tid);
+    if (lastLogRecord == null) {
+      return Collections.emptyList();
+    }
+    return undo(Collections.singletonMap(tid, lastLogRecord));
+  }
 
-          writePageData(logNew, before);
-          writePageData(logNew, after);
-          break;
-        case CHECKPOINT_RECORD:
-          int numXactions = raf.readInt();
-          logNew.writeInt(numXactions);
-          while (numXactions-- > 0) {
-            long xid = raf.readLong();
-            long xoffset = raf.readLong();
-            logNew.writeLong(xid);
-            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-          }
-          break;
-        case BEGIN_RECORD:
-          tidToFirstLogRecord.put(new Long(record_tid), new Long(newStart));
-          break;
+  /**
+   * Roll back transactions by following their records backwards, always
+   * undoing the record with the largest LSN next, and logging a CLR for each
+   * change undone. The CLRs are forced, but the restored pages are left for
+   * the caller to install once it has released the LogFile monitor.
+   *
+   * @param lastLsns the LSN of the last record of each transaction
+   * @return the restored images of the pages changed
+   */
+  private Collection<Page> undo(Map<Long, Long> lastLsns) throws IOException {
+    LogReader reader = newReader();
+    TreeMap<Long, Long> toUndo = new TreeMap<Long, Long>(); // LSN -> tid
+    for (Map.Entry<Long, Long> last : lastLsns.entrySet()) {
+      toUndo.put(last.getValue(), last.getKey());
+    }
+    Map<PageId, Page> restored = new HashMap<PageId, Page>();
+    while (!toUndo.isEmpty()) {
+      Map.Entry<Long, Long> next = toUndo.pollLastEntry();
+      LogRecord record = reader.read(next.getKey());
+      if (record == null) {
+        throw new IOException("log record " + next.getKey() + " to undo is missing");
+      }
+      long nextLsn = record.prevLsn;
+      switch (record.type) {
+      case CLR_RECORD:
+        // the change was undone before; carry on from where that undo left off
+        nextLsn = record.undoNextLsn();
+        break;
+      case UPDATE_RECORD:
+        Page before = record.beforeImage();
+        before.setLsn(logCompensation(record.tid, record.prevLsn, before));
+        restored.put(before.getId(), before);
+        noteUninstalled(before);
+        break;
+      case SLOT_UPDATE_RECORD:
+        PageId pid = record.pageId();
+        HeapPage page = (HeapPage) restored.get(pid);
+        if (page == null) {
+          page = (HeapPage) readPageFromDisk(pid);
+          restored.put(pid, page);
         }
-
-        // all xactions finish with a pointer
-        logNew.writeLong(newStart);
-        raf.readLong();
-
-      } catch (EOFException e) {
+        List<HeapPage.SlotDelta> deltas = record.slotDeltas();
+        List<HeapPage.SlotDelta> undone = new ArrayList<HeapPage.SlotDelta>(deltas.size());
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+          HeapPage.SlotDelta delta = deltas.get(i);
+          page.undo(delta);
+          undone.add(new HeapPage.SlotDelta(delta.slot, !delta.inserted, delta.tupleData));
+        }
+        page.setLsn(logCompensation(record.tid, record.prevLsn, pid, undone));
+        noteUninstalled(page);
+        break;
+      default:
         break;
       }
+      if (nextLsn != NO_LSN) {
+        toUndo.put(nextLsn, record.tid);
+      }
+    }
+    if (!restored.isEmpty()) {
+      forceLog();
     }
+    return restored.values();
+  }
 
-    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord
-        + " NEW LENGTH: " + (raf.length() - minLogRecord));
+  /** Remember a page restored by undo as dirty until installPages writes it. */
+  private void noteUninstalled(Page page) {
+    if (!uninstalledPages.containsKey(page.getId())) {
+      uninstalledPages.put(page.getId(), page.getLsn());
+    }
+  }
 
-    raf.close();
-    logFile.delete();
-    newFile.renameTo(logFile);
-    raf = new RandomAccessFile(logFile, "rw");
-    raf.seek(raf.length());
-    newFile.delete();
+  /**
+   * Write pages restored by undo to disk and drop the BufferPool's copies.
+   * Must be called without holding the LogFile monitor, since discarding a
+   * page waits for a flush of it, which logs.
+   */
+  private void installPages(Collection<Page> pages) throws IOException {
+    BufferPool bufferPool = Database.getBufferPool();
+    for (Page page : pages) {
+      // discard first, so a concurrent flush of the cached page
+      // cannot overwrite the restored image, and again after, so a
+      // prefetch cannot keep the image it read before the write
+      bufferPool.discardPage(page.getId());
+      writePageToDisk(page);
+      bufferPool.discardPage(page.getId());
+      synchronized (this) {
+        uninstalledPages.remove(page.getId());
+      }
+    }
+  }
 
-    currentOffset = raf.getFilePointer();
-    // print();
+  /**
+   * @return the page as it is on disk, bypassing the BufferPool, or an empty
+   *         page if the file does not reach it, as when a crash came before
+   *         a page appended to the file was written
+   */
+  private static Page readPageFromDisk(PageId pid) throws IOException {
+    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    if (file instanceof HeapFile && pid.pageNumber() >= ((HeapFile) file).numPages()) {
+      return new HeapPage(pid, HeapPage.createEmptyPageData());
+    }
+    return file.readPage(pid);
   }
 
-  private void rollback(long tid) throws NoSuchElementException, IOException {
-    Long firstLogRecord = tidToFirstLogRecord.get(tid);
-    if (firstLogRecord == null) {
+  /**
+   * Reapply the change of an UPDATE, SLOT_UPDATE or CLR record to its page on
+   * disk, unless the page already holds it. The caller discards the BufferPool's
+   * copy of the page after releasing the LogFile monitor.
+   */
+  private static void redo(LogRecord record) throws IOException {
+    PageId pid = record.pageId();
+    Page page = readPageFromDisk(pid);
+    if (page.getLsn() >= record.lsn) {
       return;
     }
-    Set<PageId> resetPageIds = new HashSet<PageId>();
-    long previousPointer = raf.getFilePointer();
-    raf.seek(firstLogRecord);
-    long endPointer = currentOffset == -1?raf.length():currentOffset;
-    while (raf.getFilePointer() < endPointer) {
-      int recordType = raf.readInt();
-      long recordTransactionId = raf.readLong();
-      switch (recordType) {
-        case UPDATE_RECORD:
-          Page before = readPageData(raf);
-          readPageData(raf);
-          if (tid == recordTransactionId) {
-            if (!resetPageIds.contains(before.getId())) {
-              resetPageIds.add(before.getId());
-              Database.getCatalog().getDatabaseFile(before.getId().getTableId()).writePage(before);
-              Database.getBufferPool().discardPage(before.getId());
-            }
-          }
-          break;
-        case CHECKPOINT_RECORD:
-          int numActiveTransactions = raf.readInt();
-          for (int i = 0; i < numActiveTransactions; ++i) {
-            raf.readLong();
-            raf.readLong();
-          }
-          break;
-        default:
-          break;
+    if (record.carriesImage()) {
+      page = record.afterImage();
+    } else {
+      for (HeapPage.SlotDelta delta : record.slotDeltas()) {
+        ((HeapPage) page).redo(delta);
       }
-      raf.readLong();
     }
-    raf.seek(previousPointer);
+    page.setLsn(record.lsn);
+    writePageToDisk(page);
+  }
+
+  /**
+   * Write a page, bypassing the BufferPool. A page past the end of a HeapFile
+   * is counted by the file once written.
+   */
+  private static void writePageToDisk(Page page) throws IOException {
+    DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+    file.writePage(page);
+    if (file instanceof HeapFile) {
+      ((HeapFile) file).countPagesTo(page.getId().pageNumber() + 1);
+    }
+  }
+
+  private static boolean isPageChange(int type) {
+    return type == UPDATE_RECORD || type == SLOT_UPDATE_RECORD || type == CLR_RECORD;
   }
 
   /**
@@ -509,12 +1022,12 @@ public class LogFile {
    * @param tid The transaction to rollback
    */
   public void rollback(TransactionId tid) throws NoSuchElementException, IOException {
-    synchronized (Database.getBufferPool()) {
-      synchronized (this) {
-        preAppend();
-        rollback(tid.getId());
-      }
+    Collection<Page> restored;
+    synchronized (this) {
+      preAppend();
+      restored = rollback(tid.getId());
     }
+    installPages(restored);
   }
 
   /**
@@ -524,6 +1037,7 @@ public class LogFile {
   public synchronized void shutdown() {
     try {
       logCheckpoint(); // simple way to shutdown is to write a checkpoint record
+      closeSegments();
       raf.close();
     } catch (IOException e) {
       System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
@@ -537,57 +1051,118 @@ public class LogFile {
    * are not installed.
    */
   public void recover() throws IOException {
-    synchronized (Database.getBufferPool()) {
-      synchronized (this) {
-        recoveryUndecided = false;
-        raf.seek(0);
-        Set<Long> activeTransactionIds = new HashSet<Long>();
-        long checkPointOffset = raf.readLong();
-        if (checkPointOffset >= 0) {
-          raf.seek(checkPointOffset);
-          raf.readInt();
-          raf.readLong();
-          int numActiveTransactions = raf.readInt();
-          for (int i = 0; i < numActiveTransactions; ++i) {
-            long activeTransactionId = raf.readLong();
-            activeTransactionIds.add(activeTransactionId);
-            tidToFirstLogRecord.put(activeTransactionId, raf.readLong());
+    Set<PageId> redone = new HashSet<PageId>();
+    Collection<Page> restored;
+    synchronized (this) {
+      recoveryUndecided = false;
+      if (manifest.size() == 0) {
+        startEmptyLog();
+        return;
+      }
+      long checkpointLsn = readHeader();
+      closeSegments();
+      long number = firstSegment;
+      for (Segment segment; (segment = openSegment(number)) != null; number++) {
+        segments.put(segment.firstLsn, segment);
+        current = segment;
+      }
+      // a segment whose header was torn by the crash is dropped with any after it
+      while (segmentFile(logFile, number).delete()) {
+        number++;
+      }
+      if (current == null) {
+        // the crash came before the first segment was created
+        startEmptyLog();
+        return;
+      }
+      LogReader reader = new LogReader(segments, current.firstLsn + current.channel.size()
+          - SEGMENT_HEADER_SIZE);
+      tidToFirstLogRecord.clear();
+      tidToLastLogRecord.clear();
+      Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+
+      // analysis: rebuild the transaction table and the dirty page table
+      long lsn = segments.firstKey();
+      if (checkpointLsn != NO_CHECKPOINT_ID) {
+        LogRecord checkpoint = readCheckpoint(reader, checkpointLsn);
+        Checkpoint contents = Checkpoint.read(checkpoint);
+        tidToFirstLogRecord.putAll(contents.firstLsns);
+        tidToLastLogRecord.putAll(contents.lastLsns);
+        dirtyPages.putAll(contents.dirtyPages);
+        lsn = checkpoint.end;
+      }
+      LogRecord record;
+      for (; (record = reader.read(lsn)) != null; lsn = record.end) {
+        switch (record.type) {
+        case BEGIN_RECORD:
+          tidToFirstLogRecord.put(record.tid, record.lsn);
+          break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+          tidToFirstLogRecord.remove(record.tid);
+          tidToLastLogRecord.remove(record.tid);
+          continue;
+        case UPDATE_RECORD:
+        case SLOT_UPDATE_RECORD:
+        case CLR_RECORD:
+          PageId pid = record.pageId();
+          if (!dirtyPages.containsKey(pid)) {
+            dirtyPages.put(pid, record.lsn);
           }
-          raf.readLong();
+          break;
+        default:
+          continue;
         }
-        while (raf.getFilePointer() < raf.length()) {
-          long offset = raf.getFilePointer();
-          int recordType = raf.readInt();
-          long recordTransactionId = raf.readLong();
-          switch (recordType) {
-            case ABORT_RECORD:
-              rollback(recordTransactionId);
-              activeTransactionIds.remove(recordTransactionId);
-              break;
-            case COMMIT_RECORD:
-              activeTransactionIds.remove(recordTransactionId);
-              break;
-            case BEGIN_RECORD:
-              activeTransactionIds.add(recordTransactionId);
-              tidToFirstLogRecord.put(recordTransactionId, offset);
-              break;
-            case UPDATE_RECORD:
-              readPageData(raf);
-              Page after = readPageData(raf);
-              Database.getCatalog().getDatabaseFile(after.getId().getTableId()).writePage(after);
-              Database.getBufferPool().discardPage(after.getId());
-              break;
-            default:
-              break;
-          }
-          raf.readLong();
+        // pages are flushed after the COMMIT record, so a change may belong
+        // to a transaction that is no longer active
+        if (tidToFirstLogRecord.containsKey(record.tid)) {
+          tidToLastLogRecord.put(record.tid, record.lsn);
         }
-        currentOffset = raf.getFilePointer();
-        for (long activeTransactionId : activeTransactionIds) {
-          rollback(activeTransactionId);
+      }
+      // anything after the last intact record was torn by the crash
+      current = segments.floorEntry(lsn).getValue();
+      for (Segment torn : new ArrayList<Segment>(segments.tailMap(lsn, false).values())) {
+        segments.remove(torn.firstLsn);
+        torn.channel.close();
+        torn.file.delete();
+      }
+      channel = current.channel;
+      currentOffset = lsn - current.firstLsn + SEGMENT_HEADER_SIZE;
+      channel.truncate(currentOffset);
+      endLsn = lsn;
+      reader = newReader();
+
+      // redo: repeat history for the pages that may be missing changes
+      if (!dirtyPages.isEmpty()) {
+        long redoLsn = Math.max(Collections.min(dirtyPages.values()), segments.firstKey());
+        for (lsn = redoLsn; (record = reader.read(lsn)) != null; lsn = record.end) {
+          if (isPageChange(record.type)) {
+            Long recLsn = dirtyPages.get(record.pageId());
+            if (recLsn != null && record.lsn >= recLsn) {
+              redo(record);
+              redone.add(record.pageId());
+            }
+          }
         }
       }
+
+      // undo: roll back the transactions that did not finish
+      restored = undo(new HashMap<Long, Long>(tidToLastLogRecord));
+      for (Long tid : new ArrayList<Long>(tidToFirstLogRecord.keySet())) {
+        preAppend();
+        beginRecord(ABORT_RECORD, tid, 0);
+        appendRecord();
+        tidToFirstLogRecord.remove(tid);
+        tidToLastLogRecord.remove(tid);
+      }
+      forceLog();
+    }
+    // drop whatever the BufferPool cached of the pages recovery changed, now
+    // that the LogFile monitor is released
+    for (PageId pid : redone) {
+      Database.getBufferPool().discardPage(pid);
     }
+    installPages(restored);
   }
 
   /** Print out a human readable represenation of the log */
@@ -595,8 +1170,387 @@ public class LogFile {
     // some code goes here
   }
 
-  public synchronized void force() throws IOException {
-    raf.getChannel().force(true);
+  /**
+   * Force everything appended so far to disk. With group commit the force is
+   * done by the flusher thread, unless the caller holds the LogFile monitor,
+   * which the flusher needs.
+   */
+  public void force() throws IOException {
+    if (!groupCommit || Thread.holdsLock(this)) {
+      forceLog();
+      return;
+    }
+    long sequence;
+    synchronized (this) {
+      sequence = appendSequence;
+    }
+    awaitFlush(sequence);
+  }
+
+  /** Force the log synchronously. Caller must hold the LogFile monitor. */
+  synchronized void forceLog() throws IOException {
+    channel.force(true);
+    markFlushed(appendSequence);
   }
 
+  private void markFlushed(long sequence) {
+    synchronized (flushLock) {
+      if (sequence > flushedSequence) {
+        flushedSequence = sequence;
+      }
+      flushError = null;
+      flushLock.notifyAll();
+    }
+  }
+
+  /**
+   * Block until the flusher has forced every record up to the given append
+   * sequence number, starting the flusher if it is not running.
+   */
+  private void awaitFlush(long sequence) throws IOException {
+    boolean interrupted = false;
+    try {
+      synchronized (flushLock) {
+        if (sequence > requestedSequence) {
+          requestedSequence = sequence;
+        }
+        if (flusher == null) {
+          flusher = new Thread(new Flusher(), "LogFile flusher");
+          flusher.setDaemon(true);
+          flusher.start();
+        }
+        flushLock.notifyAll();
+        while (flushedSequence < sequence) {
+          if (flushError != null) {
+            throw new IOException("group commit flush failed", flushError);
+          }
+          try {
+            flushLock.wait();
+          } catch (InterruptedException e) {
+            // the commit record is already in the log; it must not be
+            // acknowledged before it is durable, so keep waiting
+            interrupted = true;
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Forces one batch: every record appended before the force starts. Appends
+   * may continue during the force; they go into the next batch.
+   */
+  private void flushBatch() throws IOException {
+    long sequence;
+    FileChannel forced;
+    synchronized (this) {
+      sequence = appendSequence;
+      forced = channel;
+    }
+    while (true) {
+      try {
+        forced.force(true);
+        break;
+      } catch (ClosedChannelException e) {
+        // logTruncate deleted the segment; rolling past it forced it first
+        synchronized (this) {
+          if (forced == channel) {
+            throw e;
+          }
+          forced = channel;
+        }
+      }
+    }
+    markFlushed(sequence);
+  }
+
+  /**
+   * Waits for commits, optionally lets the batch fill for up to the maximum
+   * batch delay, and forces it. Exits after being idle for a while; the next
+   * commit starts a new one.
+   */
+  private class Flusher implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        synchronized (flushLock) {
+          long idleSince = System.currentTimeMillis();
+          while (requestedSequence <= flushedSequence) {
+            long idle = System.currentTimeMillis() - idleSince;
+            if (idle >= FLUSHER_IDLE_MILLIS) {
+              flusher = null;
+              return;
+            }
+            try {
+              flushLock.wait(FLUSHER_IDLE_MILLIS - idle);
+            } catch (InterruptedException e) {
+              flusher = null;
+              return;
+            }
+          }
+        }
+        long delay = maxBatchDelayMicros;
+        if (delay > 0) {
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(delay));
+        }
+        try {
+          flushBatch();
+        } catch (IOException e) {
+          synchronized (flushLock) {
+            flushError = e;
+            flushLock.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /** A log record read back from the log. Its body is decoded on demand. */
+  static class LogRecord {
+    final int type;
+    final long tid;
+    /** LSN of the previous record of the same transaction, or NO_LSN. */
+    final long prevLsn;
+    /** LSN of the record. */
+    final long lsn;
+    /** LSN of the next record. */
+    final long end;
+    private final ByteBuffer body;
+
+    LogRecord(int type, long tid, long prevLsn, long lsn, long end, ByteBuffer body) {
+      this.type = type;
+      this.tid = tid;
+      this.prevLsn = prevLsn;
+      this.lsn = lsn;
+      this.end = end;
+      this.body = body;
+    }
+
+    /** @return a new buffer positioned at the start of the body */
+    ByteBuffer body() {
+      return body.duplicate();
+    }
+
+    /** @return the body of a page change, past the undo-next LSN of a CLR */
+    private ByteBuffer change() {
+      ByteBuffer change = body();
+      if (type == CLR_RECORD) {
+        change.position(LONG_SIZE + 1);
+      }
+      return change;
+    }
+
+    /** @return whether a page change installs page images, not slot changes */
+    boolean carriesImage() {
+      return type == UPDATE_RECORD || (type == CLR_RECORD && body.get(LONG_SIZE) == CLR_IMAGE);
+    }
+
+    /** @return the page an UPDATE, SLOT_UPDATE or CLR record changes */
+    PageId pageId() throws IOException {
+      ByteBuffer change = change();
+      if (carriesImage()) {
+        change.get(); // page type tag
+      }
+      return readPageId(change);
+    }
+
+    /** @return the next record to undo after the change a CLR undid */
+    long undoNextLsn() {
+      return body.getLong(0);
+    }
+
+    Page beforeImage() throws IOException {
+      return readPageData(body());
+    }
+
+    /** @return the page image an UPDATE or CLR record installs */
+    Page afterImage() throws IOException {
+      ByteBuffer images = change();
+      if (type == UPDATE_RECORD) {
+        skipPageData(images);
+      }
+      return readPageData(images);
+    }
+
+    /** @return the slot changes of a SLOT_UPDATE or CLR record, oldest first */
+    List<HeapPage.SlotDelta> slotDeltas() throws IOException {
+      ByteBuffer changes = change();
+      readPageId(changes);
+      int count = changes.getInt();
+      List<HeapPage.SlotDelta> deltas = new ArrayList<HeapPage.SlotDelta>(count);
+      for (int i = 0; i < count; i++) {
+        boolean inserted = changes.get() == 1;
+        int slot = changes.getInt();
+        byte[] tupleData = new byte[changes.getInt()];
+        changes.get(tupleData);
+        deltas.add(new HeapPage.SlotDelta(slot, inserted, tupleData));
+      }
+      return deltas;
+    }
+  }
+
+  /** The transaction table and dirty page table of a CHECKPOINT record. */
+  static class Checkpoint {
+    final Map<Long, Long> firstLsns = new HashMap<Long, Long>();
+    final Map<Long, Long> lastLsns = new HashMap<Long, Long>();
+    final Map<PageId, Long> dirtyPages = new HashMap<PageId, Long>();
+
+    static Checkpoint read(LogRecord record) throws IOException {
+      Checkpoint checkpoint = new Checkpoint();
+      ByteBuffer body = record.body();
+      int numTransactions = body.getInt();
+      for (int i = 0; i < numTransactions; i++) {
+        long tid = body.getLong();
+        checkpoint.firstLsns.put(tid, body.getLong());
+        checkpoint.lastLsns.put(tid, body.getLong());
+      }
+      int numDirtyPages = body.getInt();
+      for (int i = 0; i < numDirtyPages; i++) {
+        PageId pid = readPageId(body);
+        checkpoint.dirtyPages.put(pid, body.getLong());
+      }
+      return checkpoint;
+    }
+
+    /**
+     * @return the oldest first record of an active transaction or recLSN of a
+     *         dirty page, or Long.MAX_VALUE if there are none
+     */
+    long oldestLsn() {
+      long oldest = Long.MAX_VALUE;
+      for (long lsn : firstLsns.values()) {
+        oldest = Math.min(oldest, lsn);
+      }
+      for (long lsn : dirtyPages.values()) {
+        oldest = Math.min(oldest, lsn);
+      }
+      return oldest;
+    }
+  }
+
+  /** One file of the log. */
+  static class Segment {
+    final long number;
+    final File file;
+    final FileChannel channel;
+    /** LSN of the first record, at offset SEGMENT_HEADER_SIZE. */
+    final long firstLsn;
+
+    Segment(long number, File file, FileChannel channel, long firstLsn) {
+      this.number = number;
+      this.file = file;
+      this.channel = channel;
+      this.firstLsn = firstLsn;
+    }
+  }
+
+  /**
+   * Reads records through a large buffer, so a sequential scan of the log
+   * costs one read call per buffer instead of several per record, and checks
+   * each record's checksum.
+   */
+  static class LogReader {
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    private final NavigableMap<Long, Segment> segments;
+    private final long limit;
+    private final CRC32 checksum = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private Segment bufferSegment = null;
+    private long bufferStart = 0;
+
+    /**
+     * @param segments the segments of the log, by the LSN of their first record
+     * @param limit the LSN of the end of the log; records past it are not read
+     */
+    LogReader(NavigableMap<Long, Segment> segments, long limit) {
+      this.segments = segments;
+      this.limit = limit;
+      buffer.limit(0);
+    }
+
+    /**
+     * Reads a single segment file.
+     * 
+     * @param channel the segment to read
+     * @param firstLsn the LSN of its first record
+     * @param limit the LSN of the end of the log; records past it are not read
+     */
+    LogReader(FileChannel channel, long firstLsn, long limit) {
+      this(new TreeMap<Long, Segment>(Collections.singletonMap(firstLsn, new Segment(-1, null,
+          channel, firstLsn))), limit);
+    }
+
+    /**
+     * @return the record with the given LSN, or null if the log ends there or
+     *         the record there is incomplete or corrupt
+     */
+    LogRecord read(long lsn) throws IOException {
+      Map.Entry<Long, Segment> entry = segments.floorEntry(lsn);
+      if (entry == null) {
+        return null;
+      }
+      Segment segment = entry.getValue();
+      if (segment != bufferSegment) {
+        bufferSegment = segment;
+        buffer.limit(0);
+      }
+      // records do not span segments
+      Long next = segments.higherKey(entry.getKey());
+      long end = next == null ? limit : Math.min(next.longValue(), limit);
+      long offset = lsn - segment.firstLsn + SEGMENT_HEADER_SIZE;
+      long endOffset = end - segment.firstLsn + SEGMENT_HEADER_SIZE;
+      if (offset + RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE > endOffset
+          || !fill(offset, RECORD_HEADER_SIZE)) {
+        return null;
+      }
+      int position = (int) (offset - bufferStart);
+      int type = buffer.get(position);
+      int bodyLength = buffer.getInt(position + 1);
+      long tid = buffer.getLong(position + 1 + INT_SIZE);
+      long prevLsn = buffer.getLong(position + 1 + INT_SIZE + LONG_SIZE);
+      long size = (long) RECORD_HEADER_SIZE + bodyLength + RECORD_TRAILER_SIZE;
+      if (bodyLength < 0 || offset + size > endOffset || !fill(offset, (int) size)) {
+        return null;
+      }
+      position = (int) (offset - bufferStart);
+      checksum.reset();
+      checksum.update(buffer.array(), position, RECORD_HEADER_SIZE + bodyLength);
+      if ((int) checksum.getValue() != buffer.getInt(position + RECORD_HEADER_SIZE + bodyLength)) {
+        return null;
+      }
+      int bodyStart = position + RECORD_HEADER_SIZE;
+      // the read buffer is reused, so the record keeps a copy of its body
+      byte[] body = Arrays.copyOfRange(buffer.array(), bodyStart, bodyStart + bodyLength);
+      return new LogRecord(type, tid, prevLsn, lsn, lsn + size, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Make length bytes starting at offset of the buffered segment available
+     * in the buffer.
+     * 
+     * @return false if the file ends first
+     */
+    private boolean fill(long offset, int length) throws IOException {
+      if (offset >= bufferStart && offset + length <= bufferStart + buffer.limit()) {
+        return true;
+      }
+      if (buffer.capacity() < length) {
+        buffer = ByteBuffer.allocate(length);
+      }
+      buffer.clear();
+      bufferStart = offset;
+      while (buffer.hasRemaining()) {
+        if (bufferSegment.channel.read(buffer, offset + buffer.position()) < 0) {
+          break;
+        }
+      }
+      buffer.flip();
+      return buffer.limit() >= length;
+    }
+  }
 }
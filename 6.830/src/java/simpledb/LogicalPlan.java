@@ -34,6 +34,7 @@ public class LogicalPlan {
   private String aggField;
   private boolean oByAsc, hasOrderBy = false;
   private String oByField;
+  private int limit = -1;
   private String query;
 
   // private Query owner;
@@ -235,6 +236,21 @@ public class LogicalPlan {
     hasOrderBy = true;
   }
 
+  /**
+   * Add a LIMIT on the number of tuples the query returns. SimpleDb only
+   * supports LIMIT together with ORDER BY, where it keeps the first n tuples
+   * of the ordering.
+   * 
+   * @param n the number of tuples to return
+   * @throws ParsingException if n is negative
+   */
+  public void addLimit(int n) throws ParsingException {
+    if (n < 0) {
+      throw new ParsingException("LIMIT must not be negative");
+    }
+    limit = n;
+  }
+
   /**
    * Given a name of a field, try to figure out what table it belongs to by
    * looking through all of the tables added via {@link #addScan}.
@@ -517,7 +533,15 @@ public class LogicalPlan {
     }
 
     if (hasOrderBy) {
-      node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+      int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+      if (limit >= 0) {
+        // one pass, holding only the tuples that can still be returned
+        node = new TopN(oByIndex, oByAsc, limit, node);
+      } else {
+        node = new OrderBy(oByIndex, oByAsc, node);
+      }
+    } else if (limit >= 0) {
+      throw new ParsingException("LIMIT without ORDER BY is not supported");
     }
 
     return new Project(outFields, outTypes, node);
@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). Each page remembers the
+ * logical times of its last K references, and the victim is the page whose
+ * K-th most recent reference is oldest. Pages with fewer than K references have
+ * an infinite backward K-distance and are evicted first (oldest last reference
+ * first), so pages touched once by a sequential scan never push out pages
+ * that are referenced repeatedly.
+ * <p>
+ * Reference history is retained for a bounded number of recently evicted
+ * pages, so a page that is re-read soon after eviction keeps its history.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+  public static final int DEFAULT_K = 2;
+
+  private final int k;
+  private final Map<PageId, long[]> residentHistory;
+  private final LinkedHashMap<PageId, long[]> retainedHistory;
+  private final int maxRetainedHistory;
+  private long clock;
+
+  private LruKReplacementPolicy(int numPages, int k) {
+    if (k < 1) {
+      throw new IllegalArgumentException("K must be at least 1.");
+    }
+    this.k = k;
+    this.residentHistory = new HashMap<PageId, long[]>();
+    this.retainedHistory = new LinkedHashMap<PageId, long[]>();
+    this.maxRetainedHistory = Math.max(numPages, 1);
+    this.clock = 0;
+  }
+
+  /**
+   * @param numPages the number of frames in the buffer pool using this policy
+   */
+  public static LruKReplacementPolicy create(int numPages) {
+    return new LruKReplacementPolicy(numPages, DEFAULT_K);
+  }
+
+  /**
+   * @param numPages the number of frames in the buffer pool using this policy
+   * @param k the number of references remembered per page
+   */
+  public static LruKReplacementPolicy create(int numPages, int k) {
+    return new LruKReplacementPolicy(numPages, k);
+  }
+
+  @Override
+  public synchronized void pageAdmitted(PageId pageId) {
+    long[] history = residentHistory.get(pageId);
+    if (history == null) {
+      history = retainedHistory.remove(pageId);
+    }
+    if (history == null) {
+      history = new long[k];
+    }
+    residentHistory.put(pageId, history);
+    recordReference(history);
+  }
+
+  @Override
+  public synchronized void pageAccessed(PageId pageId) {
+    long[] history = residentHistory.get(pageId);
+    if (history != null) {
+      recordReference(history);
+    }
+  }
+
+  @Override
+  public synchronized void pageRemoved(PageId pageId) {
+    long[] history = residentHistory.remove(pageId);
+    if (history == null) {
+      return;
+    }
+    retainedHistory.put(pageId, history);
+    if (retainedHistory.size() > maxRetainedHistory) {
+      Iterator<PageId> oldest = retainedHistory.keySet().iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  @Override
+  public synchronized PageId chooseVictim(EvictionFilter filter) {
+    PageId victim = null;
+    boolean victimHasKReferences = true;
+    long victimTime = Long.MAX_VALUE;
+    for (Map.Entry<PageId, long[]> entry : residentHistory.entrySet()) {
+      if (!filter.canEvict(entry.getKey())) {
+        continue;
+      }
+      long[] history = entry.getValue();
+      // history[0] is the most recent reference, history[k - 1] the K-th
+      boolean hasKReferences = history[k - 1] != 0;
+      long time = hasKReferences ? history[k - 1] : history[0];
+      if (victim == null || (victimHasKReferences && !hasKReferences)
+          || (victimHasKReferences == hasKReferences && time < victimTime)) {
+        victim = entry.getKey();
+        victimHasKReferences = hasKReferences;
+        victimTime = time;
+      }
+    }
+    return victim;
+  }
+
+  private void recordReference(long[] history) {
+    System.arraycopy(history, 0, history, 1, k - 1);
+    history[0] = ++clock;
+  }
+}
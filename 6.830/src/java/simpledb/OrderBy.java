@@ -1,24 +1,28 @@
 package simpledb;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY. The child is
+ * sorted within a memory budget: runs that fit in it are sorted in memory and
+ * spilled to disk, and the runs are merged as the sorted tuples are read.
+ *
+ * @see ExternalSort
  */
 public class OrderBy extends Operator {
 
   private static final long serialVersionUID = 1L;
+
+  /** Pages of tuples sorted in memory at once by default. */
+  public static final int DEFAULT_MEMORY_PAGES = 256;
+
   private DbIterator child;
   private TupleDesc td;
-  private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
   private int orderByField;
   private String orderByFieldName;
-  private Iterator<Tuple> it;
+  private transient DbIterator sorted = null;
   private boolean asc;
+  private final int memoryPages;
 
   /**
    * Creates a new OrderBy node over the tuples from the iterator.
@@ -28,7 +32,20 @@ public class OrderBy extends Operator {
    * @param child the tuples to sort.
    */
   public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+    this(orderbyField, asc, child, DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Creates a new OrderBy node with a memory budget for sorting.
+   * 
+   * @param orderbyField the field to which the sort is applied.
+   * @param asc true if the sort order is ascending.
+   * @param child the tuples to sort.
+   * @param memoryPages the number of pages of tuples to sort in memory at once.
+   */
+  public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryPages) {
     this.child = child;
+    this.memoryPages = memoryPages;
     td = child.getTupleDesc();
     this.orderByField = orderbyField;
     this.orderByFieldName = td.getFieldName(orderbyField);
@@ -55,23 +72,25 @@ public class OrderBy extends Operator {
   @Override
   public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
     child.open();
-    // load all the tuples in a collection, and sort it
-    while (child.hasNext())
-      childTups.add(child.next());
-    Collections.sort(childTups, new TupleComparator(orderByField, asc));
-    it = childTups.iterator();
+    sorted = ExternalSort.sort(child, orderByField, asc, memoryPages);
+    sorted.open();
     super.open();
   }
 
   @Override
   public void close() {
     super.close();
-    it = null;
+    if (sorted != null) {
+      // deletes any runs spilled to disk
+      sorted.close();
+      sorted = null;
+    }
+    child.close();
   }
 
   @Override
   public void rewind() throws DbException, TransactionAbortedException {
-    it = childTups.iterator();
+    sorted.rewind();
   }
 
   /**
@@ -83,8 +102,8 @@ public class OrderBy extends Operator {
   @Override
   protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException,
       DbException {
-    if (it != null && it.hasNext()) {
-      return it.next();
+    if (sorted != null && sorted.hasNext()) {
+      return sorted.next();
     }
     return null;
   }
@@ -100,25 +119,3 @@ public class OrderBy extends Operator {
   }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-  int field;
-  boolean asc;
-
-  public TupleComparator(int field, boolean asc) {
-    this.field = field;
-    this.asc = asc;
-  }
-
-  @Override
-  public int compare(Tuple o1, Tuple o2) {
-    Field t1 = (o1).getField(field);
-    Field t2 = (o2).getField(field);
-    if (t1.compare(Predicate.Op.EQUALS, t2))
-      return 0;
-    if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-      return asc ? 1 : -1;
-    return asc ? -1 : 1;
-  }
-
-}
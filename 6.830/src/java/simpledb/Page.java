@@ -34,6 +34,18 @@ public interface Page {
    */
   public void markDirty(boolean dirty, TransactionId tid);
 
+  /**
+   * Get the log sequence number of the last logged change that this page
+   * reflects. It is stored with the page, so recovery can tell which logged
+   * changes a page read from disk already has.
+   */
+  public long getLsn();
+
+  /**
+   * Set the log sequence number of the last logged change this page reflects.
+   */
+  public void setLsn(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page. Used to
    * serialize this page to disk.
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -13,6 +14,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -272,9 +275,22 @@ public class Parser {
   public Query handleQueryStatement(ZQuery s, TransactionId tId)
       throws simpledb.ParsingException
       {
+    return handleQueryStatement(s, tId, -1);
+  }
+
+  /**
+   * Plans a query that returns at most limit tuples, or any number of tuples if
+   * limit is negative.
+   */
+  public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+      throws simpledb.ParsingException
+      {
     Query query = new Query(tId);
 
     LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+    if (limit >= 0) {
+      lp.addLimit(limit);
+    }
     DbIterator physicalPlan = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
     query.setPhysicalPlan(physicalPlan);
     query.setLogicalPlan(lp);
@@ -444,14 +460,50 @@ public class Parser {
     }
   }
 
+  /**
+   * A statement ending in LIMIT n, which Zql does not parse: group 1 is the
+   * statement without the clause, and group 2 is n.
+   */
+  private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+      "(?is)^(.*?)\\s+limit\\s+(\\d+)\\s*(;?)\\s*$");
+
+  /**
+   * @return the n of a statement ending in LIMIT n, or -1 if the statement has
+   *         no LIMIT clause
+   */
+  static int parseLimit(String s) throws simpledb.ParsingException {
+    Matcher m = LIMIT_CLAUSE.matcher(s);
+    if (!m.matches()) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(m.group(2));
+    } catch (NumberFormatException e) {
+      throw new simpledb.ParsingException("LIMIT is too large: " + m.group(2));
+    }
+  }
+
+  /** @return a statement without its LIMIT clause, if it has one */
+  static String stripLimit(String s) {
+    Matcher m = LIMIT_CLAUSE.matcher(s);
+    if (!m.matches()) {
+      return s;
+    }
+    return m.group(1) + m.group(3);
+  }
+
   public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
       throws simpledb.ParsingException {
-    ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+    int limit = parseLimit(s);
+    ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
     ZqlParser p = new ZqlParser(bis);
     try {
       ZStatement stmt = p.readStatement();
       if (stmt instanceof ZQuery) {
         LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+        if (limit >= 0) {
+          lp.addLimit(limit);
+        }
         return lp;
       }
     } catch (Zql.ParseException e) {
@@ -470,15 +522,47 @@ public class Parser {
   }
 
   public void processNextStatement(String s) {
+    int limit;
     try {
-      processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
+      limit = parseLimit(s);
+    } catch (simpledb.ParsingException e) {
+      System.out.println("Invalid SQL expression: \n \t" + e.getMessage());
+      return;
+    }
+    try {
+      processNextStatement(new ByteArrayInputStream(stripLimit(s).getBytes("UTF-8")), limit);
     } catch (UnsupportedEncodingException e) {
       e.printStackTrace();
       throw new RuntimeException(e);
     }
   }
 
+  /**
+   * Processes the next statement of a stream, reading up to and including its
+   * ';'. The statement is read as text first, so that a LIMIT clause is
+   * handled as it is by {@link #processNextStatement(String)}.
+   */
   public void processNextStatement(InputStream is) {
+    ByteArrayOutputStream statement = new ByteArrayOutputStream();
+    try {
+      int b;
+      while ((b = is.read()) >= 0) {
+        statement.write(b);
+        if (b == ';') {
+          break;
+        }
+      }
+      processNextStatement(statement.toString("UTF-8"));
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Processes the next statement of a stream; a query returns at most limit
+   * tuples, or any number of tuples if limit is negative.
+   */
+  private void processNextStatement(InputStream is, int limit) {
     try {
       ZqlParser p = new ZqlParser(is);
       ZStatement s = p.readStatement();
@@ -493,12 +577,14 @@ public class Parser {
           System.out.println("Started a new transaction tid = " + curtrans.getId().getId());
         }
         try {
+          if (limit >= 0 && !(s instanceof ZQuery))
+            throw new simpledb.ParsingException("LIMIT is only supported on SELECT statements");
           if (s instanceof ZInsert)
             query = handleInsertStatement((ZInsert) s, curtrans.getId());
           else if (s instanceof ZDelete)
             query = handleDeleteStatement((ZDelete) s, curtrans.getId());
           else if (s instanceof ZQuery)
-            query = handleQueryStatement((ZQuery) s, curtrans.getId());
+            query = handleQueryStatement((ZQuery) s, curtrans.getId(), limit);
           else {
             System.out
                 .println("Can't parse "
@@ -547,7 +633,8 @@ public class Parser {
 
   // Basic SQL completions
   public static final String[] SQL_COMMANDS = { "select", "from", "where", "group by", "max(",
-      "min(", "avg(", "count", "rollback", "commit", "insert", "delete", "values", "into" };
+      "min(", "avg(", "count", "order by", "limit", "rollback", "commit", "insert", "delete",
+      "values", "into" };
 
   public static void main(String argv[]) throws IOException {
 
@@ -629,7 +716,6 @@ public class Parser {
           buffer.append(line.substring(0, split + 1));
           String cmd = buffer.toString().trim();
           cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
-          byte[] statementBytes = cmd.getBytes("UTF-8");
           if (cmd.equalsIgnoreCase("quit;") || cmd.equalsIgnoreCase("exit;")) {
             shutdown();
             quit = true;
@@ -637,7 +723,7 @@ public class Parser {
           }
 
           long startTime = System.currentTimeMillis();
-          processNextStatement(new ByteArrayInputStream(statementBytes));
+          processNextStatement(cmd);
           long time = System.currentTimeMillis() - startTime;
           System.out.printf("----------------\n%.2f seconds\n\n", new Double(time / 1000.0));
 
@@ -92,7 +92,7 @@ public class Predicate implements Serializable {
    * @return true if the comparison is true, false otherwise.
    */
   public boolean filter(Tuple t) {
-    return t.getField(field).compare(op, operand);
+    return t.compareField(field, op, operand);
   }
 
   /**
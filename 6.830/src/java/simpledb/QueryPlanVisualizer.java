@@ -10,6 +10,7 @@ public class QueryPlanVisualizer {
 
   static final String JOIN = "⨝";
   static final String HASH_JOIN = "⨝(hash)";
+  static final String SORT_MERGE_JOIN = "⨝(sort-merge)";
   static final String SELECT = "σ";
   static final String PROJECT = "π";
   static final String RENAME = "ρ";
@@ -27,7 +28,7 @@ public class QueryPlanVisualizer {
     Operator o = (Operator) root;
     DbIterator[] children = o.getChildren();
 
-    if (o instanceof Join || o instanceof HashEquiJoin) {
+    if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin) {
       int d1 = this.calculateQueryPlanTreeDepth(children[0]);
       int d2 = this.calculateQueryPlanTreeDepth(children[1]);
       return Math.max(d1, d2) + 3;
@@ -53,6 +54,36 @@ public class QueryPlanVisualizer {
 
   }
 
+  /**
+   * Fills in the node of a join of two children, whichever operator implements
+   * it; label names the join algorithm.
+   */
+  private void buildJoinTree(SubTreeDescriptor thisNode, String label, JoinPredicate jp,
+      Operator plan, int queryPlanDepth, int currentDepth, int adjustDepth,
+      int currentStartPosition, int parentUpperBarStartShift) {
+    DbIterator[] children = plan.getChildren();
+    TupleDesc td = plan.getTupleDesc();
+    String field1 = td.getFieldName(jp.getField1());
+    String field2 = td.getFieldName(jp.getField2() + children[0].getTupleDesc().numFields());
+    thisNode.text = String.format("%1$s(%2$s),card:%3$d", label, field1 + jp.getOperator()
+        + field2, Integer.valueOf(plan.getEstimatedCardinality()));
+    int upBarShift = parentUpperBarStartShift;
+    if (label.length() / 2 > parentUpperBarStartShift)
+      upBarShift = label.length() / 2;
+
+    SubTreeDescriptor left = this.buildTree(queryPlanDepth, currentDepth + adjustDepth + 3,
+        children[0], currentStartPosition, upBarShift);
+    SubTreeDescriptor right = this.buildTree(queryPlanDepth, currentDepth + adjustDepth + 3,
+        children[1], currentStartPosition + left.width + SPACE.length(), 0);
+    thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+    thisNode.textStartPosition = thisNode.upBarPosition - label.length() / 2;
+    thisNode.width = Math.max(left.width + right.width + SPACE.length(),
+        thisNode.textStartPosition + thisNode.text.length() - currentStartPosition);
+    thisNode.leftChild = left;
+    thisNode.rightChild = right;
+    thisNode.height = currentDepth;
+  }
+
   private SubTreeDescriptor buildTree(int queryPlanDepth, int currentDepth, DbIterator queryPlan,
       int currentStartPosition, int parentUpperBarStartShift) {
     if (queryPlan == null)
@@ -99,50 +130,17 @@ public class QueryPlanVisualizer {
       DbIterator[] children = plan.getChildren();
 
       if (plan instanceof Join) {
-        Join j = (Join) plan;
-        TupleDesc td = j.getTupleDesc();
-        JoinPredicate jp = j.getJoinPredicate();
-        String field1 = td.getFieldName(jp.getField1());
-        String field2 = td.getFieldName(jp.getField2() + children[0].getTupleDesc().numFields());
-        thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN, field1 + jp.getOperator()
-            + field2, Integer.valueOf(j.getEstimatedCardinality()));
-        int upBarShift = parentUpperBarStartShift;
-        if (JOIN.length() / 2 > parentUpperBarStartShift)
-          upBarShift = JOIN.length() / 2;
-
-        SubTreeDescriptor left = this.buildTree(queryPlanDepth, currentDepth + adjustDepth + 3,
-            children[0], currentStartPosition, upBarShift);
-        SubTreeDescriptor right = this.buildTree(queryPlanDepth, currentDepth + adjustDepth + 3,
-            children[1], currentStartPosition + left.width + SPACE.length(), 0);
-        thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-        thisNode.textStartPosition = thisNode.upBarPosition - JOIN.length() / 2;
-        thisNode.width = Math.max(left.width + right.width + SPACE.length(),
-            thisNode.textStartPosition + thisNode.text.length() - currentStartPosition);
-        thisNode.leftChild = left;
-        thisNode.rightChild = right;
-        thisNode.height = currentDepth;
+        this.buildJoinTree(thisNode, JOIN, ((Join) plan).getJoinPredicate(), plan,
+            queryPlanDepth, currentDepth, adjustDepth, currentStartPosition,
+            parentUpperBarStartShift);
       } else if (plan instanceof HashEquiJoin) {
-        HashEquiJoin j = (HashEquiJoin) plan;
-        JoinPredicate jp = j.getJoinPredicate();
-        TupleDesc td = j.getTupleDesc();
-        String field1 = td.getFieldName(jp.getField1());
-        String field2 = td.getFieldName(jp.getField2() + children[0].getTupleDesc().numFields());
-        thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1 + jp.getOperator()
-            + field2, Integer.valueOf(j.getEstimatedCardinality()));
-        int upBarShift = parentUpperBarStartShift;
-        if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-          upBarShift = HASH_JOIN.length() / 2;
-        SubTreeDescriptor left = this.buildTree(queryPlanDepth, currentDepth + 3 + adjustDepth,
-            children[0], currentStartPosition, upBarShift);
-        SubTreeDescriptor right = this.buildTree(queryPlanDepth, currentDepth + 3 + adjustDepth,
-            children[1], currentStartPosition + left.width + SPACE.length(), 0);
-        thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-        thisNode.textStartPosition = thisNode.upBarPosition - HASH_JOIN.length() / 2;
-        thisNode.width = Math.max(left.width + right.width + SPACE.length(),
-            thisNode.textStartPosition + thisNode.text.length() - currentStartPosition);
-        thisNode.leftChild = left;
-        thisNode.rightChild = right;
-        thisNode.height = currentDepth;
+        this.buildJoinTree(thisNode, HASH_JOIN, ((HashEquiJoin) plan).getJoinPredicate(), plan,
+            queryPlanDepth, currentDepth, adjustDepth, currentStartPosition,
+            parentUpperBarStartShift);
+      } else if (plan instanceof SortMergeJoin) {
+        this.buildJoinTree(thisNode, SORT_MERGE_JOIN, ((SortMergeJoin) plan).getJoinPredicate(),
+            plan, queryPlanDepth, currentDepth, adjustDepth, currentStartPosition,
+            parentUpperBarStartShift);
       } else if (plan instanceof Aggregate) {
         Aggregate a = (Aggregate) plan;
         int upBarShift = parentUpperBarStartShift;
@@ -203,6 +201,22 @@ public class QueryPlanVisualizer {
             - currentStartPosition);
         thisNode.leftChild = child;
         thisNode.height = currentDepth;
+      } else if (plan instanceof TopN) {
+        TopN o = (TopN) plan;
+        thisNode.text = String.format("%1$s(%2$s),limit:%3$d,card:%4$d", ORDERBY, children[0]
+            .getTupleDesc().getFieldName(o.getOrderByField()), Integer.valueOf(o.getLimit()),
+            Integer.valueOf(o.getEstimatedCardinality()));
+        int upBarShift = parentUpperBarStartShift;
+        if (ORDERBY.length() / 2 > parentUpperBarStartShift)
+          upBarShift = ORDERBY.length() / 2;
+        SubTreeDescriptor child = this.buildTree(queryPlanDepth, currentDepth + 2 + adjustDepth,
+            children[0], currentStartPosition, upBarShift);
+        thisNode.upBarPosition = child.upBarPosition;
+        thisNode.textStartPosition = thisNode.upBarPosition - ORDERBY.length() / 2;
+        thisNode.width = Math.max(child.width, thisNode.textStartPosition + thisNode.text.length()
+            - currentStartPosition);
+        thisNode.leftChild = child;
+        thisNode.height = currentDepth;
       } else if (plan instanceof Project) {
         Project p = (Project) plan;
         String fields = "";
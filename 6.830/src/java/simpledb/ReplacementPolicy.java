@@ -0,0 +1,55 @@
+package simpledb;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool gives up when
+ * it needs a free frame. The BufferPool reports every page that enters the
+ * pool, every hit on a resident page and every page that leaves the pool; the
+ * policy keeps whatever bookkeeping it needs and proposes a victim on demand.
+ * <p>
+ * Implementations must be safe to call from multiple threads.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+  /**
+   * Called when a page is read into the buffer pool.
+   *
+   * @param pageId the id of the page that became resident
+   */
+  public void pageAdmitted(PageId pageId);
+
+  /**
+   * Called on every buffer pool hit.
+   *
+   * @param pageId the id of the resident page that was requested
+   */
+  public void pageAccessed(PageId pageId);
+
+  /**
+   * Called when a page leaves the buffer pool, whether it was evicted or
+   * discarded.
+   *
+   * @param pageId the id of the page that is no longer resident
+   */
+  public void pageRemoved(PageId pageId);
+
+  /**
+   * Picks the page that should be evicted next. The page is not removed from
+   * the policy; the BufferPool calls {@link #pageRemoved} once the page has
+   * actually left the pool.
+   *
+   * @param filter tells the policy which resident pages may be evicted
+   * @return the id of the page to evict, or null if no resident page passes
+   *         the filter
+   */
+  public PageId chooseVictim(EvictionFilter filter);
+
+  /**
+   * Tells a ReplacementPolicy which resident pages may be evicted right now
+   * (for example, dirty pages may not be evicted under NO STEAL).
+   */
+  public interface EvictionFilter {
+    public boolean canEvict(PageId pageId);
+  }
+}
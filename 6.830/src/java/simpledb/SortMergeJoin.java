@@ -0,0 +1,309 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The SortMergeJoin operator joins two relations by reading both in order of
+ * their join fields. A child that is an ascending {@link OrderBy} on its join
+ * field is used as it is; any other child is sorted with an external sort
+ * within a memory budget.
+ * <p>
+ * An equality join merges the two sorted inputs, holding one group of left
+ * tuples with equal keys in memory at a time. A range join (&lt;, &lt;=, &gt;,
+ * &gt;=) reads one input in order and, for each of its tuples, the prefix of
+ * the other input that matches it; since every tuple read from a prefix but
+ * the last is a result, the work is proportional to the output. The prefix
+ * side is materialized once so that it can be reread cheaply.
+ */
+public class SortMergeJoin extends Operator {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Pages of tuples each child is sorted with in memory by default. */
+  public static final int DEFAULT_MEMORY_PAGES = 256;
+
+  private final JoinPredicate pred;
+  private DbIterator child1;
+  private DbIterator child2;
+  private final TupleDesc comboTD;
+  private final int memoryPages;
+
+  // the children in order of their join fields
+  private transient DbIterator left = null;
+  private transient DbIterator right = null;
+  // iterators and spill files this join made from its children
+  private transient List<DbIterator> intermediates = new ArrayList<DbIterator>();
+  private transient List<SpillFile> spilled = new ArrayList<SpillFile>();
+
+  // equality joins: the left tuples sharing groupKey, and the right tuple being
+  // matched against them
+  private transient ArrayList<Tuple> group = new ArrayList<Tuple>();
+  private transient Field groupKey = null;
+  private transient Tuple nextLeft = null;
+  private transient Tuple currentRight = null;
+  private transient int groupIndex = 0;
+
+  // range joins: the tuple of the outer input whose prefix of the inner input
+  // is being read
+  private transient Tuple outer = null;
+
+  /**
+   * Constructor. Accepts to children to join and the predicate to join them on
+   *
+   * @param p The predicate to use to join the children; one of =, &lt;, &lt;=,
+   *          &gt; and &gt;=
+   * @param child1 Iterator for the left relation to join
+   * @param child2 Iterator for the right relation to join
+   */
+  public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+    this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+  }
+
+  /**
+   * Constructor with a memory budget for sorting.
+   *
+   * @param p The predicate to use to join the children; one of =, &lt;, &lt;=,
+   *          &gt; and &gt;=
+   * @param child1 Iterator for the left relation to join
+   * @param child2 Iterator for the right relation to join
+   * @param memoryPages The number of pages of tuples to sort in memory at once
+   */
+  public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int memoryPages) {
+    if (!supports(p.getOperator())) {
+      throw new IllegalArgumentException("SortMergeJoin cannot join on " + p.getOperator());
+    }
+    this.pred = p;
+    this.child1 = child1;
+    this.child2 = child2;
+    this.memoryPages = memoryPages;
+    this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+  }
+
+  /** @return true if SortMergeJoin can join on the operator */
+  public static boolean supports(Predicate.Op op) {
+    switch (op) {
+    case EQUALS:
+    case LESS_THAN:
+    case LESS_THAN_OR_EQ:
+    case GREATER_THAN:
+    case GREATER_THAN_OR_EQ:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  public JoinPredicate getJoinPredicate() {
+    return pred;
+  }
+
+  public String getJoinField1Name() {
+    return child1.getTupleDesc().getFieldName(pred.getField1());
+  }
+
+  public String getJoinField2Name() {
+    return child2.getTupleDesc().getFieldName(pred.getField2());
+  }
+
+  @Override
+  public TupleDesc getTupleDesc() {
+    return comboTD;
+  }
+
+  /**
+   * @return true for range joins that read the left input in order and a
+   *         prefix of the right input for each left tuple, false for those that
+   *         do it the other way around
+   */
+  private boolean outerIsLeft() {
+    Predicate.Op op = pred.getOperator();
+    return op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+  }
+
+  /** @return an open child in ascending order of its join field */
+  private DbIterator inOrder(DbIterator child, int field) throws DbException,
+      TransactionAbortedException {
+    if (child instanceof OrderBy && ((OrderBy) child).getOrderByField() == field
+        && ((OrderBy) child).isASC()) {
+      // already in order
+      return child;
+    }
+    DbIterator result = ExternalSort.sort(child, field, true, memoryPages);
+    intermediates.add(result);
+    result.open();
+    return result;
+  }
+
+  /** @return an open iterator over an open input that is cheap to rewind */
+  private DbIterator rereadable(DbIterator input) throws DbException,
+      TransactionAbortedException {
+    if (input instanceof TupleIterator) {
+      return input;
+    }
+    try {
+      SpillFile file = new SpillFile(input.getTupleDesc());
+      spilled.add(file);
+      while (input.hasNext()) {
+        file.add(input.next());
+      }
+      DbIterator result = file.iterator();
+      intermediates.add(result);
+      result.open();
+      return result;
+    } catch (IOException e) {
+      throw new DbException("cannot spill join input: " + e.getMessage());
+    }
+  }
+
+  @Override
+  public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+    child1.open();
+    child2.open();
+    left = inOrder(child1, pred.getField1());
+    right = inOrder(child2, pred.getField2());
+    if (pred.getOperator() != Predicate.Op.EQUALS) {
+      if (outerIsLeft()) {
+        right = rereadable(right);
+      } else {
+        left = rereadable(left);
+      }
+    }
+    resetMerge();
+    super.open();
+  }
+
+  private void resetMerge() {
+    group.clear();
+    groupKey = null;
+    nextLeft = null;
+    currentRight = null;
+    groupIndex = 0;
+    outer = null;
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    for (DbIterator it : intermediates) {
+      it.close();
+    }
+    intermediates.clear();
+    for (SpillFile file : spilled) {
+      file.delete();
+    }
+    spilled.clear();
+    child1.close();
+    child2.close();
+    left = null;
+    right = null;
+    resetMerge();
+  }
+
+  @Override
+  public void rewind() throws DbException, TransactionAbortedException {
+    left.rewind();
+    right.rewind();
+    resetMerge();
+  }
+
+  /**
+   * Reads the next group of left tuples with equal keys.
+   *
+   * @return false if the left input is exhausted
+   */
+  private boolean loadGroup() throws DbException, TransactionAbortedException {
+    group.clear();
+    Tuple first = nextLeft;
+    nextLeft = null;
+    if (first == null) {
+      if (!left.hasNext()) {
+        return false;
+      }
+      first = left.next();
+    }
+    groupKey = first.getField(pred.getField1());
+    group.add(first);
+    while (left.hasNext()) {
+      Tuple t = left.next();
+      if (!t.getField(pred.getField1()).equals(groupKey)) {
+        nextLeft = t;
+        break;
+      }
+      group.add(t);
+    }
+    return true;
+  }
+
+  private Tuple fetchNextEquals() throws DbException, TransactionAbortedException {
+    while (true) {
+      if (currentRight != null && groupIndex < group.size()) {
+        return Tuple.join(group.get(groupIndex++), currentRight);
+      }
+      if (!right.hasNext()) {
+        return null;
+      }
+      currentRight = right.next();
+      Field key = currentRight.getField(pred.getField2());
+      // bring the left group up to the key
+      while (group.isEmpty() || groupKey.compare(Predicate.Op.LESS_THAN, key)) {
+        if (!loadGroup()) {
+          return null;
+        }
+      }
+      // the group matches, or its key is past this right tuple
+      groupIndex = groupKey.equals(key) ? 0 : group.size();
+    }
+  }
+
+  private Tuple fetchNextRange() throws DbException, TransactionAbortedException {
+    boolean outerIsLeft = outerIsLeft();
+    DbIterator outerInput = outerIsLeft ? left : right;
+    DbIterator innerInput = outerIsLeft ? right : left;
+    while (true) {
+      if (outer != null && innerInput.hasNext()) {
+        Tuple inner = innerInput.next();
+        Tuple t1 = outerIsLeft ? outer : inner;
+        Tuple t2 = outerIsLeft ? inner : outer;
+        if (pred.filter(t1, t2)) {
+          return Tuple.join(t1, t2);
+        }
+        // the inner input is in order, so nothing after this matches either
+      }
+      if (!outerInput.hasNext()) {
+        return null;
+      }
+      outer = outerInput.next();
+      innerInput.rewind();
+    }
+  }
+
+  /**
+   * Returns the next tuple generated by the join, or null if there are no more
+   * tuples. As with the other joins, each result is the concatenation of a left
+   * and a right tuple; results are not in any particular order.
+   *
+   * @return The next matching tuple.
+   */
+  @Override
+  protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+    if (pred.getOperator() == Predicate.Op.EQUALS) {
+      return fetchNextEquals();
+    }
+    return fetchNextRange();
+  }
+
+  @Override
+  public DbIterator[] getChildren() {
+    return new DbIterator[] { child1, child2 };
+  }
+
+  @Override
+  public void setChildren(DbIterator[] children) {
+    this.child1 = children[0];
+    this.child2 = children[1];
+  }
+
+}
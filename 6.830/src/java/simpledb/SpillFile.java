@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.NoSuchElementException;
+
+/**
+ * A temporary file of tuples with one TupleDesc, for operators whose
+ * intermediate results do not fit in memory. Tuples are appended in the same
+ * fixed-size format as on a HeapPage, then read back in order, any number of
+ * times, through {@link #iterator()}. Spill files bypass the BufferPool: they
+ * are private to one operator and never logged.
+ *
+ * @see HashEquiJoin
+ */
+class SpillFile {
+
+  private final TupleDesc tupleDesc;
+  private final File file;
+  private DataOutputStream out;
+  private int size = 0;
+
+  /**
+   * Creates an empty spill file.
+   *
+   * @param tupleDesc the TupleDesc of every tuple that will be added
+   */
+  SpillFile(TupleDesc tupleDesc) throws IOException {
+    this.tupleDesc = tupleDesc;
+    this.file = File.createTempFile("spill", ".tmp");
+    this.file.deleteOnExit();
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+        BufferPool.getPageSize()));
+  }
+
+  /** Appends a tuple to the file. */
+  void add(Tuple t) throws IOException {
+    if (out == null) {
+      throw new IllegalStateException("spill file is already being read");
+    }
+    for (int i = 0; i < tupleDesc.numFields(); i++) {
+      t.getField(i).serialize(out);
+    }
+    size++;
+  }
+
+  /** @return the number of tuples added */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Finishes writing the file and returns an iterator over its tuples. No
+   * tuples can be added afterwards.
+   */
+  DbIterator iterator() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+    return new Reader();
+  }
+
+  /** Deletes the file; open iterators over it must be closed first. */
+  void delete() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        // the file is going away
+      }
+      out = null;
+    }
+    file.delete();
+  }
+
+  private class Reader implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient DataInputStream in = null;
+    private int remaining = 0;
+
+    @Override
+    public void open() throws DbException {
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BufferPool
+            .getPageSize()));
+      } catch (IOException e) {
+        throw new DbException("cannot read spill file: " + e.getMessage());
+      }
+      remaining = size;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override
+    public Tuple next() throws DbException {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      Tuple t = new Tuple(tupleDesc);
+      try {
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
+          t.setField(i, tupleDesc.getFieldType(i).parse(in));
+        }
+      } catch (ParseException e) {
+        throw new DbException("cannot read spill file: " + e.getMessage());
+      }
+      remaining--;
+      return t;
+    }
+
+    @Override
+    public void rewind() throws DbException {
+      close();
+      open();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+      return tupleDesc;
+    }
+
+    @Override
+    public void close() {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // nothing was written
+        }
+        in = null;
+      }
+      remaining = 0;
+    }
+  }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Instance of Field that stores a single String of a fixed length.
@@ -68,6 +69,19 @@ public class StringField implements Field {
       dos.write((byte) 0);
   }
 
+  @Override
+  public void serialize(ByteBuffer buffer) {
+    int length = Math.min(value.length(), maxSize);
+    buffer.putInt(length);
+    // as DataOutputStream.writeBytes, keep the low byte of each char
+    for (int i = 0; i < length; i++) {
+      buffer.put((byte) value.charAt(i));
+    }
+    for (int i = length; i < maxSize; i++) {
+      buffer.put((byte) 0);
+    }
+  }
+
   /**
    * Compare the specified field to the value of this Field. Return semantics
    * are as specified by Field.compare
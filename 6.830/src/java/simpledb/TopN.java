@@ -0,0 +1,130 @@
+package simpledb;
+
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n. It reads its child
+ * once, keeping only the n best tuples seen so far in a heap whose root is the
+ * worst of them, so it needs memory for n tuples rather than for the whole
+ * input as an {@link OrderBy} would.
+ */
+public class TopN extends Operator {
+
+  private static final long serialVersionUID = 1L;
+
+  private DbIterator child;
+  private final TupleDesc td;
+  private final int orderByField;
+  private final String orderByFieldName;
+  private final boolean asc;
+  private final int limit;
+  private transient Tuple[] top = null;
+  private transient int index = 0;
+
+  /**
+   * Creates a new TopN node over the tuples from the iterator.
+   *
+   * @param orderbyField the field to which the sort is applied.
+   * @param asc true if the sort order is ascending.
+   * @param limit the number of tuples to return.
+   * @param child the tuples to sort.
+   */
+  public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("negative limit " + limit);
+    }
+    this.child = child;
+    this.td = child.getTupleDesc();
+    this.orderByField = orderbyField;
+    this.orderByFieldName = td.getFieldName(orderbyField);
+    this.asc = asc;
+    this.limit = limit;
+  }
+
+  public boolean isASC() {
+    return this.asc;
+  }
+
+  public int getOrderByField() {
+    return this.orderByField;
+  }
+
+  public String getOrderFieldName() {
+    return this.orderByFieldName;
+  }
+
+  public int getLimit() {
+    return this.limit;
+  }
+
+  @Override
+  public TupleDesc getTupleDesc() {
+    return td;
+  }
+
+  @Override
+  public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+    child.open();
+    TupleComparator order = new TupleComparator(orderByField, asc);
+    // the root of the heap is the tuple that would be dropped next
+    PriorityQueue<Tuple> heap = new PriorityQueue<Tuple>(Math.max(1, Math.min(limit, 1024)),
+        Collections.reverseOrder(order));
+    if (limit > 0) {
+      while (child.hasNext()) {
+        Tuple t = child.next();
+        if (heap.size() < limit) {
+          heap.add(t);
+        } else if (order.compare(t, heap.peek()) < 0) {
+          heap.poll();
+          heap.add(t);
+        }
+      }
+    }
+    top = new Tuple[heap.size()];
+    for (int i = top.length - 1; i >= 0; i--) {
+      top[i] = heap.poll();
+    }
+    index = 0;
+    super.open();
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    top = null;
+    child.close();
+  }
+
+  @Override
+  public void rewind() throws DbException, TransactionAbortedException {
+    index = 0;
+  }
+
+  /**
+   * Operator.fetchNext implementation. Returns the first limit tuples of the
+   * child operator in order
+   *
+   * @return The next tuple in the ordering, or null if there are no more tuples
+   */
+  @Override
+  protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException,
+      DbException {
+    if (top != null && index < top.length) {
+      return top[index++];
+    }
+    return null;
+  }
+
+  @Override
+  public DbIterator[] getChildren() {
+    return new DbIterator[] { this.child };
+  }
+
+  @Override
+  public void setChildren(DbIterator[] children) {
+    this.child = children[0];
+  }
+
+}
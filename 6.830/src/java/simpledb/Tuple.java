@@ -1,6 +1,9 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -8,6 +11,9 @@ import java.util.Iterator;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page may be backed by the page's bytes, in which case
+ * each field is decoded the first time it is asked for.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +23,10 @@ public class Tuple implements Serializable {
   private RecordId recordId;
   private Field[] fieldArray;
 
+  // the serialized tuple that fields not yet decoded are read from, or null
+  private transient volatile ByteBuffer data;
+  private transient int dataOffset;
+
   /**
    * Create a new tuple with the specified schema (type).
    * 
@@ -27,6 +37,20 @@ public class Tuple implements Serializable {
     resetTupleDesc(td);
   }
 
+  /**
+   * Create a tuple whose fields are decoded on demand from a serialized tuple.
+   * The bytes must not change until {@link #materialize()} has been called.
+   * 
+   * @param td the schema of this tuple
+   * @param data the buffer holding the serialized tuple
+   * @param offset the offset of the tuple in the buffer
+   */
+  Tuple(TupleDesc td, ByteBuffer data, int offset) {
+    resetTupleDesc(td);
+    this.dataOffset = offset;
+    this.data = data;
+  }
+
   /**
    * @return The TupleDesc representing the schema of this tuple.
    */
@@ -67,7 +91,50 @@ public class Tuple implements Serializable {
    * @param i field index to return. Must be a valid index.
    */
   public Field getField(int i) {
-    return fieldArray[i];
+    Field field = fieldArray[i];
+    if (field == null) {
+      ByteBuffer buffer = data;
+      if (buffer != null) {
+        field = tupleDesc.getFieldType(i).parse(buffer, dataOffset + tupleDesc.getFieldOffset(i));
+        fieldArray[i] = field;
+      } else {
+        // materialize() may have decoded it meanwhile
+        field = fieldArray[i];
+      }
+    }
+    return field;
+  }
+
+  /**
+   * Evaluates a comparison against the ith field. An int field that has not
+   * been decoded is compared in place, without building a Field.
+   */
+  boolean compareField(int i, Predicate.Op op, Field operand) {
+    ByteBuffer buffer = data;
+    if (buffer != null && fieldArray[i] == null && operand instanceof IntField) {
+      return IntField.compare(buffer.getInt(dataOffset + tupleDesc.getFieldOffset(i)), op,
+          ((IntField) operand).getValue());
+    }
+    return getField(i).compare(op, operand);
+  }
+
+  /**
+   * Decodes every field not yet decoded, after which the tuple no longer reads
+   * the bytes it was created from.
+   */
+  void materialize() {
+    if (data == null) {
+      return;
+    }
+    for (int i = 0; i < fieldArray.length; i++) {
+      getField(i);
+    }
+    data = null;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    materialize();
+    out.defaultWriteObject();
   }
 
   /**
@@ -82,9 +149,9 @@ public class Tuple implements Serializable {
   public String toString() {
     String string = "";
     for (int i = 0; i < fieldArray.length - 1; i++) {
-      string += fieldArray[i].toString() + "\t";
+      string += getField(i).toString() + "\t";
     }
-    string += fieldArray[fieldArray.length - 1].toString() + "\n";
+    string += getField(fieldArray.length - 1).toString() + "\n";
     return string;
   }
 
@@ -92,6 +159,7 @@ public class Tuple implements Serializable {
    * @return An iterator which iterates over all the fields of this tuple
    * */
   public Iterator<Field> fields() {
+    materialize();
     return Arrays.asList(this.fieldArray).iterator();
   }
 
@@ -101,6 +169,7 @@ public class Tuple implements Serializable {
   public void resetTupleDesc(TupleDesc td) {
     this.tupleDesc = td;
     this.fieldArray = new Field[td.numFields()];
+    this.data = null;
   }
   
   public static Tuple join(Tuple tuple1, Tuple tuple2) {
@@ -91,6 +91,7 @@ public class TupleDesc implements Serializable {
   private final List<TDItem> tdItems;
   private final Map<String, Integer> nameToIdMap;
   private final int size;
+  private final int[] fieldOffsets;
   private final String stringFormat;
 
   /**
@@ -109,9 +110,11 @@ public class TupleDesc implements Serializable {
   private TupleDesc(List<TDItem> tdItems) {
     this.tdItems = new ArrayList<TDItem>(tdItems);
     this.nameToIdMap = new HashMap<String, Integer>();
+    this.fieldOffsets = new int[tdItems.size()];
     int sizeCalculation = 0;
-    for (TDItem tdItem : tdItems) {
-      sizeCalculation += tdItem.fieldType.getLen();
+    for (int i = 0; i < fieldOffsets.length; i++) {
+      fieldOffsets[i] = sizeCalculation;
+      sizeCalculation += tdItems.get(i).fieldType.getLen();
     }
     this.size = sizeCalculation;
     this.stringFormat = getStringFormat(tdItems);
@@ -193,6 +196,15 @@ public class TupleDesc implements Serializable {
     return size;
   }
 
+  /**
+   * @return the offset in bytes of the ith field within a serialized tuple of
+   *         this TupleDesc
+   * @param i index of the field
+   */
+  public int getFieldOffset(int i) {
+    return fieldOffsets[i];
+  }
+
   /**
    * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
    * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Newly read pages enter a FIFO queue,
+ * A1in. Pages that fall out of A1in are remembered by id only in a ghost
+ * queue, A1out; a page that is read again while it is in A1out has proven
+ * itself hot and is admitted to Am, which is managed as an LRU list. Pages
+ * read once by a large scan pass through A1in and never displace the pages in
+ * Am, which makes 2Q scan resistant at O(1) cost per operation.
+ */
+public class TwoQueueReplacementPolicy implements ReplacementPolicy {
+
+  /** Fraction of the buffer pool given to A1in, as recommended by the paper. */
+  private static final double A1IN_FRACTION = 0.25;
+  /** Number of ghost entries in A1out, as a fraction of the buffer pool. */
+  private static final double A1OUT_FRACTION = 0.5;
+
+  private final LinkedHashSet<PageId> a1in;
+  private final LinkedHashSet<PageId> a1out;
+  private final LinkedHashSet<PageId> am;
+  private final int maxA1in;
+  private final int maxA1out;
+
+  private TwoQueueReplacementPolicy(int numPages) {
+    this.a1in = new LinkedHashSet<PageId>();
+    this.a1out = new LinkedHashSet<PageId>();
+    this.am = new LinkedHashSet<PageId>();
+    this.maxA1in = Math.max(1, (int) (numPages * A1IN_FRACTION));
+    this.maxA1out = Math.max(1, (int) (numPages * A1OUT_FRACTION));
+  }
+
+  /**
+   * @param numPages the number of frames in the buffer pool using this policy
+   */
+  public static TwoQueueReplacementPolicy create(int numPages) {
+    return new TwoQueueReplacementPolicy(numPages);
+  }
+
+  @Override
+  public synchronized void pageAdmitted(PageId pageId) {
+    if (am.contains(pageId) || a1in.contains(pageId)) {
+      pageAccessed(pageId);
+    } else if (a1out.remove(pageId)) {
+      am.add(pageId);
+    } else {
+      a1in.add(pageId);
+    }
+  }
+
+  @Override
+  public synchronized void pageAccessed(PageId pageId) {
+    // hits in A1in are treated as correlated references and ignored
+    if (am.remove(pageId)) {
+      am.add(pageId);
+    }
+  }
+
+  @Override
+  public synchronized void pageRemoved(PageId pageId) {
+    if (a1in.remove(pageId)) {
+      a1out.add(pageId);
+      if (a1out.size() > maxA1out) {
+        Iterator<PageId> oldest = a1out.iterator();
+        oldest.next();
+        oldest.remove();
+      }
+    } else {
+      am.remove(pageId);
+    }
+  }
+
+  @Override
+  public synchronized PageId chooseVictim(EvictionFilter filter) {
+    PageId victim = null;
+    if (a1in.size() > maxA1in || am.isEmpty()) {
+      victim = firstEvictable(a1in, filter);
+    }
+    if (victim == null) {
+      victim = firstEvictable(am, filter);
+    }
+    if (victim == null) {
+      victim = firstEvictable(a1in, filter);
+    }
+    return victim;
+  }
+
+  private static PageId firstEvictable(LinkedHashSet<PageId> queue, EvictionFilter filter) {
+    for (PageId pageId : queue) {
+      if (filter.canEvict(pageId)) {
+        return pageId;
+      }
+    }
+    return null;
+  }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 
 /**
@@ -24,6 +25,11 @@ public enum Type {
       }
     }
 
+    @Override
+    public Field parse(ByteBuffer buffer, int offset) {
+      return new IntField(buffer.getInt(offset));
+    }
+
   },
   STRING_TYPE() {
     @Override
@@ -43,6 +49,15 @@ public enum Type {
         throw new ParseException("couldn't parse", 0);
       }
     }
+
+    @Override
+    public Field parse(ByteBuffer buffer, int offset) {
+      byte bs[] = new byte[buffer.getInt(offset)];
+      for (int i = 0; i < bs.length; i++) {
+        bs[i] = buffer.get(offset + 4 + i);
+      }
+      return new StringField(new String(bs), STRING_LEN);
+    }
   };
 
   public static final int STRING_LEN = 128;
@@ -61,4 +76,13 @@ public enum Type {
    */
   public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *         read from the specified buffer at an absolute offset. The buffer's
+   *         position is not changed, so several threads may read one buffer.
+   * @param buffer The buffer to read from
+   * @param offset The offset of the field in the buffer
+   */
+  public abstract Field parse(ByteBuffer buffer, int offset);
+
 }
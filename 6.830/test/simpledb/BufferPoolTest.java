@@ -0,0 +1,209 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+  private static final int NUM_THREADS = 8;
+  private static final int READS_PER_THREAD = 2000;
+
+  private HeapFile table;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    // far more pages than frames, so readers constantly evict each other
+    table = SystemTestUtil.createRandomHeapFile(2, 20000, null, null);
+  }
+
+  /**
+   * Many threads read random pages through a pool much smaller than the table.
+   * Every read must return the requested page, and every read must be counted
+   * exactly once as a hit or a miss.
+   */
+  @Test(timeout = 60000)
+  public void concurrentReads() throws Exception {
+    final int poolSize = 10;
+    final BufferPool bufferPool = Database.resetBufferPool(poolSize);
+    final int numPages = table.numPages();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[NUM_THREADS];
+    for (int i = 0; i < readers.length; i++) {
+      final int seed = i;
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          TransactionId tid = new TransactionId();
+          Random random = new Random(seed);
+          try {
+            for (int j = 0; j < READS_PER_THREAD; j++) {
+              PageId pageId = new HeapPageId(table.getId(), random.nextInt(numPages));
+              Page page = bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+              assertEquals(pageId, page.getId());
+            }
+            bufferPool.transactionComplete(tid);
+          } catch (Throwable t) {
+            error.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertNull(error.get());
+    assertEquals(NUM_THREADS * READS_PER_THREAD,
+        bufferPool.getHitCount() + bufferPool.getMissCount());
+  }
+
+  /**
+   * Discarding a page frees its frame, so it is read again on the next access.
+   */
+  @Test
+  public void discardPage() throws Exception {
+    BufferPool bufferPool = Database.resetBufferPool(2);
+    TransactionId tid = new TransactionId();
+    PageId pageId = new HeapPageId(table.getId(), 0);
+    bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+    bufferPool.discardPage(pageId);
+    bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+    bufferPool.getPage(tid, new HeapPageId(table.getId(), 1), Permissions.READ_ONLY);
+    assertEquals(3, bufferPool.getMissCount());
+    assertEquals(0, bufferPool.getHitCount());
+    bufferPool.transactionComplete(tid);
+  }
+
+  private int tuplesOnDisk(PageId pageId) {
+    int count = 0;
+    for (Iterator<Tuple> it = ((HeapPage) table.readPage(pageId)).iterator(); it.hasNext(); it
+        .next()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * The background writer writes a page dirtied by a running transaction, and
+   * aborting the transaction undoes the write.
+   */
+  @Test(timeout = 60000)
+  public void backgroundWriterStealsDirtyPage() throws Exception {
+    BufferPool bufferPool = Database.getBufferPool();
+    PageId pageId = new HeapPageId(table.getId(), 0);
+    int before = tuplesOnDisk(pageId);
+
+    Transaction t = new Transaction();
+    t.start();
+    HeapPage page = (HeapPage) bufferPool.getPage(t.getId(), pageId, Permissions.READ_WRITE);
+    bufferPool.deleteTuple(t.getId(), page.iterator().next());
+    assertTrue(bufferPool.getDirtyPageTable().containsKey(pageId));
+
+    bufferPool.startBackgroundWriter(10, 4);
+    try {
+      while (!bufferPool.getDirtyPageTable().isEmpty()) {
+        Thread.sleep(10);
+      }
+    } finally {
+      bufferPool.stopBackgroundWriter();
+    }
+    assertEquals(before - 1, tuplesOnDisk(pageId));
+
+    t.abort();
+    assertEquals(before, tuplesOnDisk(pageId));
+  }
+
+  /**
+   * Prefetched pages are read in without a transaction, and a scan with
+   * prefetching returns every tuple once.
+   */
+  @Test(timeout = 60000)
+  public void prefetchPages() throws Exception {
+    BufferPool bufferPool = Database.resetBufferPool(100);
+    bufferPool.setPrefetching(true);
+    List<PageId> pids = new ArrayList<PageId>();
+    for (int pageNumber = 0; pageNumber < 8; pageNumber++) {
+      pids.add(new HeapPageId(table.getId(), pageNumber));
+    }
+    bufferPool.prefetchPages(pids);
+    for (PageId pid : pids) {
+      while (!bufferPool.isCached(pid)) {
+        Thread.sleep(1);
+      }
+    }
+    TransactionId tid = new TransactionId();
+    for (PageId pid : pids) {
+      bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+    }
+    assertEquals(0, bufferPool.getMissCount());
+
+    DbFileIterator it = table.iterator(tid);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    it.close();
+    assertEquals(20000, count);
+    bufferPool.transactionComplete(tid);
+  }
+
+  /**
+   * When the pool is full, prefetching evicts other pages to make room, and
+   * the pages it read in stay resident.
+   */
+  @Test(timeout = 60000)
+  public void prefetchIntoFullPool() throws Exception {
+    final int poolSize = 10;
+    BufferPool bufferPool = Database.resetBufferPool(poolSize);
+    assertTrue(table.numPages() >= 2 * poolSize);
+    TransactionId tid = new TransactionId();
+    for (int pageNumber = poolSize; pageNumber < 2 * poolSize; pageNumber++) {
+      bufferPool.getPage(tid, new HeapPageId(table.getId(), pageNumber), Permissions.READ_ONLY);
+    }
+    bufferPool.transactionComplete(tid);
+
+    bufferPool.setPrefetching(true);
+    List<PageId> pids = new ArrayList<PageId>();
+    for (int pageNumber = 0; pageNumber < poolSize / 2; pageNumber++) {
+      pids.add(new HeapPageId(table.getId(), pageNumber));
+    }
+    bufferPool.prefetchPages(pids);
+    for (PageId pid : pids) {
+      while (!bufferPool.isCached(pid)) {
+        Thread.sleep(1);
+      }
+    }
+    bufferPool.resetStatistics();
+    tid = new TransactionId();
+    for (PageId pid : pids) {
+      bufferPool.getPage(tid, pid, Permissions.READ_ONLY);
+    }
+    assertEquals(0, bufferPool.getMissCount());
+    bufferPool.transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BufferPoolTest.class);
+  }
+}
@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures commits per second against the number of committing threads, with
+ * and without group commit. Each commit is a BEGIN and a COMMIT record in a
+ * fresh log file, so the numbers are dominated by the cost of forcing the log.
+ * <p>
+ * Usage: GroupCommitBenchmark [seconds per run] [max batch delay in micros]
+ */
+public class GroupCommitBenchmark {
+
+  private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+
+  public static void main(String[] args) throws Exception {
+    long millis = (args.length > 0 ? Long.parseLong(args[0]) : 3) * 1000;
+    long maxBatchDelayMicros = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    System.out.printf("%8s %16s %16s%n", "threads", "force/commit", "group commit");
+    for (int threads : THREAD_COUNTS) {
+      double single = run(threads, millis, false, 0);
+      double group = run(threads, millis, true, maxBatchDelayMicros);
+      System.out.printf("%8d %16.0f %16.0f%n", threads, single, group);
+    }
+  }
+
+  /** @return committed transactions per second */
+  private static double run(int threads, final long millis, boolean groupCommit,
+      long maxBatchDelayMicros) throws Exception {
+    File file = File.createTempFile("groupcommit", ".log");
+    file.deleteOnExit();
+    final LogFile log = new LogFile(file);
+    log.setGroupCommit(groupCommit);
+    log.setMaxBatchDelay(maxBatchDelayMicros);
+    final AtomicLong commits = new AtomicLong(0);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] committers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      committers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            long end = System.currentTimeMillis() + millis;
+            while (System.currentTimeMillis() < end) {
+              TransactionId tid = new TransactionId();
+              log.logXactionBegin(tid);
+              log.logCommit(tid);
+              commits.incrementAndGet();
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      committers[i].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread committer : committers) {
+      committer.join();
+    }
+    double seconds = (System.nanoTime() - begin) / 1e9;
+    file.delete();
+    return commits.get() / seconds;
+  }
+}
@@ -80,11 +80,41 @@ public class HeapFileReadTest extends SimpleDbTestBase {
 
     // NOTE(ghuo): we try not to dig too deeply into the Page API here; we
     // rely on HeapPageTest for that. perform some basic checks.
-    assertEquals(484, page.getNumEmptySlots());
+    assertEquals(483, page.getNumEmptySlots());
     assertTrue(page.isSlotUsed(1));
     assertFalse(page.isSlotUsed(20));
   }
 
+  /**
+   * Unit test for HeapFile.readPage() on a memory-mapped file, including a page
+   * written after the file was mapped
+   */
+  @Test
+  public void readPageMemoryMapped() throws Exception {
+    hf.setMemoryMapped(true);
+    HeapPageId pid = new HeapPageId(hf.getId(), 0);
+    HeapPage page = (HeapPage) hf.readPage(pid);
+    assertEquals(483, page.getNumEmptySlots());
+    assertTrue(page.isSlotUsed(1));
+    assertFalse(page.isSlotUsed(20));
+
+    // the file grows past its mapping
+    HeapPageId appended = new HeapPageId(hf.getId(), 1);
+    HeapPage added = new HeapPage(appended, HeapPage.createEmptyPageData());
+    added.insertTuple(Utility.getHeapTuple(7, 2));
+    hf.writePage(added);
+    page = (HeapPage) hf.readPage(appended);
+    assertEquals(502, page.getNumEmptySlots());
+    assertEquals(new IntField(7), page.iterator().next().getField(0));
+
+    try {
+      hf.readPage(new HeapPageId(hf.getId(), 2));
+      fail("expected exception");
+    } catch (RuntimeException e) {
+      // Exception expected but no action necessary.
+    }
+  }
+
   @Test
   public void testIteratorBasic() throws Exception {
     HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null, null);
@@ -1,6 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.After;
@@ -30,14 +36,14 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
    */
   @Test
   public void addTuple() throws Exception {
-    // we should be able to add 504 tuples on an empty page.
-    for (int i = 0; i < 504; ++i) {
+    // we should be able to add 503 tuples on an empty page.
+    for (int i = 0; i < 503; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
       assertEquals(1, empty.numPages());
     }
 
     // the next 512 additions should live on a new page
-    for (int i = 0; i < 504; ++i) {
+    for (int i = 0; i < 503; ++i) {
       empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
       assertEquals(2, empty.numPages());
     }
@@ -47,6 +53,75 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     assertEquals(3, empty.numPages());
   }
 
+  /**
+   * A delete makes room that the next insert uses instead of a new page
+   */
+  @Test
+  public void insertReusesDeletedSlot() throws Exception {
+    for (int i = 0; i < 2 * 503; ++i) {
+      empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(2, empty.numPages());
+    HeapPage first = (HeapPage) Database.getBufferPool().getPage(tid,
+        new HeapPageId(empty.getId(), 0), Permissions.READ_WRITE);
+    empty.deleteTuple(tid, first.iterator().next());
+
+    Page inserted = empty.insertTuple(tid, Utility.getHeapTuple(-1, 2)).get(0);
+    assertEquals(first.getId(), inserted.getId());
+    assertEquals(0, first.getNumEmptySlots());
+    assertEquals(2, empty.numPages());
+  }
+
+  /**
+   * A page an aborted transaction filled has room for the next insert again
+   */
+  @Test
+  public void insertReusesPageFilledByAbort() throws Exception {
+    TransactionId aborted = new TransactionId();
+    for (int i = 0; i < 503; ++i) {
+      Database.getBufferPool().insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+    }
+    assertEquals(1, empty.numPages());
+    Database.getBufferPool().transactionComplete(aborted, false);
+
+    Page inserted = empty.insertTuple(tid, Utility.getHeapTuple(-1, 2)).get(0);
+    assertEquals(new HeapPageId(empty.getId(), 0), inserted.getId());
+    assertEquals(1, empty.numPages());
+  }
+
+  private HeapPage pageHolding(int pageNumber, int value) throws Exception {
+    HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pageNumber), HeapPage
+        .createEmptyPageData());
+    page.insertTuple(Utility.getHeapTuple(value, 2));
+    return page;
+  }
+
+  /**
+   * Unit test for HeapFile.writePages() and HeapFile.readPages(), with pages
+   * out of order and runs of consecutive pages
+   */
+  @Test
+  public void writeAndReadPages() throws Exception {
+    List<Page> pages = new ArrayList<Page>();
+    for (int pageNumber : new int[] { 2, 0, 4, 1 }) {
+      pages.add(pageHolding(pageNumber, pageNumber * 10));
+    }
+    empty.writePages(pages);
+
+    List<PageId> pids = new ArrayList<PageId>();
+    for (int pageNumber : new int[] { 4, 1, 2, 0 }) {
+      pids.add(new HeapPageId(empty.getId(), pageNumber));
+    }
+    List<Page> read = empty.readPages(pids);
+    assertEquals(pids.size(), read.size());
+    for (int i = 0; i < pids.size(); i++) {
+      assertEquals(pids.get(i), read.get(i).getId());
+      HeapPage page = (HeapPage) read.get(i);
+      assertEquals(new IntField(pids.get(i).pageNumber() * 10), page.iterator().next().getField(0));
+      assertTrue(Arrays.equals(empty.readPage(pids.get(i)).getPageData(), page.getPageData()));
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -95,7 +95,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
   @Test
   public void getNumEmptySlots() throws Exception {
     HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
-    assertEquals(484, page.getNumEmptySlots());
+    assertEquals(483, page.getNumEmptySlots());
   }
 
   /**
@@ -108,7 +108,7 @@ public class HeapPageReadTest extends SimpleDbTestBase {
     for (int i = 0; i < 20; ++i)
       assertTrue(page.isSlotUsed(i));
 
-    for (int i = 20; i < 504; ++i)
+    for (int i = 20; i < 503; ++i)
       assertFalse(page.isSlotUsed(i));
   }
 
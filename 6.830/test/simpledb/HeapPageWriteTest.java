@@ -4,6 +4,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -56,7 +58,7 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
     int free = page.getNumEmptySlots();
 
     // NOTE(ghuo): this nested loop existence check is slow, but it
-    // shouldn't make a difference for n = 504 slots.
+    // shouldn't make a difference for n = 503 slots.
 
     for (int i = 0; i < free; ++i) {
       Tuple addition = Utility.getHeapTuple(i, 2);
@@ -131,6 +133,109 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Unit test for HeapPage.getPageData() after the page has changed
+   */
+  @Test
+  public void pageDataFollowsChanges() throws Exception {
+    HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+    assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getPageData()));
+
+    Tuple first = page.iterator().next();
+    page.deleteTuple(first);
+    page.insertTuple(Utility.getHeapTuple(7, 2));
+    page.insertTuple(Utility.getHeapTuple(8, 2));
+    page.setLsn(42);
+    byte[] data = page.getPageData();
+
+    // the image reads back as the same page, and is not shared with it
+    HeapPage copy = new HeapPage(pid, data);
+    assertEquals(42, copy.getLsn());
+    assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    Iterator<Tuple> expected = page.iterator();
+    Iterator<Tuple> actual = copy.iterator();
+    while (expected.hasNext()) {
+      assertTrue(TestUtil.compareTuples(expected.next(), actual.next()));
+    }
+    assertFalse(actual.hasNext());
+    data[HeapPage.LSN_SIZE] ^= 1;
+    assertTrue(Arrays.equals(copy.getPageData(), page.getPageData()));
+  }
+
+  /**
+   * Unit test for tuples read from a page outliving their slot
+   */
+  @Test
+  public void deletedTupleKeepsItsFields() throws Exception {
+    HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+    Tuple first = page.iterator().next();
+    int value = HeapPageReadTest.EXAMPLE_VALUES[0][0];
+    assertTrue(new Predicate(0, Predicate.Op.EQUALS, new IntField(value)).filter(first));
+
+    // the slot is reused and re-encoded, but the deleted tuple was decoded
+    page.deleteTuple(first);
+    page.getPageData();
+    page.insertTuple(Utility.getHeapTuple(value + 1, 2));
+    page.getPageData();
+    assertEquals(value, ((IntField) first.getField(0)).getValue());
+    assertEquals(value + 1, ((IntField) page.iterator().next().getField(0)).getValue());
+  }
+
+  /**
+   * Unit test for HeapPage.setBeforeImage() and getBeforeImage()
+   */
+  @Test
+  public void beforeImageIsTakenOnFirstChange() throws Exception {
+    HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+    page.insertTuple(Utility.getHeapTuple(7, 2));
+    // the page as it was read
+    assertTrue(Arrays.equals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData()));
+
+    // after a commit, the before-image follows the page until it changes
+    page.setBeforeImage();
+    byte[] committed = page.getPageData();
+    assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+    page.deleteTuple(page.iterator().next());
+    assertTrue(Arrays.equals(committed, page.getBeforeImage().getPageData()));
+    assertFalse(Arrays.equals(committed, page.getPageData()));
+  }
+
+  /**
+   * Unit test for finding slots across the words of the slot bitmap
+   */
+  @Test
+  public void slotSearchCrossesWords() throws Exception {
+    HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    int slots = page.getNumEmptySlots();
+    ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+    for (int i = 0; i < 200; i++) {
+      Tuple t = Utility.getHeapTuple(i, 2);
+      page.insertTuple(t);
+      inserted.add(t);
+    }
+    // leave slots 63, 64 and 130 to 199 used
+    for (int i = 0; i < 130; i++) {
+      if (i != 63 && i != 64) {
+        page.deleteTuple(inserted.get(i));
+      }
+    }
+    assertEquals(slots - 72, page.getNumEmptySlots());
+    Iterator<Tuple> it = page.iterator();
+    assertEquals(63, ((IntField) it.next().getField(0)).getValue());
+    assertEquals(64, ((IntField) it.next().getField(0)).getValue());
+    assertEquals(130, ((IntField) it.next().getField(0)).getValue());
+
+    // the bitmap survives a round trip through the page bytes
+    HeapPage copy = new HeapPage(pid, page.getPageData());
+    assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+    for (int i = 0; i < slots; i++) {
+      assertEquals(page.isSlotUsed(i), copy.isSlotUsed(i));
+    }
+    Tuple t = Utility.getHeapTuple(-1, 2);
+    copy.insertTuple(t);
+    assertEquals(0, t.getRecordId().tupleno());
+  }
+
   /**
    * JUnit suite target
    */
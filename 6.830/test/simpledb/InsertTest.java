@@ -54,6 +54,17 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * Unit test for Insert.getNext() in bulk mode, appending to a new page
+   */
+  @Test
+  public void getNextBulk() throws Exception {
+    Insert op = new Insert(tid, scan1, empty.getId(), true);
+    op.open();
+    assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(7, 1), op.next()));
+    assertEquals(1, empty.numPages());
+  }
+
   /**
    * JUnit suite target
    */
@@ -130,9 +130,45 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
     equalsJoinNode = new LogicalJoinNode(tableName2, tableName2, Integer.toString(8),
         Integer.toString(7), Predicate.Op.EQUALS);
     checkJoinEstimateCosts(jo, equalsJoinNode);
+    // 1 join 2 without an equality, as a nested loop
+    jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM " + tableName1 + " t1, "
+        + tableName2 + " t2 WHERE t1.c1 <> t2.c2;"), new Vector<LogicalJoinNode>());
+    LogicalJoinNode notEqualsJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer
+        .toString(1), Integer.toString(2), Predicate.Op.NOT_EQUALS);
+    checkJoinEstimateCosts(jo, notEqualsJoinNode);
   }
 
-  private void checkJoinEstimateCosts(JoinOptimizer jo, LogicalJoinNode equalsJoinNode) {
+  /**
+   * Verify that an equality join is costed as a hash join: far below a nested
+   * loop over the same inputs, and cheaper with the smaller input on the
+   * build (left) side
+   */
+  @Test
+  public void estimateHashJoinCostTest() throws ParsingException {
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(tid, "SELECT * FROM "
+        + tableName1 + " t1, " + tableName2 + " t2 WHERE t1.c1 = t2.c2;"),
+        new Vector<LogicalJoinNode>());
+    LogicalJoinNode equalsJoinNode = new LogicalJoinNode(tableName1, tableName2,
+        Integer.toString(1), Integer.toString(2), Predicate.Op.EQUALS);
+    LogicalJoinNode notEqualsJoinNode = new LogicalJoinNode(tableName1, tableName2, Integer
+        .toString(1), Integer.toString(2), Predicate.Op.NOT_EQUALS);
+
+    double hash = jo.estimateJoinCost(equalsJoinNode, 1000, 10000, 100.0, 1000.0);
+    double nestedLoop = jo.estimateJoinCost(notEqualsJoinNode, 1000, 10000, 100.0, 1000.0);
+    Assert.assertTrue(hash * 100 < nestedLoop);
+
+    double bigBuild = jo.estimateJoinCost(equalsJoinNode.swapInnerOuter(), 10000, 1000, 1000.0,
+        100.0);
+    Assert.assertTrue(hash < bigBuild);
+  }
+
+  /**
+   * Check how the cost of a join grows with the size of its inputs: linearly
+   * in each one, and for a nested loop quadratically in both together.
+   */
+  private void checkJoinEstimateCosts(JoinOptimizer jo, LogicalJoinNode joinNode) {
     int card1s[] = new int[20];
     int card2s[] = new int[card1s.length];
     double cost1s[] = new double[card1s.length];
@@ -144,7 +180,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
       card2s[i] = 5;
       cost1s[i] = cost2s[i] = 5.0;
     }
-    double stats[] = getRandomJoinCosts(jo, equalsJoinNode, card1s, card2s, cost1s, cost2s);
+    double stats[] = getRandomJoinCosts(jo, joinNode, card1s, card2s, cost1s, cost2s);
     ret = SystemTestUtil.checkLinear(stats);
     Assert.assertEquals(Boolean.TRUE, ret[0]);
     // card2s linear others constant
@@ -153,7 +189,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
       card2s[i] = 3 * i + 1;
       cost1s[i] = cost2s[i] = 5.0;
     }
-    stats = getRandomJoinCosts(jo, equalsJoinNode, card1s, card2s, cost1s, cost2s);
+    stats = getRandomJoinCosts(jo, joinNode, card1s, card2s, cost1s, cost2s);
     ret = SystemTestUtil.checkLinear(stats);
     Assert.assertEquals(Boolean.TRUE, ret[0]);
     // cost1s linear others constant
@@ -162,7 +198,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
       cost1s[i] = 5.0 * (i + 1);
       cost2s[i] = 3.0;
     }
-    stats = getRandomJoinCosts(jo, equalsJoinNode, card1s, card2s, cost1s, cost2s);
+    stats = getRandomJoinCosts(jo, joinNode, card1s, card2s, cost1s, cost2s);
     ret = SystemTestUtil.checkLinear(stats);
     Assert.assertEquals(Boolean.TRUE, ret[0]);
     // cost2s linear others constant
@@ -171,7 +207,7 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
       cost1s[i] = 5.0;
       cost2s[i] = 3.0 * (i + 1);
     }
-    stats = getRandomJoinCosts(jo, equalsJoinNode, card1s, card2s, cost1s, cost2s);
+    stats = getRandomJoinCosts(jo, joinNode, card1s, card2s, cost1s, cost2s);
     ret = SystemTestUtil.checkLinear(stats);
     Assert.assertEquals(Boolean.TRUE, ret[0]);
     // everything linear
@@ -181,8 +217,13 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
       cost1s[i] = 5.0 * i + 2;
       cost2s[i] = 3.0 * i + 1;
     }
-    stats = getRandomJoinCosts(jo, equalsJoinNode, card1s, card2s, cost1s, cost2s);
-    ret = SystemTestUtil.checkQuadratic(stats);
+    stats = getRandomJoinCosts(jo, joinNode, card1s, card2s, cost1s, cost2s);
+    if (joinNode.p == Predicate.Op.EQUALS) {
+      // a hash join reads each input a bounded number of times
+      ret = SystemTestUtil.checkLinear(stats);
+    } else {
+      ret = SystemTestUtil.checkQuadratic(stats);
+    }
     Assert.assertEquals(Boolean.TRUE, ret[0]);
   }
 
@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -83,6 +84,20 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(gtJoin, op);
   }
 
+  /**
+   * Unit test for Join.getNext() using a &gt; predicate and one outer tuple per
+   * block
+   */
+  @Test
+  public void gtJoinSingleTupleBlocks() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Join op = new Join(pred, scan1, scan2, 0);
+    assertEquals(1, op.getBlockSize());
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * Unit test for Join.getNext() using an = predicate
    */
@@ -95,6 +110,100 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.getNext() and rewind()
+   */
+  @Test
+  public void hashEqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Asking an exhausted join for more tuples keeps reporting that it has none
+   */
+  private static void assertStaysExhausted(DbIterator op) throws Exception {
+    assertFalse(op.hasNext());
+    assertFalse(op.hasNext());
+    assertTrue(TestUtil.checkExhausted(op));
+  }
+
+  /**
+   * Unit test for HashEquiJoin.hasNext() once the join is exhausted
+   */
+  @Test
+  public void hashEqJoinExhausted() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    assertStaysExhausted(op);
+  }
+
+  /**
+   * Unit test for HashEquiJoin.hasNext() once a join that spilled its
+   * partitions to disk is exhausted
+   */
+  @Test
+  public void spilledHashEqJoinExhausted() throws Exception {
+    // far more build tuples than one page holds
+    int rows = 4 * BufferPool.getPageSize() / Utility.getTupleDesc(width1).getSize();
+    int[] left = new int[rows * width1];
+    int[] right = new int[rows * width2];
+    for (int i = 0; i < rows; i++) {
+      left[i * width1] = i;
+      right[i * width2] = i;
+    }
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(width1, left), TestUtil
+        .createTupleList(width2, right), 1);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertEquals(t.getField(0), t.getField(width1));
+      count++;
+    }
+    assertEquals(rows, count);
+    assertStaysExhausted(op);
+    op.close();
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() and rewind() using an = predicate
+   */
+  @Test
+  public void sortMergeEqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    eqJoin.rewind();
+    TestUtil.matchAllTuples(eqJoin, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate over a sorted
+   * child
+   */
+  @Test
+  public void sortMergeGtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, new OrderBy(0, true, scan1), scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,261 @@
+package simpledb;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LockManagerTest {
+
+  private static final int TABLE_ID = 1;
+  private static final int WAIT_MILLIS = 100;
+
+  private LockManager lockManager;
+
+  /**
+   * Acquires a lock in a background thread, so the test can observe whether it
+   * blocks.
+   */
+  private class Acquirer extends Thread {
+    final TransactionId tid;
+    final PageId pid;
+    final Permissions perm;
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile boolean acquired;
+    volatile boolean aborted;
+
+    Acquirer(TransactionId tid, PageId pid, Permissions perm) {
+      this.tid = tid;
+      this.pid = pid;
+      this.perm = perm;
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        lockManager.acquireLock(tid, pid, perm);
+        acquired = true;
+      } catch (TransactionAbortedException e) {
+        aborted = true;
+      } finally {
+        done.countDown();
+      }
+    }
+
+    boolean finish() throws InterruptedException {
+      return done.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static PageId page(int pageNumber) {
+    return new HeapPageId(TABLE_ID, pageNumber);
+  }
+
+  @Before
+  public void setUp() {
+    lockManager = LockManager.create();
+  }
+
+  @Test(timeout = 10000)
+  public void waiterIsGrantedOnRelease() throws Exception {
+    TransactionId holder = new TransactionId();
+    TransactionId waiter = new TransactionId();
+    lockManager.acquireLock(holder, page(0), Permissions.READ_WRITE);
+    Acquirer acquirer = new Acquirer(waiter, page(0), Permissions.READ_ONLY);
+    assertFalse(acquirer.finish());
+    lockManager.releasePages(holder);
+    acquirer.join();
+    assertTrue(acquirer.acquired);
+    assertTrue(lockManager.holdsLock(waiter, page(0)));
+  }
+
+  /**
+   * A shared request queued behind an exclusive one is not granted ahead of it,
+   * even though it is compatible with the shared request at the head.
+   */
+  @Test(timeout = 10000)
+  public void grantsInArrivalOrder() throws Exception {
+    TransactionId holder = new TransactionId();
+    lockManager.acquireLock(holder, page(0), Permissions.READ_WRITE);
+    Acquirer firstReader = new Acquirer(new TransactionId(), page(0), Permissions.READ_ONLY);
+    assertFalse(firstReader.finish());
+    Acquirer writer = new Acquirer(new TransactionId(), page(0), Permissions.READ_WRITE);
+    assertFalse(writer.finish());
+    Acquirer secondReader = new Acquirer(new TransactionId(), page(0), Permissions.READ_ONLY);
+    assertFalse(secondReader.finish());
+
+    lockManager.releasePages(holder);
+    firstReader.join();
+    assertTrue(firstReader.acquired);
+    assertFalse(writer.finish());
+    assertFalse(secondReader.finish());
+
+    lockManager.releasePages(firstReader.tid);
+    writer.join();
+    assertTrue(writer.acquired);
+    assertFalse(secondReader.finish());
+
+    lockManager.releasePages(writer.tid);
+    secondReader.join();
+    assertTrue(secondReader.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void upgradeWaitsForOtherReaders() throws Exception {
+    TransactionId first = new TransactionId();
+    TransactionId second = new TransactionId();
+    lockManager.acquireLock(first, page(0), Permissions.READ_ONLY);
+    lockManager.acquireLock(second, page(0), Permissions.READ_ONLY);
+    Acquirer upgrade = new Acquirer(first, page(0), Permissions.READ_WRITE);
+    assertFalse(upgrade.finish());
+    lockManager.releasePages(second);
+    upgrade.join();
+    assertTrue(upgrade.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void waitTimesOut() throws Exception {
+    lockManager.setLockTimeout(WAIT_MILLIS);
+    TransactionId holder = new TransactionId();
+    lockManager.acquireLock(holder, page(0), Permissions.READ_WRITE);
+    Acquirer acquirer = new Acquirer(new TransactionId(), page(0), Permissions.READ_WRITE);
+    acquirer.join();
+    assertTrue(acquirer.aborted);
+    // the abandoned request no longer holds up the queue
+    lockManager.releasePages(holder);
+    lockManager.acquireLock(new TransactionId(), page(0), Permissions.READ_WRITE);
+  }
+
+  /**
+   * Both transactions hold one page and wait for the other's; returns the
+   * waiter of the transaction that queued first. The second request closes
+   * the cycle.
+   */
+  private Acquirer deadlock(TransactionId first, TransactionId second) throws Exception {
+    lockManager.acquireLock(first, page(0), Permissions.READ_WRITE);
+    lockManager.acquireLock(second, page(1), Permissions.READ_WRITE);
+    Acquirer waiter = new Acquirer(first, page(1), Permissions.READ_WRITE);
+    assertFalse(waiter.finish());
+    return waiter;
+  }
+
+  @Test(timeout = 10000)
+  public void deadlockAbortsYoungestRequester() throws Exception {
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    Acquirer waiter = deadlock(older, younger);
+    try {
+      lockManager.acquireLock(younger, page(0), Permissions.READ_WRITE);
+      fail("expected a deadlock");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    lockManager.releasePages(younger);
+    waiter.join();
+    assertTrue(waiter.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void deadlockAbortsYoungestWaiter() throws Exception {
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    Acquirer waiter = deadlock(younger, older);
+    Acquirer requester = new Acquirer(older, page(0), Permissions.READ_WRITE);
+    waiter.join();
+    assertTrue(waiter.aborted);
+    // the victim keeps its locks until it completes
+    assertFalse(requester.finish());
+    lockManager.releasePages(younger);
+    requester.join();
+    assertTrue(requester.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void deadlockAbortsRequesterByPolicy() throws Exception {
+    lockManager.setVictimPolicy(LockManager.VictimPolicy.REQUESTER);
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    Acquirer waiter = deadlock(younger, older);
+    try {
+      lockManager.acquireLock(older, page(0), Permissions.READ_WRITE);
+      fail("expected a deadlock");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertFalse(waiter.finish());
+    lockManager.releasePages(older);
+    waiter.join();
+    assertTrue(waiter.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void deadlockAbortsLeastWork() throws Exception {
+    lockManager.setVictimPolicy(LockManager.VictimPolicy.LEAST_WORK);
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    lockManager.acquireLock(younger, page(2), Permissions.READ_ONLY);
+    lockManager.acquireLock(younger, page(3), Permissions.READ_ONLY);
+    Acquirer waiter = deadlock(older, younger);
+    // the younger transaction has done more work, so the older one is aborted
+    Acquirer requester = new Acquirer(younger, page(0), Permissions.READ_WRITE);
+    waiter.join();
+    assertTrue(waiter.aborted);
+    lockManager.releasePages(older);
+    requester.join();
+    assertTrue(requester.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void waitDieAbortsYoungerRequester() throws Exception {
+    lockManager.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    lockManager.acquireLock(older, page(0), Permissions.READ_WRITE);
+    Acquirer dies = new Acquirer(younger, page(0), Permissions.READ_ONLY);
+    dies.join();
+    assertTrue(dies.aborted);
+
+    lockManager.acquireLock(younger, page(1), Permissions.READ_WRITE);
+    Acquirer waits = new Acquirer(older, page(1), Permissions.READ_ONLY);
+    assertFalse(waits.finish());
+    lockManager.releasePages(younger);
+    waits.join();
+    assertTrue(waits.acquired);
+  }
+
+  @Test(timeout = 10000)
+  public void woundWaitAbortsYoungerHolder() throws Exception {
+    lockManager.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+    TransactionId older = new TransactionId();
+    TransactionId younger = new TransactionId();
+    lockManager.acquireLock(younger, page(0), Permissions.READ_WRITE);
+    Acquirer waits = new Acquirer(older, page(0), Permissions.READ_WRITE);
+    assertFalse(waits.finish());
+    try {
+      lockManager.acquireLock(younger, page(1), Permissions.READ_ONLY);
+      fail("expected the younger transaction to be wounded");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    lockManager.releasePages(younger);
+    waits.join();
+    assertTrue(waits.acquired);
+    // completing the transaction clears its abort
+    lockManager.acquireLock(younger, page(1), Permissions.READ_ONLY);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
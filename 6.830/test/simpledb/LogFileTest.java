@@ -0,0 +1,323 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+  private File file;
+  private File segment;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("logfile", ".log");
+    file.deleteOnExit();
+    segment = LogFile.segmentFile(file, 0);
+    segment.deleteOnExit();
+  }
+
+  private long logTwoTransactions() throws Exception {
+    LogFile log = new LogFile(file);
+    TransactionId first = new TransactionId();
+    log.logXactionBegin(first);
+    log.logCommit(first);
+    long end = log.currentOffset;
+    TransactionId second = new TransactionId();
+    log.logXactionBegin(second);
+    log.logCommit(second);
+    return end;
+  }
+
+  /** Read a record of the first segment, where LSNs are file offsets. */
+  private static LogFile.LogRecord read(File segment, long offset) throws Exception {
+    RandomAccessFile raf = new RandomAccessFile(segment, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      return new LogFile.LogReader(channel, LogFile.SEGMENT_HEADER_SIZE, channel.size())
+          .read(offset);
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void recordsReadBack() throws Exception {
+    logTwoTransactions();
+    LogFile.LogRecord begin = read(segment, LogFile.SEGMENT_HEADER_SIZE);
+    assertNotNull(begin);
+    assertEquals(LogFile.BEGIN_RECORD, begin.type);
+    LogFile.LogRecord commit = read(segment, begin.end);
+    assertNotNull(commit);
+    assertEquals(LogFile.COMMIT_RECORD, commit.type);
+    assertEquals(begin.tid, commit.tid);
+  }
+
+  @Test
+  public void corruptRecordEndsLog() throws Exception {
+    long end = logTwoTransactions();
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    // flip a bit in the transaction id of the second BEGIN record
+    long position = end + LogFile.RECORD_HEADER_SIZE - 1;
+    raf.seek(position);
+    int b = raf.read();
+    raf.seek(position);
+    raf.write(b ^ 1);
+    raf.close();
+    assertNull(read(segment, end));
+  }
+
+  @Test
+  public void recoverDropsTornTail() throws Exception {
+    long secondBegin = logTwoTransactions();
+    // the last COMMIT record is cut short by a crash
+    long lastCommit = segment.length() - LogFile.RECORD_HEADER_SIZE - LogFile.RECORD_TRAILER_SIZE;
+    RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+    raf.setLength(segment.length() - 1);
+    raf.close();
+
+    LogFile log = new LogFile(file);
+    log.recover();
+    // the second transaction did not commit, so it is aborted in its place
+    LogFile.LogRecord abort = read(segment, lastCommit);
+    assertNotNull(abort);
+    assertEquals(LogFile.ABORT_RECORD, abort.type);
+    assertEquals(read(segment, secondBegin).tid, abort.tid);
+    assertEquals(segment.length(), log.currentOffset);
+    assertEquals(segment.length(), abort.end);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsUnknownVersion() throws Exception {
+    logTwoTransactions();
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    ByteBuffer version = ByteBuffer.allocate(LogFile.INT_SIZE);
+    version.putInt(LogFile.LOG_VERSION + 1);
+    version.flip();
+    raf.getChannel().write(version, LogFile.INT_SIZE);
+    raf.close();
+    new LogFile(file).recover();
+  }
+
+  /** @return the first field of every tuple on the table's first page on disk */
+  private static String valuesOnDisk(HeapFile table) {
+    HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), 0));
+    StringBuilder values = new StringBuilder();
+    for (Iterator<Tuple> it = page.iterator(); it.hasNext();) {
+      values.append(((IntField) it.next().getField(0)).getValue()).append(' ');
+    }
+    return values.toString().trim();
+  }
+
+  @Test
+  public void slotUpdatesAreUndoneAndRedone() throws Exception {
+    File tableFile = File.createTempFile("slots", ".dat");
+    tableFile.deleteOnExit();
+    HeapFile table = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+    Database.getLogFile().setPhysiologicalLogging(true);
+
+    Transaction committed = new Transaction();
+    committed.start();
+    Database.getBufferPool().insertTuple(committed.getId(), table.getId(),
+        Utility.getHeapTuple(1, 2));
+    long start = Database.getLogFile().currentOffset;
+    committed.commit();
+    // a COMMIT record and one small SLOT_UPDATE record instead of two images
+    assertTrue(Database.getLogFile().currentOffset - start < BufferPool.getPageSize());
+    assertEquals("1", valuesOnDisk(table));
+
+    // the aborted insert reaches the disk before the abort and is undone
+    Transaction aborted = new Transaction();
+    aborted.start();
+    Database.getBufferPool().insertTuple(aborted.getId(), table.getId(),
+        Utility.getHeapTuple(2, 2));
+    Database.getBufferPool().flushAllPages();
+    assertEquals("1 2", valuesOnDisk(table));
+    aborted.abort();
+    assertEquals("1", valuesOnDisk(table));
+
+    // losing the page is repaired by redoing the committed insert
+    table.writePage(new HeapPage(new HeapPageId(table.getId(), 0), HeapPage
+        .createEmptyPageData()));
+    Database.reset();
+    table = Utility.openHeapFile(2, tableFile);
+    Database.getLogFile().recover();
+    assertEquals("1", valuesOnDisk(table));
+  }
+
+  @Test
+  public void recoveryCompensatesLoserOnce() throws Exception {
+    File tableFile = File.createTempFile("loser", ".dat");
+    tableFile.deleteOnExit();
+    HeapFile table = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+    HeapPageId pid = new HeapPageId(table.getId(), 0);
+
+    Transaction committed = new Transaction();
+    committed.start();
+    Database.getBufferPool().insertTuple(committed.getId(), table.getId(),
+        Utility.getHeapTuple(1, 2));
+    committed.commit();
+
+    // the loser's change reaches the disk, then the system crashes
+    Transaction loser = new Transaction();
+    loser.start();
+    Database.getBufferPool().insertTuple(loser.getId(), table.getId(), Utility.getHeapTuple(2, 2));
+    Database.getBufferPool().flushAllPages();
+    long updateLsn = table.readPage(pid).getLsn();
+    assertEquals("1 2", valuesOnDisk(table));
+
+    File logSegment = LogFile.segmentFile(Database.getLogFile().logFile, 0);
+    Database.reset();
+    table = Utility.openHeapFile(2, tableFile);
+    Database.getLogFile().recover();
+    assertEquals("1", valuesOnDisk(table));
+    // the restored page carries the LSN of the CLR that undid the change
+    long clrLsn = table.readPage(pid).getLsn();
+    assertTrue(clrLsn > updateLsn);
+    LogFile.LogRecord clr = read(logSegment, clrLsn);
+    assertEquals(LogFile.CLR_RECORD, clr.type);
+    assertEquals(loser.getId().getId(), clr.tid);
+
+    // recovering again finds nothing to redo or undo
+    long length = logSegment.length();
+    Database.reset();
+    table = Utility.openHeapFile(2, tableFile);
+    Database.getLogFile().recover();
+    assertEquals("1", valuesOnDisk(table));
+    assertEquals(clrLsn, table.readPage(pid).getLsn());
+    assertEquals(length, logSegment.length());
+  }
+
+  @Test
+  public void fuzzyCheckpointRecordsDirtyPages() throws Exception {
+    File tableFile = File.createTempFile("fuzzy", ".dat");
+    tableFile.deleteOnExit();
+    HeapFile table = Utility.createEmptyHeapFile(tableFile.getAbsolutePath(), 2);
+    HeapPageId pid = new HeapPageId(table.getId(), 0);
+
+    Transaction committed = new Transaction();
+    committed.start();
+    Database.getBufferPool().insertTuple(committed.getId(), table.getId(),
+        Utility.getHeapTuple(1, 2));
+    committed.commit();
+
+    // the checkpoint is taken while a transaction has the page dirty
+    Transaction running = new Transaction();
+    running.start();
+    Database.getBufferPool().insertTuple(running.getId(), table.getId(),
+        Utility.getHeapTuple(2, 2));
+    Database.getLogFile().logCheckpoint();
+    // ... but it does not write the page
+    assertEquals("1", valuesOnDisk(table));
+
+    File logFile = Database.getLogFile().logFile;
+    RandomAccessFile raf = new RandomAccessFile(logFile, "r");
+    LogFile.Checkpoint checkpoint;
+    try {
+      ByteBuffer pointer = ByteBuffer.allocate(LogFile.LONG_SIZE);
+      raf.getChannel().read(pointer, LogFile.CHECKPOINT_POINTER_OFFSET);
+      checkpoint = LogFile.Checkpoint.read(read(LogFile.segmentFile(logFile, 0), pointer
+          .getLong(0)));
+    } finally {
+      raf.close();
+    }
+    assertTrue(checkpoint.firstLsns.containsKey(running.getId().getId()));
+    assertTrue(checkpoint.dirtyPages.containsKey(pid));
+
+    // the page is written, then the system crashes before the commit
+    Database.getBufferPool().flushAllPages();
+    assertEquals("1 2", valuesOnDisk(table));
+    Database.reset();
+    table = Utility.openHeapFile(2, tableFile);
+    Database.getLogFile().recover();
+    assertEquals("1", valuesOnDisk(table));
+  }
+
+  @Test
+  public void recoveryRecreatesAppendedPages() throws Exception {
+    File tableFile = File.createTempFile("append", ".dat");
+    tableFile.deleteOnExit();
+    HeapFile table = Utility.openHeapFile(2, tableFile);
+
+    Transaction committed = new Transaction();
+    committed.start();
+    assertEquals(2, table.bulkAppend(committed.getId(), Arrays.asList(Utility.getHeapTuple(1, 2),
+        Utility.getHeapTuple(2, 2)).iterator()));
+    committed.commit();
+    assertEquals(1, table.numPages());
+    assertEquals("1 2", valuesOnDisk(table));
+
+    // the crash comes before the appended page reaches the disk
+    RandomAccessFile raf = new RandomAccessFile(tableFile, "rw");
+    raf.setLength(0);
+    raf.close();
+    Database.reset();
+    table = Utility.openHeapFile(2, tableFile);
+    assertEquals(0, table.numPages());
+    Database.getLogFile().recover();
+    assertEquals(1, table.numPages());
+    assertEquals("1 2", valuesOnDisk(table));
+  }
+
+  @Test
+  public void truncationDeletesWholeSegments() throws Exception {
+    LogFile log = new LogFile(file);
+    log.setSegmentSize(256);
+    TransactionId running = new TransactionId();
+    log.logXactionBegin(running);
+    for (int i = 0; i < 20; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+    assertTrue(LogFile.segmentFile(file, 3).exists());
+
+    // the running transaction keeps its BEGIN record in the first segment
+    log.logCheckpoint();
+    assertTrue(segment.exists());
+    log.logCommit(running);
+
+    // records are never moved, so the oldest segment left starts the log
+    log.logCheckpoint();
+    assertFalse(segment.exists());
+    long first = log.firstSegment;
+    assertTrue(first > 0);
+    for (long n = 0; n < first; n++) {
+      assertFalse(LogFile.segmentFile(file, n).exists());
+    }
+    for (long n = first; LogFile.segmentFile(file, n).exists(); n++) {
+      LogFile.segmentFile(file, n).deleteOnExit();
+    }
+
+    // the segments left still recover
+    log = new LogFile(file);
+    log.recover();
+    assertEquals(first, log.firstSegment);
+    assertTrue(log.tidToFirstLogRecord.isEmpty());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParserTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 100;
+
+  private ArrayList<ArrayList<Integer>> tuples;
+  private HeapFile table;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    table = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples, "c");
+    Database.getCatalog().addTable(table, "t");
+    TableStats.setTableStats("t", new TableStats(table.getId(), 101));
+  }
+
+  private DbIterator physicalPlan(TransactionId tid, String query) throws Exception {
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid, query);
+    return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+  }
+
+  private int tuplesInTable() throws Exception {
+    TransactionId tid = new TransactionId();
+    DbFileIterator it = table.iterator(tid);
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      it.next();
+      count++;
+    }
+    it.close();
+    Database.getBufferPool().transactionComplete(tid);
+    return count;
+  }
+
+  /**
+   * Unit test for Parser.parseLimit() and Parser.stripLimit()
+   */
+  @Test
+  public void limitClause() throws Exception {
+    String query = "SELECT t.c0 FROM t ORDER BY t.c0 LIMIT 5;";
+    assertEquals(5, Parser.parseLimit(query));
+    assertEquals("SELECT t.c0 FROM t ORDER BY t.c0;", Parser.stripLimit(query));
+
+    query = "select t.c0 from t\norder by t.c0\nlimit 12";
+    assertEquals(12, Parser.parseLimit(query));
+    assertEquals("select t.c0 from t\norder by t.c0", Parser.stripLimit(query));
+  }
+
+  /**
+   * A statement without a LIMIT clause is left as it is
+   */
+  @Test
+  public void noLimitClause() throws Exception {
+    String query = "SELECT t.c0 FROM t ORDER BY t.c0;";
+    assertEquals(-1, Parser.parseLimit(query));
+    assertEquals(query, Parser.stripLimit(query));
+  }
+
+  @Test(expected = ParsingException.class)
+  public void limitTooLarge() throws Exception {
+    Parser.parseLimit("SELECT t.c0 FROM t ORDER BY t.c0 LIMIT 99999999999;");
+  }
+
+  /**
+   * ORDER BY with a LIMIT is planned as a TopN that returns the first tuples
+   * of the ordering
+   */
+  @Test
+  public void limitPlansTopN() throws Exception {
+    TransactionId tid = new TransactionId();
+    DbIterator plan = physicalPlan(tid, "SELECT t.c0 FROM t ORDER BY t.c0 LIMIT 5;");
+    assertTrue(plan instanceof Project);
+    DbIterator child = ((Project) plan).getChildren()[0];
+    assertTrue(child instanceof TopN);
+    assertEquals(5, ((TopN) child).getLimit());
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    for (ArrayList<Integer> tuple : tuples) {
+      values.add(tuple.get(0));
+    }
+    Collections.sort(values);
+    for (int i = 0; i < 5; i++) {
+      ArrayList<Integer> tuple = new ArrayList<Integer>();
+      tuple.add(values.get(i));
+      expected.add(tuple);
+    }
+    SystemTestUtil.matchTuples(plan, expected);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * ORDER BY without a LIMIT still sorts the whole input
+   */
+  @Test
+  public void noLimitPlansOrderBy() throws Exception {
+    TransactionId tid = new TransactionId();
+    DbIterator plan = physicalPlan(tid, "SELECT t.c0 FROM t ORDER BY t.c0;");
+    assertTrue(((Project) plan).getChildren()[0] instanceof OrderBy);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  @Test(expected = ParsingException.class)
+  public void limitWithoutOrderBy() throws Exception {
+    physicalPlan(new TransactionId(), "SELECT t.c0 FROM t LIMIT 5;");
+  }
+
+  /**
+   * A LIMIT on a statement other than SELECT is rejected, and the statement
+   * does not run
+   */
+  @Test
+  public void limitOnDelete() throws Exception {
+    assertEquals(-1, Parser.parseLimit("DELETE FROM t;"));
+    new Parser().processNextStatement("DELETE FROM t LIMIT 1;");
+    assertEquals(ROWS, tuplesInTable());
+  }
+
+  /**
+   * A statement read from a stream, as from a query file, keeps its LIMIT, and
+   * the statements after it are left in the stream
+   */
+  @Test
+  public void limitFromStream() throws Exception {
+    InputStream in = new ByteArrayInputStream(
+        "SELECT t.c0 FROM t ORDER BY t.c0 LIMIT 5;\nSELECT t.c0 FROM t;".getBytes("UTF-8"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream stdout = System.out;
+    System.setOut(new PrintStream(out, true));
+    try {
+      new Parser().processNextStatement(in);
+    } finally {
+      System.setOut(stdout);
+    }
+    assertTrue(out.toString().contains("\n 5 rows."));
+
+    ByteArrayOutputStream rest = new ByteArrayOutputStream();
+    for (int b = in.read(); b >= 0; b = in.read()) {
+      rest.write(b);
+    }
+    assertEquals("\nSELECT t.c0 FROM t;", rest.toString("UTF-8"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParserTest.class);
+  }
+}
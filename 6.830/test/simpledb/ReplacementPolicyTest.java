@@ -0,0 +1,172 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+  private static final int TABLE_ID = 1;
+
+  private static final ReplacementPolicy.EvictionFilter ANY_PAGE = new ReplacementPolicy.EvictionFilter() {
+    @Override
+    public boolean canEvict(PageId pageId) {
+      return true;
+    }
+  };
+
+  private static PageId page(int pageNumber) {
+    return new HeapPageId(TABLE_ID, pageNumber);
+  }
+
+  /**
+   * Admits numPages pages, evicting whenever the pool is full, and returns the
+   * number of misses.
+   */
+  private static int scan(ReplacementPolicy policy, Set<PageId> resident, int poolSize,
+      int firstPage, int numPages) {
+    int misses = 0;
+    for (int i = firstPage; i < firstPage + numPages; i++) {
+      misses += access(policy, resident, poolSize, page(i));
+    }
+    return misses;
+  }
+
+  private static int access(ReplacementPolicy policy, Set<PageId> resident,
+      int poolSize, PageId pageId) {
+    if (resident.contains(pageId)) {
+      policy.pageAccessed(pageId);
+      return 0;
+    }
+    if (resident.size() >= poolSize) {
+      PageId victim = policy.chooseVictim(ANY_PAGE);
+      resident.remove(victim);
+      policy.pageRemoved(victim);
+    }
+    resident.add(pageId);
+    policy.pageAdmitted(pageId);
+    return 1;
+  }
+
+  /**
+   * Hot pages are re-read often enough to be recognized as hot, then a long
+   * sequential scan streams through the pool. Returns the number of misses on
+   * the hot pages after the scan.
+   */
+  private static int hotPageMissesAfterScan(ReplacementPolicy policy, int poolSize) {
+    Set<PageId> resident = new HashSet<PageId>();
+    int hotPages = poolSize / 4;
+    for (int round = 0; round < 3; round++) {
+      scan(policy, resident, poolSize, 0, hotPages);
+      // enough cold pages to push the hot pages out of any FIFO queue
+      scan(policy, resident, poolSize, 1000 + round * poolSize, poolSize);
+    }
+    scan(policy, resident, poolSize, 0, hotPages);
+    scan(policy, resident, poolSize, 100000, 10 * poolSize);
+    return scan(policy, resident, poolSize, 0, hotPages);
+  }
+
+  @Test
+  public void clockGivesSecondChance() {
+    ReplacementPolicy policy = ClockReplacementPolicy.create(3);
+    policy.pageAdmitted(page(0));
+    policy.pageAdmitted(page(1));
+    policy.pageAdmitted(page(2));
+    // all reference bits are set; the first sweep clears them all
+    assertEquals(page(0), policy.chooseVictim(ANY_PAGE));
+    policy.pageAccessed(page(0));
+    // page 0 was referenced again, so page 1 goes next
+    assertEquals(page(1), policy.chooseVictim(ANY_PAGE));
+  }
+
+  @Test
+  public void lruKEvictsPagesWithFewerThanKReferences() {
+    ReplacementPolicy policy = LruKReplacementPolicy.create(3, 2);
+    policy.pageAdmitted(page(0));
+    policy.pageAccessed(page(0));
+    policy.pageAdmitted(page(1));
+    policy.pageAdmitted(page(2));
+    policy.pageAccessed(page(2));
+    assertEquals(page(1), policy.chooseVictim(ANY_PAGE));
+    policy.pageRemoved(page(1));
+    // both remaining pages have two references; page 0's second-to-last is older
+    assertEquals(page(0), policy.chooseVictim(ANY_PAGE));
+  }
+
+  @Test
+  public void twoQueueEvictsFromA1inFirst() {
+    ReplacementPolicy policy = TwoQueueReplacementPolicy.create(4);
+    policy.pageAdmitted(page(0));
+    policy.chooseVictim(ANY_PAGE);
+    policy.pageRemoved(page(0));
+    // page 0 is re-read while remembered in A1out, so it is hot now
+    policy.pageAdmitted(page(0));
+    policy.pageAdmitted(page(1));
+    policy.pageAdmitted(page(2));
+    assertEquals(page(1), policy.chooseVictim(ANY_PAGE));
+  }
+
+  @Test
+  public void victimRespectsFilter() {
+    ReplacementPolicy[] policies = new ReplacementPolicy[] { ClockReplacementPolicy.create(2),
+        LruKReplacementPolicy.create(2), TwoQueueReplacementPolicy.create(2) };
+    ReplacementPolicy.EvictionFilter onlyPage1 = new ReplacementPolicy.EvictionFilter() {
+      @Override
+      public boolean canEvict(PageId pageId) {
+        return pageId.equals(page(1));
+      }
+    };
+    ReplacementPolicy.EvictionFilter noPage = new ReplacementPolicy.EvictionFilter() {
+      @Override
+      public boolean canEvict(PageId pageId) {
+        return false;
+      }
+    };
+    for (ReplacementPolicy policy : policies) {
+      policy.pageAdmitted(page(0));
+      policy.pageAdmitted(page(1));
+      assertEquals(page(1), policy.chooseVictim(onlyPage1));
+      assertNull(policy.chooseVictim(noPage));
+    }
+  }
+
+  @Test
+  public void scanResistance() {
+    int poolSize = 40;
+    assertEquals(0, hotPageMissesAfterScan(TwoQueueReplacementPolicy.create(poolSize), poolSize));
+    assertEquals(0, hotPageMissesAfterScan(LruKReplacementPolicy.create(poolSize), poolSize));
+  }
+
+  @Test
+  public void bufferPoolCountsHitsAndMisses() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+    BufferPool bufferPool = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    TransactionId tid = new TransactionId();
+    PageId pageId = new HeapPageId(table.getId(), 0);
+    bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+    bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+    bufferPool.getPage(tid, pageId, Permissions.READ_ONLY);
+    assertEquals(1, bufferPool.getMissCount());
+    assertEquals(2, bufferPool.getHitCount());
+    bufferPool.resetStatistics();
+    assertEquals(0, bufferPool.getMissCount());
+    assertEquals(0, bufferPool.getHitCount());
+    bufferPool.transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+  }
+}
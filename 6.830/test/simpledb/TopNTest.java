@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width = 2;
+  DbIterator scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before
+  public void createTupleList() throws Exception {
+    this.scan = TestUtil.createTupleList(width, new int[] { 5, 1, 2, 2, 9, 3, 1, 4, 7, 5, 3, 6, 8,
+        7 });
+  }
+
+  /**
+   * Unit test for TopN.getTupleDesc()
+   */
+  @Test
+  public void getTupleDesc() {
+    TopN op = new TopN(0, true, 3, scan);
+    assertEquals(scan.getTupleDesc(), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for TopN.getNext() in ascending order, and rewind()
+   */
+  @Test
+  public void ascending() throws Exception {
+    TopN op = new TopN(0, true, 3, scan);
+    DbIterator expected = TestUtil.createTupleList(width, new int[] { 1, 4, 2, 2, 3, 6 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN.getNext() in descending order on the second field
+   */
+  @Test
+  public void descending() throws Exception {
+    TopN op = new TopN(1, false, 2, scan);
+    DbIterator expected = TestUtil.createTupleList(width, new int[] { 8, 7, 3, 6 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * A limit past the end of the input returns the whole input in order, and a
+   * limit of zero returns nothing
+   */
+  @Test
+  public void limitBounds() throws Exception {
+    TopN op = new TopN(0, true, 100, scan);
+    DbIterator expected = TestUtil.createTupleList(width, new int[] { 1, 4, 2, 2, 3, 6, 5, 1, 7,
+        5, 8, 7, 9, 3 });
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+
+    op = new TopN(0, true, 0, scan);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
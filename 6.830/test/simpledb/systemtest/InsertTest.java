@@ -15,6 +15,7 @@ import simpledb.HeapFile;
 import simpledb.Insert;
 import simpledb.IntField;
 import simpledb.SeqScan;
+import simpledb.Transaction;
 import simpledb.TransactionAbortedException;
 import simpledb.TransactionId;
 import simpledb.Tuple;
@@ -22,6 +23,11 @@ import simpledb.Tuple;
 public class InsertTest extends SimpleDbTestBase {
   private void validateInsert(int columns, int sourceRows, int destinationRows) throws DbException,
       IOException, TransactionAbortedException {
+    validateInsert(columns, sourceRows, destinationRows, false);
+  }
+
+  private void validateInsert(int columns, int sourceRows, int destinationRows, boolean bulk)
+      throws DbException, IOException, TransactionAbortedException {
     // Create the two tables
     ArrayList<ArrayList<Integer>> sourceTuples = new ArrayList<ArrayList<Integer>>();
     HeapFile source = SystemTestUtil.createRandomHeapFile(columns, sourceRows, null, sourceTuples);
@@ -34,7 +40,7 @@ public class InsertTest extends SimpleDbTestBase {
     // Insert source into destination
     TransactionId tid = new TransactionId();
     SeqScan ss = new SeqScan(tid, source.getId(), "");
-    Insert insOp = new Insert(tid, ss, destination.getId());
+    Insert insOp = new Insert(tid, ss, destination.getId(), bulk);
 
     // Query q = new Query(insOp, tid);
     insOp.open();
@@ -79,6 +85,36 @@ public class InsertTest extends SimpleDbTestBase {
     validateInsert(1, 1, 1);
   }
 
+  @Test
+  public void testBulkOneToOne() throws IOException, DbException, TransactionAbortedException {
+    validateInsert(1, 1, 1, true);
+  }
+
+  @Test
+  public void testBulkManyPages() throws IOException, DbException, TransactionAbortedException {
+    validateInsert(2, 10000, 10, true);
+  }
+
+  @Test
+  public void testBulkAbort() throws IOException, DbException, TransactionAbortedException {
+    HeapFile source = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+    ArrayList<ArrayList<Integer>> destinationTuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile destination = SystemTestUtil.createRandomHeapFile(2, 10, null, destinationTuples);
+
+    Transaction t = new Transaction();
+    t.start();
+    Insert insOp = new Insert(t.getId(), new SeqScan(t.getId(), source.getId(), ""), destination
+        .getId(), true);
+    insOp.open();
+    assertEquals(2000, ((IntField) insOp.next().getField(0)).getValue());
+    insOp.close();
+    t.abort();
+
+    // the appended pages are still there, but empty
+    assertTrue(destination.numPages() > 1);
+    SystemTestUtil.matchTuples(destination, destinationTuples);
+  }
+
   /** Make test compatible with older version of ant. */
   public static junit.framework.Test suite() {
     return new junit.framework.JUnit4TestAdapter(InsertTest.class);
@@ -8,31 +8,90 @@ import org.junit.Test;
 
 import simpledb.Database;
 import simpledb.DbException;
+import simpledb.DbIterator;
+import simpledb.HashEquiJoin;
 import simpledb.HeapFile;
+import simpledb.IntField;
 import simpledb.Join;
 import simpledb.JoinPredicate;
 import simpledb.Predicate;
 import simpledb.SeqScan;
+import simpledb.SortMergeJoin;
 import simpledb.TransactionAbortedException;
 import simpledb.TransactionId;
 
 public class JoinTest extends SimpleDbTestBase {
   private static final int COLUMNS = 2;
 
+  /** Creates the join operator under test. */
+  private interface JoinFactory {
+    DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2);
+  }
+
+  private static final JoinFactory NESTED_LOOP = new JoinFactory() {
+    @Override
+    public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+      return new Join(p, child1, child2);
+    }
+  };
+
+  /** A block nested-loop join with one page of outer tuples per block. */
+  private static final JoinFactory BLOCK_ONE_PAGE = new JoinFactory() {
+    @Override
+    public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+      return new Join(p, child1, child2, 1);
+    }
+  };
+
+  /** A hash join with room for one page of build tuples. */
+  private static final JoinFactory HASH_ONE_PAGE = new JoinFactory() {
+    @Override
+    public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+      return new HashEquiJoin(p, child1, child2, 1);
+    }
+  };
+
+  /** A sort-merge join that sorts one page of tuples at a time. */
+  private static final JoinFactory SORT_MERGE_ONE_PAGE = new JoinFactory() {
+    @Override
+    public DbIterator create(JoinPredicate p, DbIterator child1, DbIterator child2) {
+      return new SortMergeJoin(p, child1, child2, 1);
+    }
+  };
+
   public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
       int table2Rows) throws IOException, DbException, TransactionAbortedException {
+    validateJoin(table1ColumnValue, table1Rows, table2ColumnValue, table2Rows,
+        SystemTestUtil.MAX_RAND_VALUE, Predicate.Op.EQUALS, NESTED_LOOP);
+  }
+
+  /**
+   * Joins two random tables on their first column and checks the result.
+   * 
+   * @param table1ColumnValue the first column of every tuple of the first
+   *          table, or null for random values below maxValue
+   * @param op the operator to join the first columns on
+   */
+  private void validateJoin(Integer table1ColumnValue, int table1Rows, Integer table2ColumnValue,
+      int table2Rows, int maxValue, Predicate.Op op, JoinFactory factory) throws IOException,
+      DbException, TransactionAbortedException {
     // Create the two tables
     HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
-    columnSpecification.put(new Integer(0), new Integer(table1ColumnValue));
+    if (table1ColumnValue != null) {
+      columnSpecification.put(new Integer(0), table1ColumnValue);
+    }
     ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
-    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, table1Rows, columnSpecification,
-        t1Tuples);
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, table1Rows, maxValue,
+        columnSpecification, t1Tuples);
     assert t1Tuples.size() == table1Rows;
 
-    columnSpecification.put(new Integer(0), new Integer(table2ColumnValue));
+    columnSpecification.clear();
+    if (table2ColumnValue != null) {
+      columnSpecification.put(new Integer(0), table2ColumnValue);
+    }
     ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
-    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, table2Rows, columnSpecification,
-        t2Tuples);
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, table2Rows, maxValue,
+        columnSpecification, t2Tuples);
     assert t2Tuples.size() == table2Rows;
 
     // Generate the expected results
@@ -40,7 +99,7 @@ public class JoinTest extends SimpleDbTestBase {
     for (ArrayList<Integer> t1 : t1Tuples) {
       for (ArrayList<Integer> t2 : t2Tuples) {
         // If the columns match, join the tuples
-        if (t1.get(0).equals(t2.get(0))) {
+        if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
           ArrayList<Integer> out = new ArrayList<Integer>(t1);
           out.addAll(t2);
           expectedResults.add(out);
@@ -52,8 +111,8 @@ public class JoinTest extends SimpleDbTestBase {
     TransactionId tid = new TransactionId();
     SeqScan ss1 = new SeqScan(tid, table1.getId(), "");
     SeqScan ss2 = new SeqScan(tid, table2.getId(), "");
-    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
-    Join joinOp = new Join(p, ss1, ss2);
+    JoinPredicate p = new JoinPredicate(0, op, 0);
+    DbIterator joinOp = factory.create(p, ss1, ss2);
 
     // test the join results
     SystemTestUtil.matchTuples(joinOp, expectedResults);
@@ -77,6 +136,55 @@ public class JoinTest extends SimpleDbTestBase {
     validateJoin(1, 3, 1, 3);
   }
 
+  @Test
+  public void testSeveralBlocks() throws IOException, DbException, TransactionAbortedException {
+    validateJoin(null, 2000, null, 300, 500, Predicate.Op.EQUALS, BLOCK_ONE_PAGE);
+  }
+
+  @Test
+  public void testHashJoinInMemory() throws IOException, DbException,
+      TransactionAbortedException {
+    validateJoin(1, 3, 1, 3, SystemTestUtil.MAX_RAND_VALUE, Predicate.Op.EQUALS, HASH_ONE_PAGE);
+  }
+
+  @Test
+  public void testHashJoinSpills() throws IOException, DbException, TransactionAbortedException {
+    // many times the build tuples that fit in memory, on spread out keys
+    validateJoin(null, 5000, null, 4000, 3000, Predicate.Op.EQUALS, HASH_ONE_PAGE);
+  }
+
+  @Test
+  public void testHashJoinSkewedKey() throws IOException, DbException,
+      TransactionAbortedException {
+    // every build tuple has the same key, so partitions cannot split them
+    validateJoin(7, 1500, null, 40, 8, Predicate.Op.EQUALS, HASH_ONE_PAGE);
+  }
+
+  @Test
+  public void testSortMergeEquals() throws IOException, DbException,
+      TransactionAbortedException {
+    // both inputs are sorted in several runs
+    validateJoin(null, 3000, null, 2000, 3000, Predicate.Op.EQUALS, SORT_MERGE_ONE_PAGE);
+  }
+
+  @Test
+  public void testSortMergeDuplicateKeys() throws IOException, DbException,
+      TransactionAbortedException {
+    validateJoin(null, 600, null, 700, 20, Predicate.Op.EQUALS, SORT_MERGE_ONE_PAGE);
+  }
+
+  @Test
+  public void testSortMergeLessThan() throws IOException, DbException,
+      TransactionAbortedException {
+    validateJoin(null, 600, null, 10, 500, Predicate.Op.LESS_THAN, SORT_MERGE_ONE_PAGE);
+  }
+
+  @Test
+  public void testSortMergeGreaterThanOrEq() throws IOException, DbException,
+      TransactionAbortedException {
+    validateJoin(null, 10, null, 600, 500, Predicate.Op.GREATER_THAN_OR_EQ, SORT_MERGE_ONE_PAGE);
+  }
+
   /** Make test compatible with older version of ant. */
   public static junit.framework.Test suite() {
     return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -0,0 +1,86 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.junit.Test;
+
+import simpledb.Database;
+import simpledb.DbException;
+import simpledb.HeapFile;
+import simpledb.OrderBy;
+import simpledb.SeqScan;
+import simpledb.TransactionAbortedException;
+import simpledb.TransactionId;
+
+public class OrderByTest extends SimpleDbTestBase {
+  private static final int COLUMNS = 2;
+
+  /**
+   * Sorts a random table on its first column and checks that the result is
+   * in order and holds every tuple of the table, twice over a rewind.
+   */
+  private void validateOrderBy(int rows, int maxValue, final boolean asc, int memoryPages)
+      throws IOException, DbException, TransactionAbortedException {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples);
+
+    ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(tuples);
+    Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+      @Override
+      public int compare(ArrayList<Integer> t1, ArrayList<Integer> t2) {
+        return asc ? t1.get(0).compareTo(t2.get(0)) : t2.get(0).compareTo(t1.get(0));
+      }
+    });
+
+    TransactionId tid = new TransactionId();
+    SeqScan ss = new SeqScan(tid, table.getId(), "");
+    OrderBy orderBy = new OrderBy(0, asc, ss, memoryPages);
+    orderBy.open();
+    for (int pass = 0; pass < 2; pass++) {
+      ArrayList<ArrayList<Integer>> remaining = new ArrayList<ArrayList<Integer>>(tuples);
+      for (ArrayList<Integer> t : expected) {
+        assertTrue(orderBy.hasNext());
+        ArrayList<Integer> actual = SystemTestUtil.tupleToList(orderBy.next());
+        assertEquals(t.get(0), actual.get(0));
+        assertTrue(remaining.remove(actual));
+      }
+      assertTrue(!orderBy.hasNext());
+      orderBy.rewind();
+    }
+    orderBy.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  @Test
+  public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+    validateOrderBy(300, SystemTestUtil.MAX_RAND_VALUE, true, OrderBy.DEFAULT_MEMORY_PAGES);
+  }
+
+  @Test
+  public void testSpilledRuns() throws IOException, DbException, TransactionAbortedException {
+    // several runs of one page each, merged two at a time
+    validateOrderBy(3000, 1000, true, 1);
+  }
+
+  @Test
+  public void testSpilledRunsDescending() throws IOException, DbException,
+      TransactionAbortedException {
+    validateOrderBy(3000, 1000, false, 3);
+  }
+
+  @Test
+  public void testDuplicateKeys() throws IOException, DbException, TransactionAbortedException {
+    validateOrderBy(2000, 5, true, 1);
+  }
+
+  /** Make test compatible with older version of ant. */
+  public static junit.framework.Test suite() {
+    return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+  }
+}
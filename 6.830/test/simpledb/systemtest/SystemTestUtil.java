@@ -30,7 +30,7 @@ import simpledb.Utility;
 public class SystemTestUtil {
   public static final TupleDesc SINGLE_INT_DESCRIPTOR = new TupleDesc(new Type[] { Type.INT_TYPE });
 
-  private static final int MAX_RAND_VALUE = 1 << 16;
+  static final int MAX_RAND_VALUE = 1 << 16;
 
   /** @param columnSpecification Mapping between column index and value. */
   public static HeapFile createRandomHeapFile(int columns, int rows,